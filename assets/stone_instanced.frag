@@ -0,0 +1,15 @@
+/*
+    BlockDesigner   (c) 2010  by Andreas Schwenk
+*/
+
+#version 120
+
+uniform sampler2D stoneTexture;
+
+varying vec2 texCoord;
+varying vec4 color;
+
+void main()
+{
+    gl_FragColor = texture2D(stoneTexture, texCoord) * color;
+}
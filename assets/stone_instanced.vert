@@ -0,0 +1,48 @@
+/*
+    BlockDesigner   (c) 2010  by Andreas Schwenk
+
+    instanced stones: one draw call per brick type; position, rotation (in
+    degrees around the y-axis) and color are per-instance attributes.
+    lighting mirrors the fixed-function setup (light 0, color material).
+*/
+
+#version 120
+
+attribute vec3 inPosition;
+attribute vec3 inNormal;
+attribute vec2 inTexCoord;
+attribute vec4 inInstance; // x, y, z, rotation
+attribute vec3 inColor;
+
+uniform bool lighting;
+
+varying vec2 texCoord;
+varying vec4 color;
+
+void main()
+{
+    float angle = radians(inInstance.w);
+    float c = cos(angle);
+    float s = sin(angle);
+    // same as glRotated(angle, 0, 1, 0)
+    vec3 position = vec3(c * inPosition.x + s * inPosition.z, inPosition.y,
+                         -s * inPosition.x + c * inPosition.z) + inInstance.xyz;
+    vec3 normal = vec3(c * inNormal.x + s * inNormal.z, inNormal.y,
+                       -s * inNormal.x + c * inNormal.z);
+
+    gl_Position = gl_ModelViewProjectionMatrix * vec4(position, 1.0);
+
+    if (lighting)
+    {
+        vec3 n = normalize(gl_NormalMatrix * normal);
+        vec3 l = normalize(gl_LightSource[0].position.xyz);
+        float diffuse = max(dot(n, l), 0.0);
+        vec3 rgb = inColor * (gl_LightModel.ambient.rgb + gl_LightSource[0].ambient.rgb
+                              + gl_LightSource[0].diffuse.rgb * diffuse);
+        color = vec4(min(rgb, vec3(1.0)), 1.0);
+    }
+    else
+        color = vec4(inColor, 1.0);
+
+    texCoord = inTexCoord;
+}
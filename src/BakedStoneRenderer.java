@@ -0,0 +1,270 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.nio.*;
+import java.util.*;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.*;
+
+/**
+ * renders the stones of a scene snapshot with one draw call per visible
+ * chunk: the meshes of all stones of a chunk are transformed on the cpu,
+ * colored per vertex and merged into one vbo (baked). a chunk is only baked
+ * again if its stamp has changed (StoneChunks: an insertion, removal, move or
+ * selection of one of its stones), so editing a large model only rebuilds
+ * the touched chunks; chunks are baked when they become visible for the
+ * first time. uses the fixed-function pipeline (vertex-, normal-, texture-
+ * and color-arrays with GL_COLOR_MATERIAL), like Object3d.beginRender(..).
+ * costs about 1 kb of video memory per stone.
+ */
+public class BakedStoneRenderer {
+    /**
+     * bytes per vertex: position (3 floats), normal (3 floats), texture
+     * coordinate (2 floats), color (4 unsigned bytes)
+     */
+    public static final int VERTEX_SIZE = 36;
+    private static final int NORMAL_OFFSET = 12;
+    private static final int TEXCOORD_OFFSET = 24;
+    private static final int COLOR_OFFSET = 32;
+
+    /**
+     * baked geometry of one chunk
+     */
+    private static class Chunk {
+        long stamp = 0; // 0 = not baked yet
+        int vbo = 0, ibo = 0;
+        int numIndices = 0;
+        boolean used;
+    }
+
+    private Object3d obj3d;
+
+    // ** stones of the last update(..) and their chunks **
+    private SceneSnapshot.Stones stones = null;
+    private boolean resolved = false;
+    private Chunk[] chunks = new Chunk[0]; // by chunk of the snapshot
+    private HashMap<Long, Chunk> chunksByKey = new HashMap<Long, Chunk>();
+
+    // ** meshes on the cpu (by sub-index) **
+    private float[][] meshVertices;
+    private int[][] meshIndices;
+
+    // ** bake buffers **
+    private ByteBuffer vertexBuffer = Buffers.newDirectByteBuffer(64 * 1024);
+    private IntBuffer indexBuffer = Buffers.newDirectIntBuffer(16 * 1024);
+
+    private int numBaked = 0;
+
+    public BakedStoneRenderer(Object3d obj3d) {
+        this.obj3d = obj3d;
+        meshVertices = new float[obj3d.getSubLength()][];
+        meshIndices = new int[obj3d.getSubLength()][];
+    }
+
+    /**
+     * the stones to be rendered; the baked chunks are kept, if their stamps
+     * are unchanged
+     */
+    public void update(SceneSnapshot.Stones stones) {
+        if (stones == this.stones)
+            return;
+        this.stones = stones;
+        resolved = false;
+    }
+
+    /**
+     * number of chunks baked by the last render(..)
+     */
+    public int getNumBaked() {
+        return numBaked;
+    }
+
+    /**
+     * assigns the cached chunks to the chunks of the snapshot (by key) and
+     * deletes the chunks which are gone
+     */
+    private void resolve(GL2 gl) {
+        resolved = true;
+        int numChunks = stones.getNumChunks();
+        if (chunks.length < numChunks)
+            chunks = new Chunk[numChunks];
+        Chunk chunk;
+        for (Iterator<Chunk> it = chunksByKey.values().iterator(); it.hasNext();)
+            it.next().used = false;
+        for (int c = 0; c < numChunks; c++) {
+            chunk = chunksByKey.get(stones.getChunkKey(c));
+            if (chunk == null) {
+                chunk = new Chunk();
+                chunksByKey.put(stones.getChunkKey(c), chunk);
+            }
+            chunk.used = true;
+            chunks[c] = chunk;
+        }
+        Arrays.fill(chunks, numChunks, chunks.length, null);
+        for (Iterator<Chunk> it = chunksByKey.values().iterator(); it.hasNext();) {
+            chunk = it.next();
+            if (!chunk.used) {
+                deleteBuffers(gl, chunk);
+                it.remove();
+            }
+        }
+    }
+
+    private void deleteBuffers(GL2 gl, Chunk chunk) {
+        if (chunk.vbo != 0)
+            gl.glDeleteBuffers(2, new int[] { chunk.vbo, chunk.ibo }, 0);
+        chunk.vbo = chunk.ibo = 0;
+    }
+
+    private void loadMesh(int type) {
+        Object3d.Mesh mesh = obj3d.getMesh(type);
+        FloatBuffer vertices = mesh.getVertices();
+        meshVertices[type] = new float[mesh.getNumVertices() * Object3d.Mesh.VERTEX_SIZE];
+        vertices.position(0);
+        vertices.get(meshVertices[type]);
+        IntBuffer indices = mesh.getIndices();
+        meshIndices[type] = new int[mesh.getNumIndices()];
+        indices.position(0);
+        indices.get(meshIndices[type]);
+    }
+
+    /**
+     * transforms and colors the meshes of the stones of chunk c (as the
+     * vertex shader of InstancedStoneRenderer) and uploads them
+     */
+    private void bake(GL2 gl, int c, Chunk chunk) {
+        int numVertices = 0, numIndices = 0, run, type;
+        for (int i = stones.getFirstChunkRun(c); i < stones.getFirstChunkRun(c + 1); i++) {
+            run = stones.getChunkRun(i);
+            type = stones.getRunType(run);
+            if (meshVertices[type] == null)
+                loadMesh(type);
+            numVertices += stones.getRunCount(run) * meshVertices[type].length / Object3d.Mesh.VERTEX_SIZE;
+            numIndices += stones.getRunCount(run) * meshIndices[type].length;
+        }
+        if (vertexBuffer.capacity() < numVertices * VERTEX_SIZE)
+            vertexBuffer = Buffers.newDirectByteBuffer(
+                    Math.max(numVertices * VERTEX_SIZE, 2 * vertexBuffer.capacity()));
+        if (indexBuffer.capacity() < numIndices)
+            indexBuffer = Buffers.newDirectIntBuffer(Math.max(numIndices, 2 * indexBuffer.capacity()));
+        vertexBuffer.clear();
+        indexBuffer.clear();
+
+        float[] vertices;
+        int[] indices;
+        int base = 0, v;
+        double angle, cos, sin, x, y, z, vx, vz, nx, nz;
+        byte r, g, b;
+        for (int i = stones.getFirstChunkRun(c); i < stones.getFirstChunkRun(c + 1); i++) {
+            run = stones.getChunkRun(i);
+            type = stones.getRunType(run);
+            vertices = meshVertices[type];
+            indices = meshIndices[type];
+            for (int n = stones.getRunStart(run); n < stones.getRunStart(run) + stones.getRunCount(run); n++) {
+                x = stones.getInstance(n, 0);
+                y = stones.getInstance(n, 1);
+                z = stones.getInstance(n, 2);
+                angle = Math.toRadians(stones.getInstance(n, 3));
+                cos = Math.cos(angle);
+                sin = Math.sin(angle);
+                r = (byte) Math.round(stones.getInstance(n, 4) * 255.0f);
+                g = (byte) Math.round(stones.getInstance(n, 5) * 255.0f);
+                b = (byte) Math.round(stones.getInstance(n, 6) * 255.0f);
+                for (v = 0; v < vertices.length; v += Object3d.Mesh.VERTEX_SIZE) {
+                    // same as glRotated(angle, 0, 1, 0)
+                    vx = vertices[v];
+                    vz = vertices[v + 2];
+                    vertexBuffer.putFloat((float) (cos * vx + sin * vz + x));
+                    vertexBuffer.putFloat((float) (vertices[v + 1] + y));
+                    vertexBuffer.putFloat((float) (-sin * vx + cos * vz + z));
+                    nx = vertices[v + Object3d.Mesh.NORMAL_OFFSET];
+                    nz = vertices[v + Object3d.Mesh.NORMAL_OFFSET + 2];
+                    vertexBuffer.putFloat((float) (cos * nx + sin * nz));
+                    vertexBuffer.putFloat(vertices[v + Object3d.Mesh.NORMAL_OFFSET + 1]);
+                    vertexBuffer.putFloat((float) (-sin * nx + cos * nz));
+                    vertexBuffer.putFloat(vertices[v + Object3d.Mesh.TEXCOORD_OFFSET]);
+                    vertexBuffer.putFloat(vertices[v + Object3d.Mesh.TEXCOORD_OFFSET + 1]);
+                    vertexBuffer.put(r);
+                    vertexBuffer.put(g);
+                    vertexBuffer.put(b);
+                    vertexBuffer.put((byte) 255);
+                }
+                for (v = 0; v < indices.length; v++)
+                    indexBuffer.put(base + indices[v]);
+                base += vertices.length / Object3d.Mesh.VERTEX_SIZE;
+            }
+        }
+        vertexBuffer.flip();
+        indexBuffer.flip();
+
+        if (chunk.vbo == 0) {
+            int[] tmp = new int[2];
+            gl.glGenBuffers(2, tmp, 0);
+            chunk.vbo = tmp[0];
+            chunk.ibo = tmp[1];
+        }
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, chunk.vbo);
+        gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) numVertices * VERTEX_SIZE, vertexBuffer, GL2.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, chunk.ibo);
+        gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long) numIndices * Buffers.SIZEOF_INT, indexBuffer,
+                GL2.GL_STATIC_DRAW);
+        chunk.numIndices = numIndices;
+        chunk.stamp = stones.getChunkStamp(c);
+        numBaked++;
+    }
+
+    /**
+     * draws the visible chunks (baking the changed ones first); the stone
+     * texture has to be bound already. returns the number of draw calls.
+     */
+    public int render(GL2 gl, boolean[] visible) {
+        numBaked = 0;
+        if (stones == null || stones.getNumInstances() == 0)
+            return 0;
+        if (!resolved)
+            resolve(gl);
+
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+        gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+        Chunk chunk;
+        int drawCalls = 0;
+        for (int c = 0; c < stones.getNumChunks(); c++) {
+            if (!visible[c])
+                continue;
+            chunk = chunks[c];
+            if (chunk.stamp != stones.getChunkStamp(c))
+                bake(gl, c, chunk);
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, chunk.vbo);
+            gl.glVertexPointer(3, GL2.GL_FLOAT, VERTEX_SIZE, 0);
+            gl.glNormalPointer(GL2.GL_FLOAT, VERTEX_SIZE, NORMAL_OFFSET);
+            gl.glTexCoordPointer(2, GL2.GL_FLOAT, VERTEX_SIZE, TEXCOORD_OFFSET);
+            gl.glColorPointer(4, GL2.GL_UNSIGNED_BYTE, VERTEX_SIZE, COLOR_OFFSET);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, chunk.ibo);
+            gl.glDrawElements(GL2.GL_TRIANGLES, chunk.numIndices, GL2.GL_UNSIGNED_INT, 0);
+            drawCalls++;
+        }
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+        return drawCalls;
+    }
+
+    public void dispose(GL2 gl) {
+        for (Iterator<Chunk> it = chunksByKey.values().iterator(); it.hasNext();)
+            deleteBuffers(gl, it.next());
+        chunksByKey.clear();
+        Arrays.fill(chunks, null);
+        stones = null;
+        resolved = false;
+    }
+}
@@ -0,0 +1,730 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * micro-benchmarks of the hot paths (headless): insertion of stones into
+ * models of growing size, placement and picking (with the bvh and
+ * brute-force with the scalar and the vector kernel), the ray/box-intersection,
+ * parsing of the brick library, lexing of a 10 MB library (Object3dLexer
+ * against the lexer it replaced, see LegacyLexer), the bounding boxes of
+ * Object3d and saving and loading of BLCS-files. the models are built by
+ * ModelGenerator.
+ *
+ * every benchmark is warmed up, then measured several times; an iteration
+ * repeats the operation until it took at least ITERATION_TIME. the median
+ * time per operation is reported. with -w the results are written to a CSV
+ * file, with -b they are compared against such a file (regression gate: the
+ * exit code is 1, if a benchmark is slower than the baseline by more than
+ * the tolerance). with -g the bytes allocated per operation are reported as
+ * well (measured with the allocation counter of the thread).
+ *
+ * usage: java BenchmarkTool [options] [name-prefixes..]
+ */
+public class BenchmarkTool {
+    private static final String USAGE = "usage: BenchmarkTool [options] [name-prefixes..]\n"
+            + "options:\n"
+            + "  -l          list the benchmarks\n"
+            + "  -s n,..     model sizes (default 1000,10000,100000; up to 1000000)\n"
+            + "  -i n        measured iterations (default 5)\n"
+            + "  -g          report allocated bytes per operation\n"
+            + "  -w file     write the results (CSV)\n"
+            + "  -b file     compare with the results of a previous run (CSV)\n"
+            + "  -t percent  tolerated slowdown against the baseline (default 10)";
+
+    private static final long ITERATION_TIME = 200000000L; // ns
+    private static final long WARMUP_TIME = 1000000000L; // ns
+
+    /**
+     * small models for the raycast benchmarks (in addition to the sizes)
+     */
+    private static final int[] RAYCAST_SIZES = { 16, 64, 256 };
+
+    /**
+     * size of the brick library of the lexer benchmarks (bytes)
+     */
+    private static final int LEX_SIZE = 10 << 20;
+
+    /**
+     * a benchmark; setup() is not measured. run() performs the given number
+     * of operations (e.g. inserts all stones of a model), the time is
+     * reported per operation.
+     */
+    private static abstract class Benchmark {
+        final String name;
+        final int operations;
+
+        Benchmark(String name) {
+            this(name, 1);
+        }
+
+        Benchmark(String name, int operations) {
+            this.name = name;
+            this.operations = operations;
+        }
+
+        void setup() throws IOException {
+        }
+
+        abstract long run() throws IOException;
+
+        /**
+         * releases the data of setup()
+         */
+        void tearDown() {
+        }
+    }
+
+    private int[] sizes = { 1000, 10000, 100000 };
+    private int numIterations = 5;
+    private File outputFile = null;
+    private File baselineFile = null;
+    private double tolerance = 0.10;
+    private boolean list = false;
+    private boolean allocations = false;
+    private LinkedList<String> prefixes = new LinkedList<String>();
+
+    private Object3d obj3dStones;
+    private LinkedList<Benchmark> benchmarks = new LinkedList<Benchmark>();
+
+    /**
+     * results of the operations, so that they are not optimized away
+     */
+    private long sink = 0;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BenchmarkTool tool = new BenchmarkTool();
+        if (!tool.parseArguments(args)) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(tool.run());
+    }
+
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-l"))
+                    list = true;
+                else if (args[i].equals("-g"))
+                    allocations = true;
+                else if (args[i].equals("-s")) {
+                    String[] values = args[++i].split(",");
+                    sizes = new int[values.length];
+                    for (int k = 0; k < values.length; k++)
+                        sizes[k] = Integer.parseInt(values[k].trim());
+                } else if (args[i].equals("-i"))
+                    numIterations = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-w"))
+                    outputFile = new File(args[++i]);
+                else if (args[i].equals("-b"))
+                    baselineFile = new File(args[++i]);
+                else if (args[i].equals("-t"))
+                    tolerance = Double.parseDouble(args[++i]) / 100.0;
+                else if (args[i].startsWith("-")) {
+                    System.out.println("unknown option " + args[i]);
+                    return false;
+                } else
+                    prefixes.add(args[i]);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("missing value of option " + args[args.length - 1]);
+            return false;
+        } catch (NumberFormatException e) {
+            System.out.println("invalid number: " + e.getMessage());
+            return false;
+        }
+        if (numIterations < 1)
+            numIterations = 1;
+        for (int i = 0; i < sizes.length; i++)
+            if (sizes[i] < 1 || sizes[i] > 1000000) {
+                System.out.println("model sizes must be 1..1000000");
+                return false;
+            }
+        if (allocations && threads() == null) {
+            System.out.println("allocation counter not supported by the vm");
+            return false;
+        }
+        if (baselineFile != null && !baselineFile.isFile()) {
+            System.out.println("baseline " + baselineFile + " not found");
+            return false;
+        }
+        return true;
+    }
+
+    private int run() {
+        obj3dStones = new Object3d();
+        if (!obj3dStones.loadFromFile("stones.txt")) {
+            System.out.println("could not load brick library");
+            return 1;
+        }
+        addBenchmarks();
+
+        TreeMap<String, Double> baseline = null;
+        if (baselineFile != null) {
+            try {
+                baseline = readResults(baselineFile);
+            } catch (IOException e) {
+                System.out.println("reading baseline failed: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+        int numRegressions = 0;
+        Benchmark benchmark;
+        for (Iterator<Benchmark> it = benchmarks.iterator(); it.hasNext();) {
+            benchmark = (Benchmark) it.next();
+            if (!selected(benchmark.name))
+                continue;
+            if (list) {
+                System.out.println(benchmark.name);
+                continue;
+            }
+            double[] result;
+            try {
+                result = measure(benchmark);
+            } catch (IOException e) {
+                System.out.println(benchmark.name + ": FAILED: " + e.getMessage());
+                return 1;
+            }
+            results.put(benchmark.name, result);
+            double time = result[0];
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-32s %14.1f ns/op",
+                    benchmark.name, time));
+            if (allocations)
+                line.append(String.format(Locale.ROOT, " %12.1f B/op", result[1]));
+            Double reference = baseline != null ? baseline.get(benchmark.name) : null;
+            if (reference != null) {
+                double change = time / reference - 1.0;
+                line.append(String.format(Locale.ROOT, "  %+6.1f%%", 100.0 * change));
+                if (change > tolerance) {
+                    line.append("  REGRESSION");
+                    numRegressions++;
+                }
+            }
+            System.out.println(line);
+        }
+        if (list)
+            return 0;
+
+        if (outputFile != null) {
+            try {
+                writeResults(outputFile, results);
+            } catch (IOException e) {
+                System.out.println("writing results failed: " + e.getMessage());
+                return 1;
+            }
+        }
+        if (sink == 42)
+            System.out.println(); // uses sink
+        if (baseline != null) {
+            System.out.println(numRegressions + " regressions (tolerance " + Math.round(tolerance * 100.0) + "%)");
+            return numRegressions == 0 ? 0 : 1;
+        }
+        return 0;
+    }
+
+    private boolean selected(String name) {
+        if (prefixes.isEmpty())
+            return true;
+        for (Iterator<String> it = prefixes.iterator(); it.hasNext();)
+            if (name.startsWith((String) it.next()))
+                return true;
+        return false;
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported())
+            return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * median time per operation (ns) and, with -g, the bytes allocated per
+     * operation during the measured iterations
+     */
+    private double[] measure(Benchmark benchmark) throws IOException {
+        com.sun.management.ThreadMXBean threads = allocations ? threads() : null;
+        benchmark.setup();
+        try {
+            // ** warmup **
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < WARMUP_TIME)
+                sink += benchmark.run();
+
+            double[] times = new double[numIterations];
+            long totalOps = 0;
+            long allocated = threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+            for (int i = 0; i < numIterations; i++) {
+                long ops = 0;
+                start = System.nanoTime();
+                long t;
+                do {
+                    sink += benchmark.run();
+                    ops++;
+                } while ((t = System.nanoTime() - start) < ITERATION_TIME);
+                times[i] = (double) t / (ops * benchmark.operations);
+                totalOps += ops * benchmark.operations;
+            }
+            if (threads != null)
+                allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+            Arrays.sort(times);
+            return new double[] { times[numIterations / 2], (double) allocated / totalOps };
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static TreeMap<String, Double> readResults(File file) throws IOException {
+        TreeMap<String, Double> results = new TreeMap<String, Double>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length < 2 || values[0].equals("benchmark"))
+                    continue;
+                try {
+                    results.put(values[0], Double.parseDouble(values[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid line: " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    private void writeResults(File file, Map<String, double[]> results) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(allocations ? "benchmark,ns_per_op,bytes_per_op\n" : "benchmark,ns_per_op\n");
+            for (Iterator<Map.Entry<String, double[]>> it = results.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, double[]> entry = it.next();
+                out.write(entry.getKey() + "," + String.format(Locale.ROOT, "%.1f", entry.getValue()[0]));
+                if (allocations)
+                    out.write("," + String.format(Locale.ROOT, "%.1f", entry.getValue()[1]));
+                out.write("\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // ***** benchmarks *****
+
+    private void addBenchmarks() {
+        // ** brick library **
+        benchmarks.add(new Benchmark("object3d.parse") {
+            long run() {
+                Object3d obj3d = new Object3d();
+                obj3d.loadFromFile("stones.txt", false);
+                return obj3d.getSubLength();
+            }
+        });
+        benchmarks.add(new Benchmark("object3d.cached") {
+            void setup() {
+                new Object3d().loadFromFile("stones.txt", true); // writes the cache
+            }
+
+            long run() {
+                Object3d obj3d = new Object3d();
+                obj3d.loadFromFile("stones.txt", true);
+                return obj3d.getSubLength();
+            }
+        });
+        // the same library with the current and the old lexer
+        benchmarks.add(new Benchmark("object3d.lex.10mb") {
+            byte[] source;
+
+            void setup() throws IOException {
+                source = largeLibrary(LEX_SIZE);
+            }
+
+            long run() {
+                Object3dLexer lexer = new Object3dLexer();
+                lexer.lex(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(source)));
+                return lexer.getNumTokens();
+            }
+
+            void tearDown() {
+                source = null;
+            }
+        });
+        benchmarks.add(new Benchmark("object3d.lex.legacy.10mb") {
+            byte[] source;
+
+            void setup() throws IOException {
+                source = largeLibrary(LEX_SIZE);
+            }
+
+            long run() throws IOException {
+                BufferedReader buff = new BufferedReader(
+                        new InputStreamReader(new ByteArrayInputStream(source), StandardCharsets.UTF_8));
+                return LegacyLexer.lex(buff).size();
+            }
+
+            void tearDown() {
+                source = null;
+            }
+        });
+        benchmarks.add(new Benchmark("object3d.getAABB") {
+            long run() {
+                long n = 0;
+                for (int i = 0; i < obj3dStones.getSubLength(); i++)
+                    n += (long) obj3dStones.getAABB(obj3dStones.getSubId(i), 0.0, (i % 4) * 90.0, 0.0).max.x;
+                return n;
+            }
+        });
+
+        // ** ray/box-intersection **
+        benchmarks.add(new Benchmark("aabb.rayIntersection") {
+            Math3d.AABB[] boxes;
+            Math3d.Double3[] origins, directions;
+            int next = 0;
+
+            void setup() {
+                Random random = new Random(1);
+                boxes = new Math3d.AABB[1024];
+                origins = new Math3d.Double3[1024];
+                directions = new Math3d.Double3[1024];
+                for (int i = 0; i < 1024; i++) {
+                    boxes[i] = new Math3d.AABB();
+                    boxes[i].min.set(random.nextDouble() * 10, random.nextDouble() * 10, random.nextDouble() * 10);
+                    boxes[i].max.set(boxes[i].min.x + 1 + random.nextDouble() * 4,
+                            boxes[i].min.y + 1 + random.nextDouble() * 4, boxes[i].min.z + 1 + random.nextDouble() * 4);
+                    origins[i] = new Math3d.Double3(random.nextDouble() * 20 - 5, 20, random.nextDouble() * 20 - 5);
+                    directions[i] = new Math3d.Double3(random.nextDouble() - 0.5, -1, random.nextDouble() - 0.5);
+                    directions[i].normalize();
+                }
+            }
+
+            long run() {
+                int i = next++ & 1023;
+                return (long) boxes[i].rayIntersection(origins[i], directions[i]);
+            }
+        });
+
+        // ** models of growing size **
+        for (int k = 0; k < sizes.length; k++) {
+            final int size = sizes[k];
+            for (int s = 0; s < ModelGenerator.SHAPES.length; s++) {
+                final String shape = ModelGenerator.SHAPES[s];
+                // inserting all stones of the shape into an empty model (time per stone)
+                benchmarks.add(new Benchmark("model.insert." + shape + "." + size, size) {
+                    Model.Stone[] stones;
+
+                    void setup() {
+                        stones = ModelGenerator.generate(shape, size);
+                    }
+
+                    long run() {
+                        Model model = new Model(obj3dStones);
+                        ModelGenerator.insert(model, stones, 0);
+                        return model.getStones().size();
+                    }
+
+                    void tearDown() {
+                        stones = null;
+                    }
+                });
+                // the same as one bulk insertion (time per stone)
+                benchmarks.add(new Benchmark("model.bulkinsert." + shape + "." + size, size) {
+                    List<Model.Stone> stones;
+
+                    void setup() {
+                        stones = Arrays.asList(ModelGenerator.generate(shape, size));
+                    }
+
+                    long run() {
+                        Model model = new Model(obj3dStones);
+                        model.insertStones(stones, 0);
+                        return model.getStones().size();
+                    }
+
+                    void tearDown() {
+                        stones = null;
+                    }
+                });
+                // all overlapping pairs, as tested when a file is loaded
+                benchmarks.add(new ModelBenchmark("model.overlaps." + shape + "." + size, shape, size) {
+                    long run() {
+                        return model.checkOverlaps().size();
+                    }
+                });
+            }
+            benchmarks.add(new ModelBenchmark("model.pick.wall." + size, "wall", size) {
+                long run() {
+                    int i = next();
+                    Math3d.Double3 center = model.pick(false, false, eye(i), dir(i));
+                    return center != null ? 1 : 0;
+                }
+            });
+            benchmarks.add(new ModelBenchmark("model.placement.slab." + size, "slab", size) {
+                long run() {
+                    int i = next();
+                    return model.getPlacementPos(eye(i), dir(i), 0, false).y;
+                }
+            });
+            // every fifth stone moved up and back down by a brick (time per move)
+            benchmarks.add(new ModelBenchmark("model.move.slab." + size, "slab", size) {
+                Math3d.Int3 step = new Math3d.Int3(0, -3, 0);
+
+                void setup() throws IOException {
+                    super.setup();
+                    for (int i = 0; i < model.getStones().size(); i += 5)
+                        model.getStones().setSelected(i, true);
+                }
+
+                long run() {
+                    step.y = -step.y;
+                    return model.moveSelectedStones(step) ? 1 : 0;
+                }
+            });
+            for (int version = 1; version <= 2; version++) {
+                final int fileVersion = version;
+                benchmarks.add(new ModelBenchmark("blcs.v" + version + ".save.wall." + size, "wall", size) {
+                    long run() throws IOException {
+                        return save(model, fileVersion).length;
+                    }
+                });
+                // a tower stacks its stones on a small footprint (OverlapChecker)
+                for (String shape : new String[] { "wall", "tower" })
+                    benchmarks.add(new ModelBenchmark("blcs.v" + version + ".load." + shape + "." + size, shape, size) {
+                        byte[] data;
+
+                        void setup() throws IOException {
+                            super.setup();
+                            data = save(model, fileVersion);
+                        }
+
+                        long run() throws IOException {
+                            Model loaded = new Model(obj3dStones);
+                            load(loaded, fileVersion, data);
+                            return loaded.getStones().size();
+                        }
+
+                        void tearDown() {
+                            super.tearDown();
+                            data = null;
+                        }
+                    });
+            }
+        }
+
+        // ** nearest box hit by a ray: bvh against brute-force (RayBoxBatch) **
+        RayBoxBatch.Kernel[] kernels = { null, RayBoxBatch.SCALAR, RayBoxBatch.getVectorKernel() };
+        for (int k = 0; k < RAYCAST_SIZES.length + sizes.length; k++) {
+            final int size = k < RAYCAST_SIZES.length ? RAYCAST_SIZES[k] : sizes[k - RAYCAST_SIZES.length];
+            for (int j = 0; j < kernels.length; j++) {
+                final RayBoxBatch.Kernel kernel = kernels[j];
+                if (j > 0 && kernel == null)
+                    continue; // no vector api
+                String name = kernel == null ? "bvh" : kernel.getName().startsWith("vector") ? "vector" : "scalar";
+                benchmarks.add(new ModelBenchmark("raycast." + name + ".wall." + size, "wall", size) {
+                    void setup() throws IOException {
+                        super.setup();
+                        if (kernel != null)
+                            model.getBoxes().setKernel(kernel);
+                        model.setBruteForceStones(kernel != null ? Integer.MAX_VALUE : 0);
+                    }
+
+                    long run() {
+                        int i = next();
+                        Math3d.Double3 center = model.pick(false, false, eye(i), dir(i));
+                        return center != null ? 1 : 0;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * benchmark on a generated model with random rays
+     */
+    private abstract class ModelBenchmark extends Benchmark {
+        private String shape;
+        private int size;
+        protected Model model;
+        private double[] rays;
+        private int nextRay = 0;
+        private Math3d.Double3 eye = new Math3d.Double3(), dir = new Math3d.Double3();
+
+        ModelBenchmark(String name, String shape, int size) {
+            super(name);
+            this.shape = shape;
+            this.size = size;
+        }
+
+        void setup() throws IOException {
+            model = ModelGenerator.build(obj3dStones, shape, size);
+            rays = ModelGenerator.rays(model, 4096, 1);
+        }
+
+        void tearDown() {
+            model = null;
+            rays = null;
+        }
+
+        int next() {
+            return nextRay++ & 4095;
+        }
+
+        Math3d.Double3 eye(int i) {
+            eye.set(rays[6 * i], rays[6 * i + 1], rays[6 * i + 2]);
+            return eye;
+        }
+
+        Math3d.Double3 dir(int i) {
+            dir.set(rays[6 * i + 3], rays[6 * i + 4], rays[6 * i + 5]);
+            return dir;
+        }
+    }
+
+    /**
+     * the bundled brick library repeated until it has at least the given
+     * size (names repeat, which does not matter to the lexers)
+     */
+    private static byte[] largeLibrary(int size) throws IOException {
+        InputStream in = BenchmarkTool.class.getResourceAsStream("/stones.txt");
+        if (in == null)
+            throw new FileNotFoundException("stones.txt");
+        byte[] library;
+        try {
+            library = in.readAllBytes();
+        } finally {
+            in.close();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + library.length + 1);
+        while (out.size() < size) {
+            out.write(library);
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * the lexer of Object3d before Object3dLexer (one String per token,
+     * built character by character); kept as the baseline of the lexer
+     * benchmarks
+     */
+    static final class LegacyLexer {
+        static final class Token {
+            final String str;
+            final int srcLine;
+
+            Token(String str, int srcLine) {
+                this.str = str;
+                this.srcLine = srcLine;
+            }
+        }
+
+        static ArrayList<Token> lex(BufferedReader buff) throws IOException {
+            ArrayList<Token> tokens = new ArrayList<Token>();
+            char character;
+            boolean inComment = false, inString = false;
+            String line;
+            int lineNo = 0;
+            int currentTokenLineNo = 0;
+            String currentTokenStr = "";
+            while (buff.ready()) {
+                line = buff.readLine();
+                lineNo++;
+                for (int i = 0; i < line.length(); i++) {
+                    character = line.charAt(i);
+                    if (!inComment && (character == '/' && i <= (line.length() - 2) && line.charAt(i + 1) == '/')) {
+                        if (currentTokenStr.length() > 0)
+                            tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                        currentTokenStr = "";
+                        break;
+                    } else if (!inComment
+                            && (character == '/' && i <= (line.length() - 2) && line.charAt(i + 1) == '*')) {
+                        if (currentTokenStr.length() > 0)
+                            tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                        currentTokenStr = "";
+                        inComment = true;
+                    } else if (character == '*' && i <= (line.length() - 2) && line.charAt(i + 1) == '/') {
+                        i++;
+                        inComment = false;
+                    } else if (!inComment && character == '"') {
+                        if (!inString) {
+                            if (currentTokenStr.length() > 0)
+                                tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                            currentTokenStr = "" + character;
+                            currentTokenLineNo = lineNo;
+                            inString = true;
+                        } else {
+                            currentTokenStr = currentTokenStr + character;
+                            currentTokenLineNo = lineNo;
+                            inString = false;
+                        }
+                    } else if (!inComment && !inString
+                            && (character == ' ' || character == '\n' || character == '\t')) {
+                        if (currentTokenStr.length() > 0)
+                            tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                        currentTokenStr = "";
+                    } else if (!inComment && !inString && (character == '{' || character == '}'
+                            || character == '(' || character == ')'
+                            || character == '[' || character == ']'
+                            || character == ',' || character == ';'
+                            || character == ':' || character == '='
+                            || character == '+' || character == '-'
+                            || character == '*' || character == '/'
+                            || character == '%' || character == '.')) {
+                        if (currentTokenStr.length() > 0)
+                            tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                        currentTokenStr = "" + character;
+                        currentTokenLineNo = lineNo;
+                        tokens.add(new Token(currentTokenStr, currentTokenLineNo));
+                        currentTokenStr = "";
+                    } else if (!inComment) {
+                        currentTokenStr = currentTokenStr + character;
+                        currentTokenLineNo = lineNo;
+                    }
+                }
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * the model as stored in a BLCS-file (without header)
+     */
+    private static byte[] save(Model model, int version) throws IOException {
+        if (version == 0x02) {
+            ByteBuffer buf = model.saveToBuffer();
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            return data;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(bytes);
+        model.saveToFile(0x01, dataOut);
+        dataOut.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void load(Model model, int version, byte[] data) throws IOException {
+        if (version == 0x02)
+            model.loadFromBuffer(ByteBuffer.wrap(data));
+        else
+            model.loadFromFile(0x01, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+}
@@ -29,6 +29,13 @@ public class Camera {
     private final double minZoom = 2.0;
     private final double maxZoom = 500.0;
 
+    // ** temporaries of pan(..) and update(..) **
+    private Math3d.Double3 panDir = new Math3d.Double3();
+    private Math3d.Double3 panRight = new Math3d.Double3();
+    private Math3d.Double3 panUp = new Math3d.Double3();
+    private static final Math3d.Double3 UP = new Math3d.Double3(0.0, 1.0, 0.0);
+    private Math3d.Matrix4 rot = new Math3d.Matrix4();
+
     public Camera() {
     }
 
@@ -42,21 +49,19 @@ public class Camera {
 
     public void pan(double changeXZ, double changeY) {
         if (mode == Mode.PERSPECTIVE) {
-            Math3d.Double3 dir = eyePos.clone();
-            dir.sub(lookAt);
-            dir.normalize();
+            panDir.setSub(eyePos, lookAt);
+            panDir.normalize();
 
-            Math3d.Double3 upVec = new Math3d.Double3(0.0, 1.0, 0.0);
-            Math3d.Double3 right = Math3d.Double3.crossProduct(dir, upVec);
-            right.normalize();
-            Math3d.Double3 up = Math3d.Double3.crossProduct(dir, right);
-            up.normalize();
+            panRight.setCrossProduct(panDir, UP);
+            panRight.normalize();
+            panUp.setCrossProduct(panDir, panRight);
+            panUp.normalize();
 
-            right.scalarMul(changeXZ);
-            up.scalarMul(changeY);
+            panRight.scalarMul(changeXZ);
+            panUp.scalarMul(changeY);
 
-            lookAt.add(right);
-            lookAt.add(up);
+            lookAt.add(panRight);
+            lookAt.add(panUp);
         } else {
             orthographicTranslation.x += changeXZ;
             orthographicTranslation.y += changeY;
@@ -78,7 +83,6 @@ public class Camera {
         switch (mode) {
             case PERSPECTIVE:
                 eyePos.set(0.0, 0.0, -eyeDistance);
-                Math3d.Double4x4 rot = new Math3d.Double4x4();
                 rot.rotX(rotation.x);
                 rot.mulVec(eyePos);
                 rot.rotY(rotation.y);
@@ -0,0 +1,287 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * headless batch-processing of BLCS-files (no window and no GL-context is
+ * created). the files are processed in parallel; every worker uses its own
+ * model, the brick library is loaded once and shared.
+ *
+ * usage: java CommandLineTool command [options] files..
+ */
+public class CommandLineTool {
+    private static final String USAGE = "usage: CommandLineTool command [options] files..\n"
+            + "commands:\n"
+            + "  validate  report pairs of overlapping stones and unknown stone types\n"
+            + "  convert   write the files with another file-format-version (needs -o)\n"
+            + "  stats     number of stones per type and color, extent of the model\n"
+            + "  time      time for loading and saving\n"
+            + "options:\n"
+            + "  -j n      number of worker threads (default: number of processors; time: 1)\n"
+            + "  -o dir    output directory of convert\n"
+            + "  -v n      file-format-version written by convert (1 or 2, default 2)\n"
+            + "  -n n      number of runs of time (default 5)";
+
+    /**
+     * result of a single file
+     */
+    private static class Result {
+        boolean ok = true;
+        StringBuilder report = new StringBuilder();
+    }
+
+    private String command = null;
+    private int numThreads = -1;
+    private File outputDir = null;
+    private int outputVersion = ModelFile.FILE_VERSION;
+    private int numRuns = 5;
+    private LinkedList<File> files = new LinkedList<File>();
+
+    private Object3d obj3dStones;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        CommandLineTool tool = new CommandLineTool();
+        if (!tool.parseArguments(args)) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(tool.run());
+    }
+
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-j"))
+                    numThreads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-o"))
+                    outputDir = new File(args[++i]);
+                else if (args[i].equals("-v"))
+                    outputVersion = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-n"))
+                    numRuns = Integer.parseInt(args[++i]);
+                else if (args[i].startsWith("-")) {
+                    System.out.println("unknown option " + args[i]);
+                    return false;
+                } else if (command == null)
+                    command = args[i];
+                else
+                    files.add(new File(args[i]));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("missing value of option " + args[args.length - 1]);
+            return false;
+        } catch (NumberFormatException e) {
+            System.out.println("invalid number: " + e.getMessage());
+            return false;
+        }
+        if (command == null || files.isEmpty())
+            return false;
+        if (!command.equals("validate") && !command.equals("convert") && !command.equals("stats")
+                && !command.equals("time")) {
+            System.out.println("unknown command " + command);
+            return false;
+        }
+        if (command.equals("convert") && (outputDir == null || !outputDir.isDirectory())) {
+            System.out.println("convert: output directory (-o) missing or not a directory");
+            return false;
+        }
+        if (outputVersion != 0x01 && outputVersion != 0x02) {
+            System.out.println("file-format-version must be 1 or 2");
+            return false;
+        }
+        if (numRuns < 1)
+            numRuns = 1;
+        if (numThreads < 1)
+            // parallel runs would distort the times
+            numThreads = command.equals("time") ? 1 : Runtime.getRuntime().availableProcessors();
+        return true;
+    }
+
+    /**
+     * processes all files; returns the exit code (0: all files ok, 1: at
+     * least one file failed)
+     */
+    private int run() {
+        obj3dStones = new Object3d();
+        if (!obj3dStones.loadFromFile("stones.txt")) {
+            System.out.println("could not load brick library");
+            return 1;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, files.size()));
+        LinkedList<Future<Result>> results = new LinkedList<Future<Result>>();
+        for (Iterator<File> it = files.iterator(); it.hasNext();) {
+            final File file = (File) it.next();
+            results.add(pool.submit(new Callable<Result>() {
+                public Result call() {
+                    return process(file);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        // reports are printed in the order of the files
+        int numFailed = 0;
+        Result result;
+        for (Iterator<Future<Result>> it = results.iterator(); it.hasNext();) {
+            try {
+                result = it.next().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            } catch (ExecutionException e) {
+                result = new Result();
+                result.ok = false;
+                result.report.append(e.getCause());
+            }
+            System.out.println(result.report);
+            if (!result.ok)
+                numFailed++;
+        }
+        if (files.size() > 1)
+            System.out.println((files.size() - numFailed) + " of " + files.size() + " files ok");
+        return numFailed == 0 ? 0 : 1;
+    }
+
+    private Result process(File file) {
+        Result result = new Result();
+        result.report.append(file.getPath()).append(": ");
+        try {
+            if (command.equals("validate"))
+                validate(file, result);
+            else if (command.equals("convert"))
+                convert(file, result);
+            else if (command.equals("stats"))
+                stats(file, result);
+            else
+                time(file, result);
+        } catch (IOException e) {
+            result.ok = false;
+            result.report.append("FAILED: ").append(e.getMessage());
+        }
+        return result;
+    }
+
+    private void validate(File file, Result result) throws IOException {
+        Model model = new Model(obj3dStones);
+        new ModelFile().load(file, model);
+        StoneStore stones = model.getStones();
+
+        // unknown types (the stones are rendered as the first brick of the library)
+        TreeMap<Integer, Integer> unknownTypes = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < stones.size(); i++)
+            if (obj3dStones.indexOf(stones.getType(i)) == -1)
+                increment(unknownTypes, stones.getType(i));
+        OverlapChecker.Report overlaps = model.getOverlapReport();
+
+        if (unknownTypes.isEmpty() && overlaps.size() == 0) {
+            result.report.append("OK (").append(stones.size()).append(" stones)");
+            return;
+        }
+        result.ok = false;
+        result.report.append("FAILED (").append(stones.size()).append(" stones)");
+        if (overlaps.size() > 0) {
+            result.report.append("\n  overlapping stones (ids):");
+            for (int i = 0; i < overlaps.size(); i++)
+                result.report.append(' ').append(overlaps.getFirst(i)).append('/').append(overlaps.getSecond(i));
+        }
+        if (!unknownTypes.isEmpty()) {
+            result.report.append("\n  unknown types:");
+            for (Iterator<Map.Entry<Integer, Integer>> it = unknownTypes.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer, Integer> entry = it.next();
+                result.report.append(' ').append(entry.getKey()).append(" (").append(entry.getValue()).append("x)");
+            }
+        }
+    }
+
+    private void convert(File file, Result result) throws IOException {
+        Model model = new Model(obj3dStones);
+        ModelFile modelFile = new ModelFile();
+        modelFile.load(file, model);
+        File output = new File(outputDir, file.getName());
+        if (output.getCanonicalFile().equals(file.getCanonicalFile()))
+            throw new IOException("output file is the input file");
+        modelFile.save(output, model, outputVersion);
+        result.report.append("version ").append(modelFile.getVersion()).append(" -> ").append(outputVersion)
+                .append(", ").append(model.getStones().size()).append(" stones -> ").append(output.getPath());
+    }
+
+    private void stats(File file, Result result) throws IOException {
+        Model model = new Model(obj3dStones);
+        ModelFile modelFile = new ModelFile();
+        modelFile.load(file, model);
+        StoneStore stones = model.getStones();
+
+        TreeMap<Integer, Integer> types = new TreeMap<Integer, Integer>();
+        TreeMap<Integer, Integer> colors = new TreeMap<Integer, Integer>();
+        Math3d.Int3 min = new Math3d.Int3(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Math3d.Int3 max = new Math3d.Int3(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        for (int i = 0; i < stones.size(); i++) {
+            increment(types, stones.getType(i));
+            increment(colors, stones.getColor(i));
+            min.x = Math.min(min.x, stones.getX(i));
+            min.y = Math.min(min.y, stones.getY(i));
+            min.z = Math.min(min.z, stones.getZ(i));
+            max.x = Math.max(max.x, stones.getX(i));
+            max.y = Math.max(max.y, stones.getY(i));
+            max.z = Math.max(max.z, stones.getZ(i));
+        }
+        result.report.append("version ").append(modelFile.getVersion()).append(", ").append(stones.size())
+                .append(" stones, ").append(model.getSelectionGroups().size()).append(" groups");
+        if (stones.size() > 0)
+            result.report.append("\n  extent: (").append(min.x).append(", ").append(min.y).append(", ")
+                    .append(min.z).append(") .. (").append(max.x).append(", ").append(max.y).append(", ")
+                    .append(max.z).append(")");
+        appendCounts(result, "types", types);
+        appendCounts(result, "colors", colors);
+    }
+
+    private void time(File file, Result result) throws IOException {
+        long[] loadTimes = new long[numRuns];
+        long[] saveTimes = new long[numRuns];
+        int numStones = 0;
+        long t;
+        for (int i = 0; i < numRuns; i++) {
+            Model model = new Model(obj3dStones);
+            t = System.nanoTime();
+            new ModelFile().load(file, model);
+            loadTimes[i] = System.nanoTime() - t;
+            t = System.nanoTime();
+            model.saveToBuffer();
+            saveTimes[i] = System.nanoTime() - t;
+            numStones = model.getStones().size();
+        }
+        Arrays.sort(loadTimes);
+        Arrays.sort(saveTimes);
+        long load = loadTimes[numRuns / 2];
+        result.report.append(numStones).append(" stones, load ").append(millis(loadTimes[0])).append(" / ")
+                .append(millis(load)).append(" ms (min / median), save ").append(millis(saveTimes[0]))
+                .append(" / ").append(millis(saveTimes[numRuns / 2])).append(" ms, ")
+                .append(load > 0 ? (long) (numStones * 1e9 / load) : 0).append(" stones/s");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    private static void increment(Map<Integer, Integer> counts, int key) {
+        Integer n = counts.get(key);
+        counts.put(key, n == null ? 1 : n + 1);
+    }
+
+    private static void appendCounts(Result result, String caption, Map<Integer, Integer> counts) {
+        result.report.append("\n  ").append(caption).append(':');
+        for (Iterator<Map.Entry<Integer, Integer>> it = counts.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Integer> entry = it.next();
+            result.report.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * timers and counters of the last HISTORY frames: the time of every phase of
+ * Graphics.display(..) (nanoseconds), the number of draw calls, of drawn
+ * stones, of stones culled by the view-frustum and the bytes allocated by
+ * the rendering thread. a frame is
+ * recorded by begin(), endPhase(..) after each phase and end(); the phases
+ * are timed back to back (cpu time of issuing the gl commands; the gpu
+ * works asynchronously). the history can be written as CSV or JSON.
+ */
+public class FrameStats {
+    // ** phases of a frame **
+    public static final int CAMERA = 0;
+    public static final int RAY = 1; // matrices for the picking-ray
+    public static final int MODEL = 2;
+    public static final int PREVIEW = 3;
+    public static final int GRID = 4;
+    public static final int MOVE_TOOL = 5;
+    public static final int OVERLAY = 6;
+    public static final int NUM_PHASES = 7;
+
+    public static final String[] PHASE_NAMES = { "camera", "ray", "model", "preview", "grid", "movetool",
+            "overlay" };
+
+    /**
+     * number of frames kept
+     */
+    public static final int HISTORY = 600;
+
+    // ** current frame (rendering thread only) **
+    private long frameStart, phaseStart;
+    private long[] phases = new long[NUM_PHASES];
+    private int drawCalls, stones, culled;
+    private long allocatedStart;
+
+    // ** history (ring buffer, guarded by this) **
+    private long[] historyTimestamp = new long[HISTORY]; // ms since epoch
+    private long[] historyFrame = new long[HISTORY]; // ns
+    private long[] historyPhases = new long[HISTORY * NUM_PHASES]; // ns
+    private int[] historyDrawCalls = new int[HISTORY];
+    private int[] historyStones = new int[HISTORY];
+    private int[] historyCulled = new int[HISTORY];
+    private long[] historyAllocated = new long[HISTORY]; // bytes, -1 if unknown
+    private int next = 0; // slot of the next frame
+    private int size = 0;
+
+    private com.sun.management.ThreadMXBean threads = null;
+
+    public FrameStats() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            if (!threads.isThreadAllocatedMemorySupported())
+                threads = null;
+            else if (!threads.isThreadAllocatedMemoryEnabled())
+                threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads != null ? threads.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    public void begin() {
+        Arrays.fill(phases, 0);
+        drawCalls = 0;
+        stones = 0;
+        culled = 0;
+        allocatedStart = allocatedBytes();
+        frameStart = phaseStart = System.nanoTime();
+    }
+
+    /**
+     * adds the time since the end of the previous phase (or begin()) to the
+     * given phase
+     */
+    public void endPhase(int phase) {
+        long t = System.nanoTime();
+        phases[phase] += t - phaseStart;
+        phaseStart = t;
+    }
+
+    public void count(int drawCalls, int stones) {
+        this.drawCalls += drawCalls;
+        this.stones += stones;
+    }
+
+    public void countCulled(int stones) {
+        culled += stones;
+    }
+
+    public void end() {
+        long frame = System.nanoTime() - frameStart;
+        long allocated = allocatedStart >= 0 ? allocatedBytes() - allocatedStart : -1;
+        synchronized (this) {
+            historyTimestamp[next] = System.currentTimeMillis();
+            historyFrame[next] = frame;
+            System.arraycopy(phases, 0, historyPhases, next * NUM_PHASES, NUM_PHASES);
+            historyDrawCalls[next] = drawCalls;
+            historyStones[next] = stones;
+            historyCulled[next] = culled;
+            historyAllocated[next] = allocated;
+            next = (next + 1) % HISTORY;
+            if (size < HISTORY)
+                size++;
+        }
+    }
+
+    /**
+     * slot of the i-th frame of the history (0: oldest)
+     */
+    private int slot(int i) {
+        return (next - size + i + HISTORY) % HISTORY;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * time of the last frame (ns)
+     */
+    public synchronized long getLastFrame() {
+        return size > 0 ? historyFrame[slot(size - 1)] : 0;
+    }
+
+    public synchronized long getMaxFrame() {
+        long max = 0;
+        for (int i = 0; i < size; i++)
+            max = Math.max(max, historyFrame[slot(i)]);
+        return max;
+    }
+
+    public synchronized double getAverageFrame() {
+        long sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += historyFrame[slot(i)];
+        return size > 0 ? (double) sum / size : 0.0;
+    }
+
+    public synchronized double getAveragePhase(int phase) {
+        long sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += historyPhases[slot(i) * NUM_PHASES + phase];
+        return size > 0 ? (double) sum / size : 0.0;
+    }
+
+    public synchronized int getLastDrawCalls() {
+        return size > 0 ? historyDrawCalls[slot(size - 1)] : 0;
+    }
+
+    public synchronized int getLastStones() {
+        return size > 0 ? historyStones[slot(size - 1)] : 0;
+    }
+
+    public synchronized int getLastCulled() {
+        return size > 0 ? historyCulled[slot(size - 1)] : 0;
+    }
+
+    /**
+     * bytes allocated by the rendering thread during the last frame (-1, if
+     * not supported by the vm)
+     */
+    public synchronized long getLastAllocated() {
+        return size > 0 ? historyAllocated[slot(size - 1)] : -1;
+    }
+
+    /**
+     * one line per frame (oldest first); times in ns
+     */
+    public synchronized void writeCsv(Writer out) throws IOException {
+        out.write("timestamp,frame");
+        for (int p = 0; p < NUM_PHASES; p++)
+            out.write("," + PHASE_NAMES[p]);
+        out.write(",drawcalls,stones,culled,allocated\n");
+        int s;
+        for (int i = 0; i < size; i++) {
+            s = slot(i);
+            StringBuilder line = new StringBuilder();
+            line.append(historyTimestamp[s]).append(',').append(historyFrame[s]);
+            for (int p = 0; p < NUM_PHASES; p++)
+                line.append(',').append(historyPhases[s * NUM_PHASES + p]);
+            line.append(',').append(historyDrawCalls[s]).append(',').append(historyStones[s]).append(',')
+                    .append(historyCulled[s]).append(',').append(historyAllocated[s]).append('\n');
+            out.write(line.toString());
+        }
+    }
+
+    /**
+     * array of objects, one per frame (oldest first); times in ns
+     */
+    public synchronized void writeJson(Writer out) throws IOException {
+        out.write("[");
+        int s;
+        for (int i = 0; i < size; i++) {
+            s = slot(i);
+            StringBuilder line = new StringBuilder();
+            line.append(i > 0 ? ",\n " : "\n ").append("{\"timestamp\": ").append(historyTimestamp[s])
+                    .append(", \"frame\": ").append(historyFrame[s]);
+            for (int p = 0; p < NUM_PHASES; p++)
+                line.append(", \"").append(PHASE_NAMES[p]).append("\": ").append(historyPhases[s * NUM_PHASES + p]);
+            line.append(", \"drawcalls\": ").append(historyDrawCalls[s]).append(", \"stones\": ")
+                    .append(historyStones[s]).append(", \"culled\": ").append(historyCulled[s])
+                    .append(", \"allocated\": ").append(historyAllocated[s]).append('}');
+            out.write(line.toString());
+        }
+        out.write("\n]\n");
+    }
+
+    /**
+     * writes the history to file; the format is given by the extension
+     * (".json", otherwise CSV)
+     */
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            if (file.getName().endsWith(".json"))
+                writeJson(out);
+            else
+                writeCsv(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+/**
+ * view-frustum of the camera as six planes (left, right, bottom, top, near,
+ * far; normals pointing inwards), extracted from the modelview- and
+ * projection-matrix (column-major, as read by glGetDoublev(..)). works for
+ * the perspective and the orthographic projections.
+ */
+public class Frustum {
+    private double[] planes = new double[24]; // a, b, c, d per plane
+    private double[] clip = new double[16];
+
+    public Frustum() {
+        // everything is inside, until set(..) is called
+        for (int p = 0; p < 6; p++)
+            planes[4 * p + 3] = 1.0;
+    }
+
+    /**
+     * extracts the planes from clip = projection * modelView
+     */
+    public void set(double[] modelView, double[] projection) {
+        for (int col = 0; col < 4; col++)
+            for (int row = 0; row < 4; row++)
+                clip[4 * col + row] = projection[row] * modelView[4 * col]
+                        + projection[4 + row] * modelView[4 * col + 1]
+                        + projection[8 + row] * modelView[4 * col + 2]
+                        + projection[12 + row] * modelView[4 * col + 3];
+        // plane = row 3 +/- row i of the clip-matrix
+        for (int p = 0; p < 6; p++) {
+            int row = p / 2;
+            double sign = p % 2 == 0 ? 1.0 : -1.0;
+            double a = clip[3] + sign * clip[row];
+            double b = clip[7] + sign * clip[4 + row];
+            double c = clip[11] + sign * clip[8 + row];
+            double d = clip[15] + sign * clip[12 + row];
+            double length = Math.sqrt(a * a + b * b + c * c);
+            if (length > 0.0) {
+                a /= length;
+                b /= length;
+                c /= length;
+                d /= length;
+            }
+            planes[4 * p] = a;
+            planes[4 * p + 1] = b;
+            planes[4 * p + 2] = c;
+            planes[4 * p + 3] = d;
+        }
+    }
+
+    /**
+     * false, if the box is completely outside of the frustum (conservative:
+     * boxes near the corners of the frustum may be reported as visible)
+     */
+    public boolean intersects(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        double a, b, c;
+        for (int p = 0; p < 24; p += 4) {
+            a = planes[p];
+            b = planes[p + 1];
+            c = planes[p + 2];
+            // corner of the box farthest in direction of the normal
+            if (a * (a > 0.0 ? maxX : minX) + b * (b > 0.0 ? maxY : minY) + c * (c > 0.0 ? maxZ : minZ)
+                    + planes[p + 3] < 0.0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * see intersects(..); box: min x, y, z, max x, y, z starting at
+     * boxes[6 * index]
+     */
+    public boolean intersects(double[] boxes, int index) {
+        int i = 6 * index;
+        return intersects(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3], boxes[i + 4], boxes[i + 5]);
+    }
+}
@@ -7,6 +7,8 @@
 
 import java.util.*;
 
+import javax.swing.*;
+
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.glu.*;
 import com.jogamp.opengl.util.texture.*;
@@ -23,9 +25,32 @@ public class Graphics implements GLEventListener {
 
     protected Object3d obj3dStones;
 
+    // ** stone rendering: baked chunks, instanced (if supported) or display-lists **
+    protected boolean bakedRendering = true;
+    private BakedStoneRenderer bakedStoneRenderer;
+    protected boolean instancedRendering = true;
+    private InstancedStoneRenderer instancedStoneRenderer;
+
+    // ** view-frustum culling of the chunks of the model (gl thread) **
+    protected boolean culling = true;
+    private Frustum frustum = new Frustum();
+    private boolean[] visibleChunks = new boolean[0];
+
     private GLU glu;
 
-    // ** intersection-ray ***
+    // ** timers and counters of the frames, rendered as overlay if showFrameStats **
+    protected FrameStats frameStats = new FrameStats();
+    protected volatile boolean showFrameStats = false;
+
+    // ** matrices of the last frame (gl thread) **
+    private int[] frameViewport = new int[4];
+    private double[] frameModelView = new double[16];
+    private double[] frameProjection = new double[16];
+
+    // ** intersection-ray (event dispatch thread); view is the copy of the
+    // matrices of the last frame (guarded by itself) **
+    private final double[] view = new double[36];
+    private GLU rayGlu = new GLU();
     int[] viewport = new int[4];
     double[] modelView = new double[16];
     double[] projection = new double[16];
@@ -40,6 +65,8 @@ public class Graphics implements GLEventListener {
 
         obj3dStones = new Object3d();
         obj3dStones.loadFromFile("stones.txt");
+        bakedStoneRenderer = new BakedStoneRenderer(obj3dStones);
+        instancedStoneRenderer = new InstancedStoneRenderer(obj3dStones);
 
         camera = new Camera();
     }
@@ -98,6 +125,7 @@ public class Graphics implements GLEventListener {
 
     public void display(GLAutoDrawable drawable) {
         GL2 gl = drawable.getGL().getGL2();
+        frameStats.begin();
 
         gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
 
@@ -115,9 +143,13 @@ public class Graphics implements GLEventListener {
         light0Dir[2] = (float) l0dir.z;
         light0Dir[3] = 0.0f; // for directional light w has to be 0*/
         gl.glLightfv(GL2.GL_LIGHT0, GL2.GL_POSITION, light0Dir, 0);
+        frameStats.endPhase(FrameStats.CAMERA);
+
+        // ***** publish matrices for the intersection-ray *****
+        publishView(gl);
+        frameStats.endPhase(FrameStats.RAY);
 
-        // ***** update intersection-ray *****
-        calculateIntersectionRay(gl);
+        SceneSnapshot scene = mainFrame.getGuiFSMReference().getScene();
 
         if (camera.mode != Camera.Mode.PERSPECTIVE)
             gl.glDisable(GL2.GL_LIGHTING);
@@ -126,51 +158,62 @@ public class Graphics implements GLEventListener {
         gl.glEnable(GL2.GL_TEXTURE_2D);
         textureStones.enable(gl);
         textureStones.bind(gl);
-        this.mainFrame.getGuiFSMReference().currentModel.render(gl);
-
-        // ***** update position of current stones *****
-        mainFrame.getGuiFSMReference().updatePlacementPos();
+        int numChunks = scene.stones.getNumChunks(), culled = 0;
+        if (visibleChunks.length < numChunks)
+            visibleChunks = new boolean[numChunks];
+        if (culling)
+            culled = scene.stones.cull(frustum, visibleChunks);
+        else
+            Arrays.fill(visibleChunks, true);
+        int drawn = scene.stones.getNumInstances() - culled;
+        if (bakedRendering) {
+            bakedStoneRenderer.update(scene.stones);
+            frameStats.count(bakedStoneRenderer.render(gl, visibleChunks), drawn);
+        } else if (instancedRendering && instancedStoneRenderer.isAvailable(gl)) {
+            instancedStoneRenderer.update(scene.stones);
+            frameStats.count(instancedStoneRenderer.render(gl, visibleChunks), drawn);
+        } else {
+            scene.stones.render(gl, obj3dStones, visibleChunks);
+            frameStats.count(drawn, drawn);
+        }
+        frameStats.countCulled(culled);
+        frameStats.endPhase(FrameStats.MODEL);
 
         // ***** draw current stones *****
-        GuiFSM guiFsm = mainFrame.getGuiFSMReference();
-        GraphicsHelper.setColor(gl, guiFsm.currentStonesColor);
+        GraphicsHelper.setColor(gl, scene.previewColor);
         gl.glPushMatrix();
-        Model.Stone stone;
-        for (Iterator<Model.Stone> it = guiFsm.currentStones.iterator(); it.hasNext();) {
-            stone = (Model.Stone) it.next();
-            obj3dStones.renderBySubId(gl, stone.type,
-                    stone.pos.x, 0.4 * stone.pos.y, stone.pos.z, 0, stone.rotation * 90.0, 0);
-        }
+        scene.renderPreview(gl, obj3dStones);
         gl.glPopMatrix();
         if (camera.mode != Camera.Mode.PERSPECTIVE)
             gl.glEnable(GL2.GL_LIGHTING);
+        frameStats.count(scene.getNumPreviewStones(), scene.getNumPreviewStones());
+        frameStats.endPhase(FrameStats.PREVIEW);
 
         // ***** render grid *****
         gl.glDisable(GL2.GL_TEXTURE_2D);
         gl.glDisable(GL2.GL_LIGHTING);
         gl.glLineWidth(0.5f);
         gl.glPushMatrix();
-        if (guiFsm.holdHeight) {
+        if (scene.holdHeight)
             gl.glColor3d(0.5, 0.3, 1.0);
-            gl.glTranslated(0.0, guiFsm.currentStonesPos.y * 0.4, 0.0);
-        } else {
+        else
             gl.glColor3d(0.75, 0.75, 0.75);
-            gl.glTranslated(0.0, guiFsm.getGridHeight() * 0.4, 0.0);
-        }
+        gl.glTranslated(0.0, scene.gridHeight * 0.4, 0.0);
         GraphicsHelper.grid3d(gl, 100.0, 1.0);
         gl.glPopMatrix();
         gl.glEnable(GL2.GL_TEXTURE_2D);
         gl.glEnable(GL2.GL_LIGHTING);
+        frameStats.count(1, 0);
+        frameStats.endPhase(FrameStats.GRID);
 
         // ***** render move-tool *****
-        if (guiFsm.renderMoveTool) {
+        if (scene.renderMoveTool) {
             gl.glDisable(GL2.GL_DEPTH_TEST);
             gl.glDisable(GL2.GL_TEXTURE_2D);
             gl.glDisable(GL2.GL_LIGHTING);
             gl.glLineWidth(3.0f);
             gl.glPushMatrix();
-            gl.glTranslated(guiFsm.moveToolPos.x, guiFsm.moveToolPos.y,
-                    guiFsm.moveToolPos.z);
+            gl.glTranslated(scene.moveToolX, scene.moveToolY, scene.moveToolZ);
             double length = 0.1 * camera.getZoom();
             gl.glBegin(GL2.GL_LINES);
             // x
@@ -217,25 +260,131 @@ public class Graphics implements GLEventListener {
             gl.glPopMatrix();
             gl.glEnable(GL2.GL_DEPTH_TEST);
             gl.glEnable(GL2.GL_LIGHTING);
+            frameStats.count(1, 0);
         }
+        frameStats.endPhase(FrameStats.MOVE_TOOL);
+
+        // ***** render frame statistics *****
+        if (showFrameStats)
+            renderFrameStats(gl);
+        frameStats.endPhase(FrameStats.OVERLAY);
+        frameStats.end();
 
         // gl.glFlush();
         drawable.swapBuffers();
     }
 
-    private void calculateIntersectionRay(GL2 gl) {
+    /**
+     * renders the timers (averages over the history, ms) and counters (last
+     * frame) of frameStats in the upper left corner
+     */
+    private void renderFrameStats(GL2 gl) {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "frame    %7.3f ms (avg %.3f, max %.3f)\n",
+                frameStats.getLastFrame() / 1e6, frameStats.getAverageFrame() / 1e6,
+                frameStats.getMaxFrame() / 1e6));
+        for (int p = 0; p < FrameStats.NUM_PHASES; p++)
+            text.append(String.format(Locale.ROOT, "%-8s %7.3f ms\n", FrameStats.PHASE_NAMES[p],
+                    frameStats.getAveragePhase(p) / 1e6));
+        text.append("draw calls ").append(frameStats.getLastDrawCalls()).append(", stones ")
+                .append(frameStats.getLastStones()).append(" (culled ").append(frameStats.getLastCulled())
+                .append(")");
+        long allocated = frameStats.getLastAllocated();
+        if (allocated >= 0)
+            text.append(", alloc ").append(allocated / 1024).append(" KB");
+        text.append("\nF3: hide, F4: write frame-stats.csv/.json");
+
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glOrtho(0.0, width, height, 0.0, -1.0, 1.0);
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glDisable(GL2.GL_DEPTH_TEST);
+        gl.glDisable(GL2.GL_LIGHTING);
+
+        // background
+        gl.glDisable(GL2.GL_TEXTURE_2D);
+        gl.glColor4d(0.0, 0.0, 0.0, 0.6);
+        gl.glBegin(GL2.GL_QUADS);
+        gl.glVertex3d(4.0, 4.0, 0.0);
+        gl.glVertex3d(4.0 + 8.0 * 60, 4.0, 0.0);
+        gl.glVertex3d(4.0 + 8.0 * 60, 8.0 + 13.0 * (FrameStats.NUM_PHASES + 3), 0.0);
+        gl.glVertex3d(4.0, 8.0 + 13.0 * (FrameStats.NUM_PHASES + 3), 0.0);
+        gl.glEnd();
+
+        // text
+        gl.glEnable(GL2.GL_TEXTURE_2D);
+        textureFont.enable(gl);
+        textureFont.bind(gl);
+        GraphicsHelper.text(gl, 6.0, 6.0, text.toString().toCharArray());
+
+        gl.glEnable(GL2.GL_LIGHTING);
+        gl.glEnable(GL2.GL_DEPTH_TEST);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+    }
+
+    /**
+     * copies the matrices of the current frame for updateIntersectionRay();
+     * if they have changed (e.g. the camera was moved), the scene is
+     * published again, since the placement of the preview depends on them.
+     * the view-frustum for culling is extracted from the same matrices.
+     */
+    private void publishView(GL2 gl) {
+        gl.glGetIntegerv(GL2.GL_VIEWPORT, frameViewport, 0);
+        gl.glGetDoublev(GL2.GL_MODELVIEW_MATRIX, frameModelView, 0);
+        gl.glGetDoublev(GL2.GL_PROJECTION_MATRIX, frameProjection, 0);
+        frustum.set(frameModelView, frameProjection);
+        boolean changed = false;
+        synchronized (view) {
+            for (int i = 0; i < 4; i++)
+                changed |= setView(i, frameViewport[i]);
+            for (int i = 0; i < 16; i++) {
+                changed |= setView(4 + i, frameModelView[i]);
+                changed |= setView(20 + i, frameProjection[i]);
+            }
+        }
+        if (changed)
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    mainFrame.forceRepaint();
+                }
+            });
+    }
+
+    private boolean setView(int index, double value) {
+        if (view[index] == value)
+            return false;
+        view[index] = value;
+        return true;
+    }
+
+    /**
+     * calculates the picking-ray through the mouse position with the matrices
+     * of the last frame (event dispatch thread)
+     */
+    public void updateIntersectionRay() {
         int mouseX = this.mainFrame.getGraphicsWindowsMousePosX();
         int mouseY = this.mainFrame.getGraphicsWindowsMousePosY();
         if (mouseX == -1 || mouseY == -1)
             return;
+        synchronized (view) {
+            for (int i = 0; i < 4; i++)
+                viewport[i] = (int) view[i];
+            System.arraycopy(view, 4, modelView, 0, 16);
+            System.arraycopy(view, 20, projection, 0, 16);
+        }
+        if (viewport[3] == 0)
+            return; // no frame rendered yet
         // ***** calc picking-ray *****
-        gl.glGetIntegerv(GL2.GL_VIEWPORT, viewport, 0);
-        gl.glGetDoublev(GL2.GL_MODELVIEW_MATRIX, modelView, 0);
-        gl.glGetDoublev(GL2.GL_PROJECTION_MATRIX, projection, 0);
         int windowX = mouseX;
         int windowY = viewport[3] - mouseY;
-        glu.gluUnProject(windowX, windowY, 0.0, modelView, 0, projection, 0, viewport, 0, posNear, 0);
-        glu.gluUnProject(windowX, windowY, 1.0, modelView, 0, projection, 0, viewport, 0, posFar, 0);
+        rayGlu.gluUnProject(windowX, windowY, 0.0, modelView, 0, projection, 0, viewport, 0, posNear, 0);
+        rayGlu.gluUnProject(windowX, windowY, 1.0, modelView, 0, projection, 0, viewport, 0, posFar, 0);
 
         // System.out.println("near: "+posNear[0]+" "+posNear[1]+" "+posNear[2]);
         // System.out.println("far: "+posFar [0]+" "+posFar [1]+" "+posFar [2]);
@@ -286,6 +435,10 @@ public class Graphics implements GLEventListener {
             this.textureStones.destroy(gl);
         }
 
+        bakedStoneRenderer.dispose(gl);
+        instancedStoneRenderer.dispose(gl);
+        obj3dStones.dispose(gl);
+
     }
 
 }
@@ -6,6 +6,7 @@
  */
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.texture.*;
@@ -300,35 +301,92 @@ public class GraphicsHelper {
         gl.glEnd();
     }
 
+    /**
+     * rgb of the stone colors (white, yellow, red, blue, black, green, brown,
+     * gray)
+     */
+    public static final float[][] COLORS = {
+            { 1.0f, 1.0f, 1.0f }, // white
+            { 1.0f, 1.0f, 0.0f }, // yellow
+            { 0.7f, 0.3f, 0.3f }, // red
+            { 0.0f, 0.0f, 1.0f }, // blue
+            { 0.3f, 0.3f, 0.3f }, // black
+            { 0.1f, 0.8f, 0.1f }, // green
+            { 0.5f, 0.3f, 0.0f }, // brown
+            { 0.6f, 0.6f, 0.6f } // gray
+    };
+
     public static void setColor(GL2 gl, int color) {
-        switch (color) {
-            case 0:
-                gl.glColor3d(1.0, 1.0, 1.0);
-                break; // white
-            case 1:
-                gl.glColor3d(1.0, 1.0, 0.0);
-                break; // yellow
-            case 2:
-                gl.glColor3d(0.7, 0.3, 0.3);
-                break; // red
-            case 3:
-                gl.glColor3d(0.0, 0.0, 1.0);
-                break; // blue
-            case 4:
-                gl.glColor3d(0.3, 0.3, 0.3);
-                break; // black
-            case 5:
-                gl.glColor3d(0.1, 0.8, 0.1);
-                break; // green
-            case 6:
-                gl.glColor3d(0.5, 0.3, 0.0);
-                break; // brown
-            case 7:
-                gl.glColor3d(0.6, 0.6, 0.6);
-                break; // gray
-            default:
-                System.out.println("Error: setColor(..): wrong color index");
+        if (color < 0 || color >= COLORS.length) {
+            System.out.println("Error: setColor(..): wrong color index");
+            return;
+        }
+        gl.glColor3f(COLORS[color][0], COLORS[color][1], COLORS[color][2]);
+    }
+
+    private static String loadText(String filename) throws IOException {
+        InputStream stream = GraphicsHelper.class.getResourceAsStream("/" + filename);
+        if (stream == null)
+            throw new FileNotFoundException(filename);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        StringBuilder text = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null)
+            text.append(line).append('\n');
+        reader.close();
+        return text.toString();
+    }
+
+    private static int compileShader(GL2 gl, int type, String filename) throws IOException {
+        int shader = gl.glCreateShader(type);
+        String[] source = { loadText(filename) };
+        gl.glShaderSource(shader, 1, source, null, 0);
+        gl.glCompileShader(shader);
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == GL2.GL_FALSE) {
+            byte[] log = new byte[4096];
+            int[] length = new int[1];
+            gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+            System.out.println("compileShader() failed (" + filename + "): "
+                    + new String(log, 0, length[0], StandardCharsets.UTF_8));
+            gl.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    /**
+     * compiles and links a glsl-program; attribute i is bound to
+     * attributes[i]. returns 0 on failure
+     */
+    public static int loadShaderProgram(GL2 gl, String vertexFilename, String fragmentFilename,
+            String[] attributes) {
+        try {
+            int vertexShader = compileShader(gl, GL2.GL_VERTEX_SHADER, vertexFilename);
+            int fragmentShader = compileShader(gl, GL2.GL_FRAGMENT_SHADER, fragmentFilename);
+            if (vertexShader == 0 || fragmentShader == 0)
+                return 0;
+            int program = gl.glCreateProgram();
+            gl.glAttachShader(program, vertexShader);
+            gl.glAttachShader(program, fragmentShader);
+            for (int i = 0; i < attributes.length; i++)
+                gl.glBindAttribLocation(program, i, attributes[i]);
+            gl.glLinkProgram(program);
+            gl.glDeleteShader(vertexShader);
+            gl.glDeleteShader(fragmentShader);
+            int[] status = new int[1];
+            gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+            if (status[0] == GL2.GL_FALSE) {
+                System.out.println("loadShaderProgram() failed (" + vertexFilename + ", " + fragmentFilename + ")");
+                gl.glDeleteProgram(program);
+                return 0;
+            }
+            return program;
+        } catch (Exception e) {
+            System.out.println("loadShaderProgram() failed (" + vertexFilename + ", " + fragmentFilename + ")");
         }
+        return 0;
     }
 
 }
@@ -175,6 +175,16 @@ public class GuiButtonListener implements ActionListener, ItemListener, ChangeLi
                 } catch (IOException exception) {
                 }
             }
+        } else if (src == mainFrame.jbImport) {
+            JFileChooser fileChooser = new JFileChooser();
+            if (fileChooser.showOpenDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
+                File file = fileChooser.getSelectedFile();
+                fileChooser.addChoosableFileFilter(new MyFileFilter());
+                try {
+                    mainFrame.getGuiFSMReference().signalImportFromFile(file);
+                } catch (IOException exception) {
+                }
+            }
         } else if (src == mainFrame.jbSave) {
             JFileChooser fileChooser = new JFileChooser();
             if (fileChooser.showSaveDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
@@ -30,7 +30,7 @@ public class GuiFSM {
 
     protected Model currentModel;
 
-    protected LinkedList<Model.Stone> currentStones = null;
+    protected ArrayList<Model.Stone> currentStones = new ArrayList<Model.Stone>();
     protected int currentStonesType = 432;
     protected int currentStonesColor = 0;
     protected Math3d.Int3 currentStonesPos = new Math3d.Int3();
@@ -40,6 +40,24 @@ public class GuiFSM {
     protected boolean currentStonesRectFilled = false;
     protected boolean currentStonesEdgeWall = false;
 
+    // ** state of the preview stones, see updateCurrentStones() **
+    private ArrayList<Model.Stone> currentStonesPool = new ArrayList<Model.Stone>();
+    private int[][] previewLayers = { new int[48], new int[48] }; // x, z, rotation per stone
+    private int[] previewLayerSize = new int[2];
+    private int previewLayer = 0; // layer written by addLayerStone(..)
+    private boolean previewValid = false;
+    private State previewState;
+    private int previewType, previewColor, previewRotation;
+    private boolean previewRectFilled, previewEdgeWall;
+    private int previewX, previewY, previewZ, previewDragX, previewDragZ;
+    private int previewRows;
+
+    // ** scene rendered by the gl thread, see publishScene() **
+    private volatile SceneSnapshot scene = null;
+    private SceneSnapshot.Stones sceneStones = null;
+    private Model sceneModel = null;
+    private int sceneModCount = 0;
+
     protected boolean viewRotating = false;
     protected Math3d.Int2 viewRotatingStartPos = new Math3d.Int2();
     protected boolean viewPanning = false;
@@ -52,9 +70,37 @@ public class GuiFSM {
         updateCurrentStones();
 
         currentModel = mainFrame.addModel();
+        publishScene();
+    }
+
+    /**
+     * updates the preview and publishes a new snapshot of the scene for the
+     * gl thread (called by GuiMainFrame.forceRepaint() on the event dispatch
+     * thread; the model and the preview must not be read by the gl thread).
+     * the stones are only copied if the model has changed.
+     */
+    public void publishScene() {
+        updatePlacementPos();
+        if (sceneStones == null || sceneModel != currentModel || sceneModCount != currentModel.getModCount()) {
+            sceneModel = currentModel;
+            sceneModCount = currentModel.getModCount();
+            sceneStones = SceneSnapshot.Stones.build(graphics.obj3dStones, currentModel.getStones(),
+                    currentModel.getPosition());
+        }
+        scene = new SceneSnapshot(sceneStones, SceneSnapshot.buildPreview(graphics.obj3dStones, currentStones),
+                currentStonesColor, holdHeight, holdHeight ? currentStonesPos.y : gridHeight, renderMoveTool,
+                moveToolPos);
+    }
+
+    /**
+     * last published snapshot of the scene (any thread)
+     */
+    public SceneSnapshot getScene() {
+        return scene;
     }
 
     public void updatePlacementPos() {
+        graphics.updateIntersectionRay();
         Math3d.Int3 pos;
         if (graphics.camera.mode == Camera.Mode.PERSPECTIVE) {
             pos = currentModel.getPlacementPos(
@@ -93,16 +139,8 @@ public class GuiFSM {
                 pos.x = value;
             else
                 pos.z = value;
-            if (insert) {
-                Model.Stone stone = new Model.Stone();
-                stone.type = currentStonesType;
-                stone.color = currentStonesColor;
-                stone.rotation = currentStonesRotation;
-                if (rotated)
-                    stone.rotation++;
-                stone.pos.set(pos);
-                currentStones.add(stone);
-            }
+            if (insert)
+                addLayerStone(pos, rotated ? currentStonesRotation + 1 : currentStonesRotation);
         }
         int offset = 0;
         if (diff >= stoneWidth)
@@ -139,8 +177,98 @@ public class GuiFSM {
         }
     }
 
+    /**
+     * updates the preview stones (currentStones). all rows of the preview
+     * differ only in height and in the parity of their pattern, so only the
+     * pattern of an even and an odd row is generated (if cursor, drag
+     * position, type, rotation, color or mode have changed) and copied into
+     * the rows. if only the stack height changes, rows are added or removed;
+     * if nothing has changed, nothing is done. the stone instances are pooled
+     * and reused.
+     */
     public final void updateCurrentStones() {
-        currentStones = new LinkedList<Model.Stone>();
+        boolean dragging = state == State.INSERT_DRAGGING;
+        int numRows = (state == State.INSERT || dragging) ? Math.max(currentStonesStackHeight, 0) : 0;
+        boolean layersChanged = !previewValid || previewState != state
+                || previewType != currentStonesType || previewColor != currentStonesColor
+                || previewRotation != currentStonesRotation
+                || previewRectFilled != currentStonesRectFilled || previewEdgeWall != currentStonesEdgeWall
+                || previewX != currentStonesPos.x || previewZ != currentStonesPos.z
+                || (dragging && (previewDragX != currentStonesDragPos.x || previewDragZ != currentStonesDragPos.z));
+        if (!layersChanged && previewY == currentStonesPos.y && previewRows == numRows)
+            return;
+
+        // first row, that has to be (re)written
+        int firstRow;
+        if (layersChanged) {
+            buildLayers();
+            firstRow = 0;
+        } else if (previewY != currentStonesPos.y)
+            firstRow = 0;
+        else
+            firstRow = Math.min(previewRows, numRows);
+
+        previewValid = true;
+        previewState = state;
+        previewType = currentStonesType;
+        previewColor = currentStonesColor;
+        previewRotation = currentStonesRotation;
+        previewRectFilled = currentStonesRectFilled;
+        previewEdgeWall = currentStonesEdgeWall;
+        previewX = currentStonesPos.x;
+        previewY = currentStonesPos.y;
+        previewZ = currentStonesPos.z;
+        previewDragX = currentStonesDragPos.x;
+        previewDragZ = currentStonesDragPos.z;
+        previewRows = numRows;
+
+        int sizeY = Model.Stone.getSizeY(currentStonesType);
+        int n = 0;
+        for (int row = 0; row < firstRow; row++)
+            n += previewLayerSize[row % 2];
+        int[] layer;
+        Model.Stone stone;
+        for (int row = firstRow; row < numRows; row++) {
+            layer = previewLayers[row % 2];
+            for (int i = 0; i < previewLayerSize[row % 2] * 3; i += 3) {
+                if (n == currentStonesPool.size())
+                    currentStonesPool.add(new Model.Stone());
+                stone = currentStonesPool.get(n);
+                stone.type = currentStonesType;
+                stone.color = currentStonesColor;
+                stone.rotation = layer[i + 2];
+                stone.pos.set(layer[i], currentStonesPos.y + row * sizeY, layer[i + 1]);
+                if (n == currentStones.size())
+                    currentStones.add(stone);
+                n++;
+            }
+        }
+        while (currentStones.size() > n)
+            currentStones.remove(currentStones.size() - 1);
+    }
+
+    /**
+     * appends a stone to the current preview layer (only x and z of pos are
+     * used)
+     */
+    private void addLayerStone(Math3d.Int3 pos, int rotation) {
+        int[] layer = previewLayers[previewLayer];
+        int i = previewLayerSize[previewLayer]++ * 3;
+        if (i + 3 > layer.length) {
+            layer = Arrays.copyOf(layer, layer.length * 2);
+            previewLayers[previewLayer] = layer;
+        }
+        layer[i] = pos.x;
+        layer[i + 1] = pos.z;
+        layer[i + 2] = rotation;
+    }
+
+    /**
+     * generates the pattern of an even (layer 0) and an odd (layer 1) row of
+     * the preview at height 0
+     */
+    private void buildLayers() {
+        previewLayerSize[0] = previewLayerSize[1] = 0;
 
         Math3d.Int3 stoneSize = new Math3d.Int3(
                 Model.Stone.getSizeX(currentStonesType),
@@ -158,35 +286,19 @@ public class GuiFSM {
         Math3d.Int3 pos = new Math3d.Int3();
 
         if (state == State.INSERT) {
-            Model.Stone stone;
             pos.x = currentStonesPos.x;
             pos.z = currentStonesPos.z;
-            for (pos.y = currentStonesPos.y; pos.y < stoneSize.y * currentStonesStackHeight
-                    + currentStonesPos.y; pos.y += stoneSize.y) {
-                stone = new Model.Stone();
-                stone.type = currentStonesType;
-                stone.color = currentStonesColor;
-                stone.rotation = currentStonesRotation;
-                stone.pos.set(pos);
-                currentStones.add(stone);
-            }
+            for (previewLayer = 0; previewLayer < 2; previewLayer++)
+                addLayerStone(pos, currentStonesRotation);
         } else if (state == State.INSERT_DRAGGING) {
-            Model.Stone stone = new Model.Stone();
-            stone.type = currentStonesType;
-            stone.color = currentStonesColor;
-            stone.rotation = currentStonesRotation;
-            int row = -1;
-            for (pos.y = currentStonesPos.y; pos.y < stoneSize.y * currentStonesStackHeight
-                    + currentStonesPos.y; pos.y += stoneSize.y) {
-                row++;
+            for (int row = 0; row < 2; row++) {
+                previewLayer = row;
                 if (currentStonesRectFilled) {
                     pos.x = currentStonesPos.x;
                     while (true) {
                         pos.z = currentStonesPos.z;
                         while (true) {
-                            stone = stone.clone();
-                            stone.pos.set(pos);
-                            currentStones.add(stone);
+                            addLayerStone(pos, currentStonesRotation);
                             if (Math.abs(pos.z - currentStonesDragPos.z) >= stoneSize.z) {
                                 if (pos.z > currentStonesDragPos.z)
                                     pos.z -= stoneSize.z;
@@ -239,12 +351,7 @@ public class GuiFSM {
                         boolean easyWall = Math.abs(currentStonesDragPos.z - currentStonesPos.z) == 0;
                         if (row % 2 == 0) {
                             if (topWall || !(currentStonesEdgeWall && leftWall || currentStonesEdgeWall && rightWall)) {
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation;
-                                stone.pos.set(pos);
-                                currentStones.add(stone);
+                                addLayerStone(pos, currentStonesRotation);
                             }
                             if (easyWall)
                                 insertStoneLineOfRect(pos, currentStonesDragPos.x, stoneSize.x, stoneSize.z, true,
@@ -270,12 +377,7 @@ public class GuiFSM {
                             else
                                 tmpPos.z--;
                             if (!easyWall && !currentStonesEdgeWall) {
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation + 1;
-                                stone.pos.set(tmpPos);
-                                currentStones.add(stone);
+                                addLayerStone(tmpPos, currentStonesRotation + 1);
                             }
                             if (easyWall) {
                                 tmpPos = pos.clone();
@@ -283,12 +385,7 @@ public class GuiFSM {
                                     tmpPos.x += 2;
                                 else
                                     tmpPos.x -= 2;
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation;
-                                stone.pos.set(tmpPos);
-                                currentStones.add(stone);
+                                addLayerStone(tmpPos, currentStonesRotation);
                                 insertStoneLineOfRect(tmpPos, currentStonesDragPos.x, stoneSize.x, stoneSize.z, true,
                                         topWall, false, DC, down);
                             } else {
@@ -307,12 +404,7 @@ public class GuiFSM {
                         if (row % 2 == 0) {
                             if (leftWall
                                     || !(currentStonesEdgeWall && topWall || currentStonesEdgeWall && bottomWall)) {
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation;
-                                stone.pos.set(pos);
-                                currentStones.add(stone);
+                                addLayerStone(pos, currentStonesRotation);
                             }
                             if (easyWall)
                                 insertStoneLineOfRect(pos, currentStonesDragPos.z, stoneSize.x, stoneSize.z, false,
@@ -338,12 +430,7 @@ public class GuiFSM {
                             else
                                 tmpPos.z++;
                             if (!easyWall && !currentStonesEdgeWall) {
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation + 1;
-                                stone.pos.set(tmpPos);
-                                currentStones.add(stone);
+                                addLayerStone(tmpPos, currentStonesRotation + 1);
                             }
                             if (easyWall) {
                                 tmpPos = pos.clone();
@@ -351,12 +438,7 @@ public class GuiFSM {
                                     tmpPos.z += 2;
                                 else
                                     tmpPos.z -= 2;
-                                stone = new Model.Stone();
-                                stone.type = currentStonesType;
-                                stone.color = currentStonesColor;
-                                stone.rotation = currentStonesRotation;
-                                stone.pos.set(tmpPos);
-                                currentStones.add(stone);
+                                addLayerStone(tmpPos, currentStonesRotation);
                                 insertStoneLineOfRect(tmpPos, currentStonesDragPos.z, stoneSize.x, stoneSize.z, false,
                                         leftWall, false, right, DC);
                             } else {
@@ -379,7 +461,7 @@ public class GuiFSM {
 
     public void signalDuplicateSelection(Math3d.Int3 transformation) {
         if (this.state == State.SELECT) {
-            currentModel.duplicateSelectedStones(transformation, currentInsertID++);
+            printOverlaps("duplicate", currentModel.duplicateSelectedStones(transformation, currentInsertID++));
             this.mainFrame.forceRepaint();
         }
     }
@@ -533,6 +615,7 @@ public class GuiFSM {
             doubleClick = true;
         if (state == State.SELECT) {
             // ***** picking *****
+            graphics.updateIntersectionRay();
             Math3d.Double3 center;
             if (graphics.camera.mode == Camera.Mode.PERSPECTIVE)
                 center = currentModel.pick(additiveSelection, doubleClick, graphics.camera.getEyePos(),
@@ -558,18 +641,45 @@ public class GuiFSM {
 
     public void signalMouseReleased() {
         if (state == State.INSERT_DRAGGING) {
-            Model.Stone stone;
-            for (Iterator<Model.Stone> it = currentStones.iterator(); it.hasNext();) {
-                stone = (Model.Stone) it.next();
-                this.currentModel.insertStone(-1, currentInsertID, stone.color, stone.type,
-                        stone.pos.x, stone.pos.y, stone.pos.z, stone.rotation);
-            }
+            // all stones of the drag are inserted (and undone) at once; overlapping stones are skipped
+            this.currentModel.insertStones(currentStones, currentInsertID);
             currentInsertID++;
             this.state = State.INSERT;
             this.mainFrame.forceRepaint();
         }
     }
 
+    public void signalUndo() {
+        if (state != State.INSERT_DRAGGING && currentModel.undo())
+            this.mainFrame.forceRepaint();
+    }
+
+    public void signalRedo() {
+        if (state != State.INSERT_DRAGGING && currentModel.redo())
+            this.mainFrame.forceRepaint();
+    }
+
+    public void signalToggleFrameStats() {
+        graphics.showFrameStats = !graphics.showFrameStats;
+        this.mainFrame.forceRepaint();
+    }
+
+    /**
+     * writes the timers and counters of the last frames to frame-stats.csv
+     * and frame-stats.json (working directory)
+     */
+    public void signalWriteFrameStats() {
+        File[] files = { new File("frame-stats.csv"), new File("frame-stats.json") };
+        try {
+            for (int i = 0; i < files.length; i++)
+                graphics.frameStats.write(files[i]);
+            System.out.println("frame statistics (" + graphics.frameStats.size() + " frames) written to "
+                    + files[0].getAbsolutePath() + " and " + files[1].getName());
+        } catch (IOException e) {
+            System.out.println("writing frame statistics failed: " + e.getMessage());
+        }
+    }
+
     public void signalUnionSelection() {
         this.currentModel.unionSelection();
     }
@@ -685,7 +795,8 @@ public class GuiFSM {
     }
 
     public void signalMoveSelectedStones(Math3d.Int3 transformation) {
-        currentModel.moveSelectedStones(transformation);
+        if (!currentModel.moveSelectedStones(transformation))
+            System.out.println("move: the selection would overlap other stones");
         mainFrame.forceRepaint();
     }
 
@@ -707,70 +818,59 @@ public class GuiFSM {
     }
 
     public void signalClearEverything() {
-        currentModel = new Model(mainFrame.graphics);
+        currentModel = new Model(mainFrame.graphics.obj3dStones);
         mainFrame.forceRepaint();
     }
 
     public boolean signalLoadFromFile(File file) throws IOException {
         signalClearEverything();
 
-        FileInputStream fileIn = new FileInputStream(file);
-        DataInputStream dataIn = new DataInputStream(fileIn);
-
-        // read identifier
-        if (dataIn.readInt() != 0x424C4353) {
-            System.out.println("wrong file type");
-            dataIn.close();
-            fileIn.close();
-            return false;
-        }
-        // read file-format-version
-        if (dataIn.readInt() != 0x01) {
-            System.out.println("wrong file-format-version");
-            dataIn.close();
-            fileIn.close();
+        ModelFile modelFile = new ModelFile();
+        try {
+            modelFile.load(file, currentModel);
+        } catch (ModelFile.FormatException e) {
+            System.out.println(e.getMessage());
             return false;
         }
-
-        // read current insert id
-        currentInsertID = dataIn.readInt();
-
-        // read number of models
-        // TBD: SUPPORT MORE THAN ONE MODELS
-
-        // read current model
-        currentModel.loadFromFile(0x01, dataIn);
-
-        dataIn.close();
-        fileIn.close();
+        currentInsertID = modelFile.getCurrentInsertID();
+        printOverlaps("load", currentModel.getOverlapReport());
 
         mainFrame.forceRepaint();
 
         return true;
     }
 
-    public void signalSaveToFile(File file) throws IOException {
-        FileOutputStream fileOut = new FileOutputStream(file);
-        DataOutputStream dataOut = new DataOutputStream(fileOut);
-
-        // write identifier
-        dataOut.writeInt(0x424C4353); // "BLCS" - ASCII
-        // write file-format-version
-        dataOut.writeInt(0x01);
-
-        // write current insert id
-        dataOut.writeInt(currentInsertID);
+    /**
+     * inserts the stones of a file into the current model (as one edit with
+     * a new insert id)
+     */
+    public boolean signalImportFromFile(File file) throws IOException {
+        Model source = new Model(mainFrame.graphics.obj3dStones);
+        try {
+            new ModelFile().load(file, source);
+        } catch (ModelFile.FormatException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        printOverlaps("import", currentModel.importModel(source, currentInsertID++));
 
-        // write number of models
-        // dataOut.writeInt(mainFrame.models.size());
+        mainFrame.forceRepaint();
 
-        // TBD: SUPPORT MORE THAN ONE MODEL
+        return true;
+    }
 
-        // write current model
-        currentModel.saveToFile(0x01, dataOut);
+    private void printOverlaps(String operation, OverlapChecker.Report report) {
+        if (report.size() == 0)
+            return;
+        System.out.println(operation + ": " + report.size() + " overlapping stones");
+        for (int i = 0; i < report.size(); i++)
+            System.out.println("  " + report.getFirst(i) + " / " + report.getSecond(i));
+    }
 
-        dataOut.close();
-        fileOut.close();
+    public void signalSaveToFile(File file) throws IOException {
+        ModelFile modelFile = new ModelFile();
+        modelFile.setCurrentInsertID(currentInsertID);
+        modelFile.save(file, currentModel);
     }
 
 }
@@ -92,6 +92,22 @@ public class GuiKeyboardListener implements KeyEventDispatcher {
                 case KeyEvent.VK_R:
                     guiFSM.signalKeyLetter('R');
                     break;
+                // undo / redo
+                case KeyEvent.VK_Z:
+                    if (e.isControlDown())
+                        guiFSM.signalUndo();
+                    break;
+                case KeyEvent.VK_Y:
+                    if (e.isControlDown())
+                        guiFSM.signalRedo();
+                    break;
+                // frame statistics
+                case KeyEvent.VK_F3:
+                    guiFSM.signalToggleFrameStats();
+                    break;
+                case KeyEvent.VK_F4:
+                    guiFSM.signalWriteFrameStats();
+                    break;
             }
 
             switch (keyCodeChar) {
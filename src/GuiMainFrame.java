@@ -23,7 +23,7 @@ public class GuiMainFrame extends JFrame {
             jbRotateCurrentStone, jbDeleteSelection,
             jbRotateViewLeft, jbRotateViewRight, jbRotateViewUp, jbRotateViewDown,
             jbMoveViewLeft, jbMoveViewRight, jbMoveViewUp, jbMoveViewDown,
-            jbNew, jbLoad, jbSave;
+            jbNew, jbLoad, jbImport, jbSave;
     protected JToggleButton jbSelect, jbInsert;
     protected JRadioButton jrRoom, jrWall, jrSlab;
     protected JList jlStoneType;
@@ -270,6 +270,9 @@ public class GuiMainFrame extends JFrame {
         jbLoad = new JButton("load");
         jbLoad.addActionListener(guiButtonListener);
         box.add(jbLoad);
+        jbImport = new JButton("import");
+        jbImport.addActionListener(guiButtonListener);
+        box.add(jbImport);
         jbSave = new JButton("save");
         jbSave.addActionListener(guiButtonListener);
         box.add(jbSave);
@@ -346,6 +349,8 @@ public class GuiMainFrame extends JFrame {
     }
 
     public void forceRepaint() {
+        if (this.guiFSM != null)
+            this.guiFSM.publishScene();
         this.glCanvas.repaint();
     }
 
@@ -366,7 +371,7 @@ public class GuiMainFrame extends JFrame {
     }
 
     public Model addModel() {
-        Model model = new Model(this.graphics);
+        Model model = new Model(this.graphics.obj3dStones);
         this.models.add(model);
         return model;
     }
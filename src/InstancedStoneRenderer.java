@@ -0,0 +1,210 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.nio.*;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.*;
+
+/**
+ * renders the stones of a scene snapshot with one instanced draw call per
+ * brick type. the per-instance data (position, rotation, color) of all stones
+ * is grouped by brick type (SceneSnapshot.Stones) and uploaded into a single
+ * vbo; it is only uploaded again if the snapshot contains other stones. the
+ * brick meshes are the vbos of Object3d.build(..). only the runs of visible
+ * chunks are drawn (SceneSnapshot.Stones.cull(..)); adjacent visible runs of
+ * a type are merged into one draw call. if instancing is not
+ * supported by the driver, isAvailable() returns false and
+ * SceneSnapshot.Stones.render(..) has to be used instead.
+ */
+public class InstancedStoneRenderer {
+    /**
+     * floats per instance: x, y, z, rotation (degrees), r, g, b
+     */
+    public static final int INSTANCE_SIZE = SceneSnapshot.INSTANCE_SIZE;
+
+    private static final String[] ATTRIBUTES = { "inPosition", "inNormal", "inTexCoord", "inInstance",
+            "inColor" };
+
+    private Object3d obj3d;
+
+    // ** instances of the last update(..) **
+    private SceneSnapshot.Stones stones = null;
+    private boolean uploaded = false;
+    private float[] uploadData = new float[0];
+
+    // ** gl resources **
+    private boolean initialized = false;
+    private boolean available = false;
+    private int program = 0;
+    private int lightingLocation, textureLocation;
+    private int instanceVBO;
+    private int instanceVBOCapacity = 0;
+    private FloatBuffer instanceBuffer = null;
+
+    public InstancedStoneRenderer(Object3d obj3d) {
+        this.obj3d = obj3d;
+    }
+
+    /**
+     * the stones to be rendered; the vbo is only uploaded again, if they are
+     * not the stones of the last call (snapshots share unchanged stones)
+     */
+    public void update(SceneSnapshot.Stones stones) {
+        if (stones == this.stones)
+            return;
+        this.stones = stones;
+        uploaded = false;
+    }
+
+    public int getNumInstances() {
+        return stones != null ? stones.getNumInstances() : 0;
+    }
+
+    /**
+     * perform only OpenGL-tasks! (shader, instance vbo)
+     */
+    private void init(GL2 gl) {
+        initialized = true;
+        if (!gl.isFunctionAvailable("glDrawElementsInstanced") || !gl.isFunctionAvailable("glVertexAttribDivisor")) {
+            System.out.println("InstancedStoneRenderer: instancing not supported");
+            return;
+        }
+        program = GraphicsHelper.loadShaderProgram(gl, "stone_instanced.vert", "stone_instanced.frag", ATTRIBUTES);
+        if (program == 0)
+            return;
+        lightingLocation = gl.glGetUniformLocation(program, "lighting");
+        textureLocation = gl.glGetUniformLocation(program, "stoneTexture");
+
+        if (!obj3d.isBuilt())
+            obj3d.build(gl);
+        int[] tmp = new int[1];
+        gl.glGenBuffers(1, tmp, 0);
+        instanceVBO = tmp[0];
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        available = true;
+    }
+
+    /**
+     * true, if the driver supports instancing (valid after the first render)
+     */
+    public boolean isAvailable(GL2 gl) {
+        if (!initialized)
+            init(gl);
+        return available;
+    }
+
+    private void upload(GL2 gl) {
+        int size = stones.getNumInstances() * INSTANCE_SIZE;
+        if (uploadData.length < size)
+            uploadData = new float[size];
+        stones.copyInstances(uploadData);
+        if (instanceBuffer == null || instanceBuffer.capacity() < size)
+            instanceBuffer = Buffers.newDirectFloatBuffer(Math.max(size, 1024));
+        instanceBuffer.clear();
+        instanceBuffer.put(uploadData, 0, size);
+        instanceBuffer.flip();
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instanceVBO);
+        if (size > instanceVBOCapacity) {
+            instanceVBOCapacity = instanceBuffer.capacity();
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) instanceVBOCapacity * Buffers.SIZEOF_FLOAT, null,
+                    GL2.GL_DYNAMIC_DRAW);
+        }
+        gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, 0, (long) size * Buffers.SIZEOF_FLOAT, instanceBuffer);
+        uploaded = true;
+    }
+
+    /**
+     * draws the instances of the visible chunks; the stone texture has to be
+     * bound already. returns the number of draw calls.
+     */
+    public int render(GL2 gl, boolean[] visible) {
+        if (!isAvailable(gl) || getNumInstances() == 0)
+            return 0;
+        if (!uploaded)
+            upload(gl);
+
+        gl.glUseProgram(program);
+        gl.glUniform1i(textureLocation, 0);
+        gl.glUniform1i(lightingLocation, gl.glIsEnabled(GL2.GL_LIGHTING) ? 1 : 0);
+        for (int i = 0; i < ATTRIBUTES.length; i++)
+            gl.glEnableVertexAttribArray(i);
+        gl.glVertexAttribDivisor(3, 1);
+        gl.glVertexAttribDivisor(4, 1);
+
+        Object3d.Mesh mesh;
+        int drawCalls = 0, start, count;
+        for (int type = 0; type < stones.getNumTypes(); type++) {
+            mesh = null;
+            start = count = 0;
+            for (int r = stones.getFirstRun(type); r < stones.getFirstRun(type + 1); r++) {
+                if (!visible[stones.getRunChunk(r)])
+                    continue;
+                if (count > 0 && start + count == stones.getRunStart(r)) {
+                    count += stones.getRunCount(r); // adjacent to the previous visible run
+                    continue;
+                }
+                if (count > 0) {
+                    drawInstances(gl, mesh, start, count);
+                    drawCalls++;
+                }
+                if (mesh == null) {
+                    mesh = obj3d.getMesh(type);
+                    bindMesh(gl, mesh);
+                }
+                start = stones.getRunStart(r);
+                count = stones.getRunCount(r);
+            }
+            if (count > 0) {
+                drawInstances(gl, mesh, start, count);
+                drawCalls++;
+            }
+        }
+
+        gl.glVertexAttribDivisor(3, 0);
+        gl.glVertexAttribDivisor(4, 0);
+        for (int i = 0; i < ATTRIBUTES.length; i++)
+            gl.glDisableVertexAttribArray(i);
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.glUseProgram(0);
+        return drawCalls;
+    }
+
+    private void bindMesh(GL2 gl, Object3d.Mesh mesh) {
+        int vertexStride = Object3d.Mesh.VERTEX_SIZE * Buffers.SIZEOF_FLOAT;
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getVBO());
+        gl.glVertexAttribPointer(0, 3, GL2.GL_FLOAT, false, vertexStride, 0);
+        gl.glVertexAttribPointer(1, 3, GL2.GL_FLOAT, false, vertexStride,
+                Object3d.Mesh.NORMAL_OFFSET * Buffers.SIZEOF_FLOAT);
+        gl.glVertexAttribPointer(2, 2, GL2.GL_FLOAT, false, vertexStride,
+                Object3d.Mesh.TEXCOORD_OFFSET * Buffers.SIZEOF_FLOAT);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.getIBO());
+    }
+
+    /**
+     * draws the instances [start, start + count) with the bound mesh
+     */
+    private void drawInstances(GL2 gl, Object3d.Mesh mesh, int start, int count) {
+        int instanceStride = INSTANCE_SIZE * Buffers.SIZEOF_FLOAT;
+        long offset = (long) start * instanceStride;
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instanceVBO);
+        gl.glVertexAttribPointer(3, 4, GL2.GL_FLOAT, false, instanceStride, offset);
+        gl.glVertexAttribPointer(4, 3, GL2.GL_FLOAT, false, instanceStride, offset + 4 * Buffers.SIZEOF_FLOAT);
+        gl.glDrawElementsInstanced(GL2.GL_TRIANGLES, mesh.getNumIndices(), GL2.GL_UNSIGNED_INT, 0, count);
+    }
+
+    public void dispose(GL2 gl) {
+        if (!available)
+            return;
+        gl.glDeleteBuffers(1, new int[] { instanceVBO }, 0);
+        gl.glDeleteProgram(program);
+        available = false;
+        initialized = false;
+        instanceVBOCapacity = 0;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+/**
+ * hash-map from int to int without key- and value-objects (open addressing
+ * with linear probing, entries are deleted by moving the following entries
+ * of the probe sequence back, as in StoneGrid). key and value of an entry
+ * are stored next to each other, so a lookup touches one cache line. values
+ * must not be -1, which is returned for missing keys.
+ */
+public class IntIntMap {
+    private int[] table; // key, value (-1 = empty entry)
+    private int mask; // number of entries - 1
+    private int size = 0;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    /**
+     * room for the given number of entries without growing
+     */
+    public IntIntMap(int capacity) {
+        int length = 16;
+        while (length < 2 * capacity)
+            length *= 2;
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        table = new int[2 * length];
+        mask = length - 1;
+        for (int i = 1; i < table.length; i += 2)
+            table[i] = -1;
+    }
+
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        return key;
+    }
+
+    /**
+     * position of key in the table, or of the empty entry where it belongs
+     */
+    private int find(int key) {
+        int i = hash(key) & mask;
+        while (table[2 * i + 1] != -1 && table[2 * i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        int[] old = table;
+        allocate(2 * (mask + 1));
+        for (int i = 0; i < old.length; i += 2)
+            if (old[i + 1] != -1) {
+                int j = find(old[i]);
+                table[2 * j] = old[i];
+                table[2 * j + 1] = old[i + 1];
+            }
+    }
+
+    /**
+     * value of key, or -1
+     */
+    public int get(int key) {
+        return table[2 * find(key) + 1];
+    }
+
+    public boolean containsKey(int key) {
+        return table[2 * find(key) + 1] != -1;
+    }
+
+    public void put(int key, int value) {
+        int i = find(key);
+        if (table[2 * i + 1] == -1) {
+            if (2 * (size + 1) > mask + 1) {
+                grow();
+                i = find(key);
+            }
+            table[2 * i] = key;
+            size++;
+        }
+        table[2 * i + 1] = value;
+    }
+
+    /**
+     * removes key; returns its value, or -1
+     */
+    public int remove(int key) {
+        int i = find(key);
+        int value = table[2 * i + 1];
+        if (value == -1)
+            return -1;
+        table[2 * i + 1] = -1;
+        size--;
+        // move entries of the probe sequence back, if i lies cyclically between their home and them
+        int j = i, home;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[2 * j + 1] == -1)
+                return value;
+            home = hash(table[2 * j]) & mask;
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                table[2 * i] = table[2 * j];
+                table[2 * i + 1] = table[2 * j + 1];
+                table[2 * j + 1] = -1;
+                i = j;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 1; i < table.length; i += 2)
+            table[i] = -1;
+        size = 0;
+    }
+}
@@ -109,6 +109,27 @@ public class Math3d {
             return ret;
         }
 
+        /**
+         * sets this vector to v0 - v1 (in place, v0 or v1 may be this)
+         */
+        public void setSub(Double3 v0, Double3 v1) {
+            set(v0.x - v1.x, v0.y - v1.y, v0.z - v1.z);
+        }
+
+        /**
+         * sets this vector to the cross product of vec0 and vec1 (in place,
+         * vec0 or vec1 may be this)
+         */
+        public void setCrossProduct(Double3 vec0, Double3 vec1) {
+            set(vec0.y * vec1.z - vec0.z * vec1.y,
+                    vec0.z * vec1.x - vec0.x * vec1.z,
+                    vec0.x * vec1.y - vec0.y * vec1.x);
+        }
+
+        public double dot(Double3 v) {
+            return x * v.x + y * v.y + z * v.z;
+        }
+
         public static Double3 crossProduct(Double3 vec0, Double3 vec1) {
             Double3 ret = new Double3();
             ret.x = vec0.y * vec1.z - vec0.z * vec1.y;
@@ -198,15 +219,84 @@ public class Math3d {
         }
 
         public void mulVec(Double3 vec) {
-            double w;
-            Double3 tmp = vec.clone();
-            vec.x = tmp.x * val[0][0] + tmp.y * val[1][0] + tmp.z * val[2][0] + 1.0 * val[3][0];
-            vec.y = tmp.x * val[0][1] + tmp.y * val[1][1] + tmp.z * val[2][1] + 1.0 * val[3][1];
-            vec.z = tmp.x * val[0][2] + tmp.y * val[1][2] + tmp.z * val[2][2] + 1.0 * val[3][2];
-            w = tmp.x * val[0][3] + tmp.y * val[1][3] + tmp.z * val[2][3] + 1.0 * val[3][3];
-            vec.x /= w;
-            vec.y /= w;
-            vec.z /= w;
+            double x = vec.x, y = vec.y, z = vec.z;
+            double w = x * val[0][3] + y * val[1][3] + z * val[2][3] + 1.0 * val[3][3];
+            vec.x = (x * val[0][0] + y * val[1][0] + z * val[2][0] + 1.0 * val[3][0]) / w;
+            vec.y = (x * val[0][1] + y * val[1][1] + z * val[2][1] + 1.0 * val[3][1]) / w;
+            vec.z = (x * val[0][2] + y * val[1][2] + z * val[2][2] + 1.0 * val[3][2]) / w;
+        }
+    }
+
+    /**
+     * 4x4-matrix in a flat array (no allocations): val[4 * i + j] is
+     * Double4x4.val[i][j], i.e. vectors are multiplied from the left and the
+     * translation is in val[12..14]. this is the memory layout of OpenGL
+     * (glLoadMatrixd(..), glGetDoublev(..)).
+     */
+    public static class Matrix4 {
+        public final double[] val = new double[16];
+        private final double[] tmp = new double[16]; // product of mul(..)
+
+        public Matrix4() {
+            identity();
+        }
+
+        public void identity() {
+            for (int i = 0; i < 16; i++)
+                val[i] = (i % 5 == 0) ? 1.0 : 0.0;
+        }
+
+        public void set(Matrix4 m) {
+            System.arraycopy(m.val, 0, val, 0, 16);
+        }
+
+        public void rotX(double rad) {
+            identity();
+            double c = Math.cos(rad), s = Math.sin(rad);
+            val[5] = c;
+            val[6] = s;
+            val[9] = -s;
+            val[10] = c;
+        }
+
+        public void rotY(double rad) {
+            identity();
+            double c = Math.cos(rad), s = Math.sin(rad);
+            val[0] = c;
+            val[2] = -s;
+            val[8] = s;
+            val[10] = c;
+        }
+
+        public void rotZ(double rad) {
+            identity();
+            double c = Math.cos(rad), s = Math.sin(rad);
+            val[0] = c;
+            val[1] = s;
+            val[4] = -s;
+            val[5] = c;
+        }
+
+        /**
+         * this = a * b (a or b may be this)
+         */
+        public void mul(Matrix4 a, Matrix4 b) {
+            double[] m = a.val, n = b.val;
+            for (int i = 0; i < 16; i += 4)
+                for (int j = 0; j < 4; j++)
+                    tmp[i + j] = m[i] * n[j] + m[i + 1] * n[4 + j] + m[i + 2] * n[8 + j] + m[i + 3] * n[12 + j];
+            System.arraycopy(tmp, 0, val, 0, 16);
+        }
+
+        /**
+         * transforms the point vec (in place; homogeneous division by w)
+         */
+        public void mulVec(Double3 vec) {
+            double x = vec.x, y = vec.y, z = vec.z;
+            double w = x * val[3] + y * val[7] + z * val[11] + val[15];
+            vec.x = (x * val[0] + y * val[4] + z * val[8] + val[12]) / w;
+            vec.y = (x * val[1] + y * val[5] + z * val[9] + val[13]) / w;
+            vec.z = (x * val[2] + y * val[6] + z * val[10] + val[14]) / w;
         }
     }
 
@@ -308,117 +398,62 @@ public class Math3d {
          * returns distance; no intersection, if distance < 0
          */
         public double rayIntersection(Double3 rayOrig, Double3 rayDir) {
-            boolean inside = true;
-            Int3 quadrant = new Int3(); // 0=left; 1=right; 2=middle
-            int whichPlane;
-            Double3 maxT = new Double3();
-            Double3 candidatePlane = new Double3();
-            Double3 coord = new Double3();
-            double tmp = 0.0;
-            // ** find candidate planes **
-            // x
-            if (rayOrig.x < min.x) {
-                quadrant.x = 0;
-                candidatePlane.x = min.x;
-                inside = false;
-            } else if (rayOrig.x > max.x) {
-                quadrant.x = 1;
-                candidatePlane.x = max.x;
-                inside = false;
-            } else
-                quadrant.x = 2;
-            // y
-            if (rayOrig.y < min.y) {
-                quadrant.y = 0;
-                candidatePlane.y = min.y;
-                inside = false;
-            } else if (rayOrig.y > max.y) {
-                quadrant.y = 1;
-                candidatePlane.y = max.y;
-                inside = false;
-            } else
-                quadrant.y = 2;
-            // z
-            if (rayOrig.z < min.z) {
-                quadrant.z = 0;
-                candidatePlane.z = min.z;
-                inside = false;
-            } else if (rayOrig.z > max.z) {
-                quadrant.z = 1;
-                candidatePlane.z = max.z;
-                inside = false;
-            } else
-                quadrant.z = 2;
-            // ** ray origin inside AABB ? **
-            if (inside) {
-                coord.set(rayOrig);
-                return 0.0;
+            return rayBox(rayOrig.x, rayOrig.y, rayOrig.z, rayDir.x, rayDir.y, rayDir.z,
+                    min.x, min.y, min.z, max.x, max.y, max.z);
+        }
+    }
+
+    /**
+     * distance along the ray to the point where it enters the box (slab
+     * method on raw doubles, nothing is allocated): 0 if the origin is inside
+     * the box, < 0 if the ray misses the box or the box is behind the origin.
+     * the distance is in units of the length of the direction.
+     */
+    public static double rayBox(double origX, double origY, double origZ, double dirX, double dirY, double dirZ,
+            double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        double tMin = 0.0, tMax = Double.MAX_VALUE, t0, t1, tmp;
+        // x
+        if (dirX != 0.0) {
+            t0 = (minX - origX) / dirX;
+            t1 = (maxX - origX) / dirX;
+            if (t0 > t1) {
+                tmp = t0;
+                t0 = t1;
+                t1 = tmp;
             }
-            // ** calculate T distances to candidate planes **
-            // x
-            if (quadrant.x != 2 && rayDir.x != 0.) // 2: middle
-                maxT.x = (candidatePlane.x - rayOrig.x) / rayDir.x;
-            else
-                maxT.x = -1.;
-            // y
-            if (quadrant.y != 2 && rayDir.y != 0.) // 2: middle
-                maxT.y = (candidatePlane.y - rayOrig.y) / rayDir.y;
-            else
-                maxT.y = -1.;
-            // z
-            if (quadrant.z != 2 && rayDir.z != 0.) // 2: middle
-                maxT.z = (candidatePlane.z - rayOrig.z) / rayDir.z;
-            else
-                maxT.z = -1.;
-            // ** get largest maxT-component for the final choice of intersection **
-            whichPlane = 0;
-            if (maxT.x > maxT.y && maxT.x > maxT.z)
-                whichPlane = 0;
-            else if (maxT.y > maxT.x && maxT.y > maxT.z)
-                whichPlane = 1;
-            else if (maxT.z > maxT.x && maxT.z > maxT.y)
-                whichPlane = 2;
-            // ** check if final candidate is inside box **
-            switch (whichPlane) {
-                case 0:
-                    tmp = maxT.x;
-                    if (maxT.x < 0.)
-                        return -1;
-                    break;
-                case 1:
-                    tmp = maxT.y;
-                    if (maxT.y < 0.)
-                        return -1;
-                    break;
-                case 2:
-                    tmp = maxT.z;
-                    if (maxT.z < 0.)
-                        return -1;
-                    break;
+            tMin = Math.max(tMin, t0);
+            tMax = Math.min(tMax, t1);
+        } else if (origX < minX || origX > maxX)
+            return -1.0;
+        // y
+        if (dirY != 0.0) {
+            t0 = (minY - origY) / dirY;
+            t1 = (maxY - origY) / dirY;
+            if (t0 > t1) {
+                tmp = t0;
+                t0 = t1;
+                t1 = tmp;
             }
-            // x
-            if (whichPlane != 0) {
-                coord.x = rayOrig.x + tmp * rayDir.x;
-                if (coord.x < min.x || coord.x > max.x)
-                    return -1;
-            } else
-                coord.x = candidatePlane.x;
-            // y
-            if (whichPlane != 1) {
-                coord.y = rayOrig.y + tmp * rayDir.y;
-                if (coord.y < min.y || coord.y > max.y)
-                    return -1;
-            } else
-                coord.y = candidatePlane.y;
-            // z
-            if (whichPlane != 2) {
-                coord.z = rayOrig.z + tmp * rayDir.z;
-                if (coord.z < min.z || coord.z > max.z)
-                    return -1;
-            } else
-                coord.z = candidatePlane.z;
-            return tmp;
-        }
+            tMin = Math.max(tMin, t0);
+            tMax = Math.min(tMax, t1);
+        } else if (origY < minY || origY > maxY)
+            return -1.0;
+        // z
+        if (dirZ != 0.0) {
+            t0 = (minZ - origZ) / dirZ;
+            t1 = (maxZ - origZ) / dirZ;
+            if (t0 > t1) {
+                tmp = t0;
+                t0 = t1;
+                t1 = tmp;
+            }
+            tMin = Math.max(tMin, t0);
+            tMax = Math.min(tMax, t1);
+        } else if (origZ < minZ || origZ > maxZ)
+            return -1.0;
+        if (tMin > tMax)
+            return -1.0;
+        return tMin;
     }
 
     public static double getIntersection(
@@ -6,21 +6,50 @@
  */
 
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import com.jogamp.opengl.*;
-
 public class Model {
     private int currentSelectionGroupID = 0;
-    private LinkedList<SelectionGroup> selectionGroups = new LinkedList<SelectionGroup>();
+    private LinkedHashMap<Integer, SelectionGroup> selectionGroups = new LinkedHashMap<Integer, SelectionGroup>();
 
-    private Graphics graphics;
+    private Object3d obj3dStones;
 
     private Math3d.Double3 pos = new Math3d.Double3(0, 0, 0);
-    private LinkedList<Stone> stones = null;
+    private StoneStore stones = null;
+    private StoneGrid grid = null;
+    private StoneBVH bvh = null;
+    private RayBoxBatch boxes = null; // world-space boxes by slot (brute-force ray-tests)
+
+    /**
+     * picking and placement test all stones one after the other (RayBoxBatch)
+     * instead of traversing the bvh, if the model has at most this many
+     * stones (only with the vector kernel; the scalar one is slower than the
+     * bvh even for a few stones)
+     */
+    public static final int BRUTE_FORCE_STONES = 24;
+
+    private int bruteForceStones = BRUTE_FORCE_STONES;
 
     private int currentStoneID = 0;
 
+    private static final OverlapChecker overlapChecker = new OverlapChecker();
+    private OverlapChecker.Report overlapReport = new OverlapChecker.Report(new int[0], 0);
+
+    private int modCount = 0; // increased on every change of stones or selection
+
+    /**
+     * default memory budget of the undo/redo-history (bytes)
+     */
+    public static final long JOURNAL_BUDGET = 32L << 20;
+
+    private ModelJournal journal = new ModelJournal(JOURNAL_BUDGET);
+
+    /**
+     * a single stone (the stones of a model are stored in a StoneStore; this
+     * class is used for copies and for the stones to be inserted)
+     */
     public static class Stone {
         public int id;
         public int insertID;
@@ -29,8 +58,6 @@ public class Model {
         public int rotation = 0;
         public Math3d.Int3 pos = new Math3d.Int3(0, 0, 0);
         public boolean selected = false;
-        public Math3d.AABB aabb = null;
-        private int obj3dIndex = 0; // increases performance
 
         public Stone() {
         }
@@ -53,39 +80,334 @@ public class Model {
             stone.insertID = insertID;
             stone.color = color;
             stone.type = type;
-            stone.obj3dIndex = obj3dIndex;
             stone.rotation = rotation;
             if (pos != null)
                 stone.pos = pos.clone();
             stone.selected = selected;
-            if (aabb != null)
-                stone.aabb = aabb.clone();
             return stone;
         }
     }
 
+    /**
+     * named set of stones (by id). the ids are kept in a dense list; their
+     * positions in the list are mapped (IntIntMap) when a stone is looked up
+     * or removed for the first time, so loading a group costs no hashing and
+     * later lookups and removals take constant time. removed stones are
+     * dropped from their groups by the model (removeStone(..)) and join them
+     * again, if the removal is undone; the number of groups of a stone is
+     * kept in the store.
+     */
     public class SelectionGroup {
         public int id;
         public String name = "";
-        public LinkedList<Stone> stones = null;
+        private int[] stoneIDs;
+        private int size = 0;
+        private IntIntMap positions = null;
+
+        private SelectionGroup(int capacity) {
+            stoneIDs = new int[Math.max(capacity, 4)];
+        }
+
+        /**
+         * appends a stone, which must not be a member yet
+         */
+        private void add(int stoneID) {
+            if (size == stoneIDs.length)
+                stoneIDs = Arrays.copyOf(stoneIDs, 2 * size);
+            if (positions != null)
+                positions.put(stoneID, size);
+            stoneIDs[size++] = stoneID;
+        }
+
+        private IntIntMap getPositions() {
+            if (positions == null) {
+                positions = new IntIntMap(size);
+                for (int i = 0; i < size; i++)
+                    positions.put(stoneIDs[i], i);
+            }
+            return positions;
+        }
+
+        /**
+         * false, if the stone is not a member
+         */
+        private boolean remove(int stoneID) {
+            int position = getPositions().remove(stoneID);
+            if (position == -1)
+                return false;
+            int last = stoneIDs[--size];
+            if (last != stoneID) {
+                stoneIDs[position] = last;
+                positions.put(last, position);
+            }
+            return true;
+        }
+
+        public boolean contains(int stoneID) {
+            return getPositions().containsKey(stoneID);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * id of the i-th stone (0 <= i < size(); the order changes when
+         * stones are removed)
+         */
+        public int getStoneID(int i) {
+            return stoneIDs[i];
+        }
     }
 
-    public Model(Graphics graphics) {
-        this.graphics = graphics;
-        this.stones = new LinkedList<Stone>();
+    /**
+     * adds the stone in slot to the group, which must not contain it yet
+     */
+    private void addToGroup(SelectionGroup grp, int slot) {
+        grp.add(stones.getID(slot));
+        stones.setNumGroups(slot, stones.getNumGroups(slot) + 1);
     }
 
-    public void render(GL2 gl) {
-        Stone stone;
-        for (Iterator<Stone> it = this.stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected)
-                gl.glColor3d(1.0, 0.0, 1.0);
-            else
-                GraphicsHelper.setColor(gl, stone.color);
-            graphics.obj3dStones.renderBySubIndex(gl, stone.obj3dIndex, pos.x + stone.pos.x, pos.y + 0.4 * stone.pos.y,
-                    pos.z + stone.pos.z, 0.0, stone.rotation * 90.0, 0.0);
+    /**
+     * removes the stone in slot from all groups; the groups are only visited,
+     * if the stone is a member of any
+     */
+    private void dropFromGroups(int slot) {
+        int num = stones.getNumGroups(slot);
+        if (num == 0)
+            return;
+        stones.setNumGroups(slot, 0);
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();)
+            if (it.next().remove(stones.getID(slot)) && --num == 0)
+                return;
+    }
+
+    /**
+     * @param obj3dStones
+     *            brick library (only its bounds are used, so the model can be
+     *            used without a GL-context)
+     */
+    public Model(Object3d obj3dStones) {
+        this.obj3dStones = obj3dStones;
+        this.stones = new StoneStore();
+        this.grid = new StoneGrid(stones);
+        this.bvh = new StoneBVH();
+        this.boxes = new RayBoxBatch();
+        if (boxes.getKernel() == RayBoxBatch.SCALAR)
+            bruteForceStones = 0;
+    }
+
+    private Math3d.AABB tmpAABB = new Math3d.AABB();
+    private int[] tmpSlots = new int[0]; // slots of moved stones
+
+    /**
+     * add stone to the spatial structures
+     */
+    private void register(int slot) {
+        grid.add(slot);
+        stones.getWorldAABB(slot, tmpAABB);
+        bvh.insert(slot, tmpAABB);
+        boxes.set(slot, tmpAABB);
+    }
+
+    /**
+     * remove stone from the spatial structures and the store
+     */
+    private void removeStone(int slot) {
+        dropFromGroups(slot);
+        grid.remove(slot);
+        bvh.remove(slot);
+        boxes.remove(slot);
+        int moved = stones.remove(slot);
+        if (moved != -1) {
+            grid.move(moved, slot);
+            bvh.move(moved, slot);
+        }
+    }
+
+    public StoneStore getStones() {
+        return stones;
+    }
+
+    public RayBoxBatch getBoxes() {
+        return boxes;
+    }
+
+    /**
+     * picking and placement are brute-force up to the given number of stones
+     * (0: always use the bvh)
+     */
+    public void setBruteForceStones(int bruteForceStones) {
+        this.bruteForceStones = bruteForceStones;
+    }
+
+    /**
+     * overlapping stones of the last loaded file (pairs of stone ids); the
+     * stones of a file are not tested one by one while loading
+     */
+    public OverlapChecker.Report getOverlapReport() {
+        return overlapReport;
+    }
+
+    /**
+     * collision-boxes of the stones in slots [0, n) (6 values per stone)
+     */
+    private double[] getCollisionBoxes(double[] boxes, int n) {
+        for (int i = 0; i < n; i++) {
+            stones.getCollisionAABB(i, tmpAABB);
+            setBox(boxes, i, tmpAABB);
+        }
+        return boxes;
+    }
+
+    private static void setBox(double[] boxes, int i, Math3d.AABB box) {
+        boxes[6 * i] = box.min.x;
+        boxes[6 * i + 1] = box.min.y;
+        boxes[6 * i + 2] = box.min.z;
+        boxes[6 * i + 3] = box.max.x;
+        boxes[6 * i + 4] = box.max.y;
+        boxes[6 * i + 5] = box.max.z;
+    }
+
+    /**
+     * all pairs of overlapping stones of the model (stone ids); the test runs
+     * in parallel
+     */
+    public OverlapChecker.Report checkOverlaps() {
+        int n = stones.size();
+        OverlapChecker.Report report = overlapChecker.check(getCollisionBoxes(new double[6 * n], n), n, 0);
+        int[] pairs = new int[2 * report.size()];
+        for (int i = 0; i < report.size(); i++) {
+            pairs[2 * i] = stones.getID(report.getFirst(i));
+            pairs[2 * i + 1] = stones.getID(report.getSecond(i));
         }
+        return new OverlapChecker.Report(pairs, report.size());
+    }
+
+    /**
+     * spreads the lower 10 bits of value to every third bit
+     */
+    private static long spreadBits(int value) {
+        long v = value & 0x3FF;
+        v = (v | (v << 16)) & 0x30000FFL;
+        v = (v | (v << 8)) & 0x300F00FL;
+        v = (v | (v << 4)) & 0x30C30C3L;
+        v = (v | (v << 2)) & 0x9249249L;
+        return v;
+    }
+
+    /**
+     * sorts the slots by the morton code of the positions of their stones
+     * (10 bits per axis), so the bvh can build a sub-tree over them by
+     * halving the list (StoneBVH.insert(store, slots, n))
+     */
+    private void sortByMorton(int[] slots, int n) {
+        if (n == 0)
+            return;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, extent = 0, slot;
+        for (int i = 0; i < n; i++) {
+            slot = slots[i];
+            minX = Math.min(minX, stones.getX(slot));
+            minY = Math.min(minY, stones.getY(slot));
+            minZ = Math.min(minZ, stones.getZ(slot));
+        }
+        for (int i = 0; i < n; i++) {
+            slot = slots[i];
+            extent = Math.max(extent, Math.max(stones.getX(slot) - minX,
+                    Math.max(stones.getY(slot) - minY, stones.getZ(slot) - minZ)));
+        }
+        int shift = 0;
+        while (extent >> shift >= 1024)
+            shift++;
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            slot = slots[i];
+            order[i] = ((spreadBits((stones.getX(slot) - minX) >> shift) << 2
+                    | spreadBits((stones.getY(slot) - minY) >> shift) << 1
+                    | spreadBits((stones.getZ(slot) - minZ) >> shift)) << 32) | slot;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < n; i++)
+            slots[i] = (int) order[i];
+    }
+
+    /**
+     * inserts copies of the given stones with new ids as one edit (bulk
+     * insertion); a stone is not inserted, if it overlaps a stone of the
+     * model or an inserted stone given before it. the stones are tested and
+     * added in one pass by the grid (which already contains the stones
+     * inserted before); the bvh gets them at the end as one sub-tree (see
+     * sortByMorton(..)).
+     * 
+     * @param insertID
+     *            insertID of all new stones, or -1 to keep the insertIDs
+     * @return not inserted stones: pairs of the id of the given stone and the
+     *         id of the overlapped stone
+     */
+    public OverlapChecker.Report insertStones(Collection<Stone> newStones, int insertID) {
+        int numNew = newStones.size();
+        Stone[] candidates = newStones.toArray(new Stone[numNew]);
+        int[] rejected = new int[16];
+        int numRejected = 0, numInserted = 0, obj3dIndex = 0, slot, other;
+        int[] slots = new int[numNew];
+        Math3d.AABB bounds = null;
+        Stone stone, previous = null;
+        journal.begin();
+        ModelJournal.Entry entry = journal.record(ModelJournal.ADD);
+        for (int i = 0; i < numNew; i++) {
+            stone = candidates[i];
+            if (previous == null || stone.type != previous.type || stone.rotation != previous.rotation) {
+                obj3dIndex = obj3dStones.getSubIndexFromSubId(stone.type);
+                bounds = obj3dStones.getBounds(obj3dIndex, stone.rotation);
+            }
+            previous = stone;
+            StoneStore.getCollisionAABB(bounds, stone.pos.x, stone.pos.y, stone.pos.z, tmpAABB);
+            if ((other = grid.findCollision(tmpAABB)) != -1) {
+                if (2 * numRejected + 2 > rejected.length)
+                    rejected = Arrays.copyOf(rejected, 2 * rejected.length);
+                rejected[2 * numRejected] = stone.id;
+                rejected[2 * numRejected + 1] = stones.getID(other);
+                numRejected++;
+                continue;
+            }
+            slot = stones.add(currentStoneID++, insertID != -1 ? insertID : stone.insertID, stone.color,
+                    stone.type, stone.rotation, stone.pos.x, stone.pos.y, stone.pos.z, obj3dIndex, bounds);
+            grid.add(slot);
+            stones.getWorldAABB(slot, tmpAABB);
+            boxes.set(slot, tmpAABB);
+            recordStone(entry, slot);
+            slots[numInserted++] = slot;
+        }
+
+        sortByMorton(slots, numInserted);
+        bvh.insert(stones, slots, numInserted);
+
+        journal.end();
+        if (numInserted > 0)
+            modCount++;
+        return new OverlapChecker.Report(rejected, numRejected);
+    }
+
+    /**
+     * inserts copies of all stones of source (with new ids and the given
+     * insertID) as one edit; see insertStones(..) for the report
+     */
+    public OverlapChecker.Report importModel(Model source, int insertID) {
+        LinkedList<Stone> newStones = new LinkedList<Stone>();
+        for (int i = 0; i < source.stones.size(); i++)
+            newStones.add(source.stones.getStone(i));
+        return insertStones(newStones, insertID);
+    }
+
+    /**
+     * offset of all stones (world units)
+     */
+    public Math3d.Double3 getPosition() {
+        return pos;
+    }
+
+    public int getModCount() {
+        return modCount;
     }
 
     public void setPosition(double x, double y, double z) {
@@ -98,40 +420,176 @@ public class Model {
      * submit -1 for id to create a new one
      */
     public void insertStone(int id, int insertID, int color, int type, int x, int y, int z, int rotation) {
-        Stone newStone = new Stone();
+        int slot = addStone(id, insertID, color, type, x, y, z, rotation);
+        if (slot != -1) {
+            journal.begin();
+            recordStone(journal.record(ModelJournal.ADD), slot);
+            journal.end();
+        }
+    }
+
+    /**
+     * inserts a stone without recording it in the journal; returns its slot,
+     * or -1 if it collides with another stone
+     */
+    private int addStone(int id, int insertID, int color, int type, int x, int y, int z, int rotation) {
+        int obj3dIndex = obj3dStones.getSubIndexFromSubId(type);
+        Math3d.AABB aabb = obj3dStones.getBounds(obj3dIndex, rotation);
+        // only stones in the cells covered by the new stone are tested
+        StoneStore.getCollisionAABB(aabb, x, y, z, tmpAABB);
+        if (grid.collides(tmpAABB))
+            return -1;
         if (id == -1)
-            newStone.id = currentStoneID++;
-        else
-            newStone.id = id;
-        newStone.insertID = insertID;
-        newStone.color = color;
-        newStone.type = type;
-        newStone.obj3dIndex = graphics.obj3dStones.getSubIndexFromSubId(type);
-        newStone.pos.x = x;
-        newStone.pos.y = y;
-        newStone.pos.z = z;
-        newStone.rotation = rotation;
-        newStone.aabb = graphics.obj3dStones.getAABB(type, 0, newStone.rotation * 90, 0);
-        Stone stone;
-        Math3d.AABB a = new Math3d.AABB(), b = new Math3d.AABB();
-        a.min.x = newStone.aabb.min.x + newStone.pos.x + 0.01; // add 0.01 to prevent numerical instability
-        a.min.y = newStone.aabb.min.y + newStone.pos.y * 0.4 + 0.01;
-        a.min.z = newStone.aabb.min.z + newStone.pos.z + 0.01;
-        a.max.x = newStone.aabb.max.x + newStone.pos.x - 0.01;
-        a.max.y = newStone.aabb.max.y + newStone.pos.y * 0.4 - 0.01;
-        a.max.z = newStone.aabb.max.z + newStone.pos.z - 0.01;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            b.min.x = stone.aabb.min.x + stone.pos.x + 0.01;
-            b.min.y = stone.aabb.min.y + stone.pos.y * 0.4 + 0.01;
-            b.min.z = stone.aabb.min.z + stone.pos.z + 0.01;
-            b.max.x = stone.aabb.max.x + stone.pos.x - 0.01;
-            b.max.y = stone.aabb.max.y + stone.pos.y * 0.4 - 0.01;
-            b.max.z = stone.aabb.max.z + stone.pos.z - 0.01;
-            if (a.collision(b))
-                return;
+            id = currentStoneID++;
+        int slot = stones.add(id, insertID, color, type, rotation, x, y, z, obj3dIndex, aabb);
+        register(slot);
+        modCount++;
+        return slot;
+    }
+
+    private void removeStoneByID(int id) {
+        int slot = stones.indexOf(id);
+        if (slot != -1)
+            removeStone(slot);
+    }
+
+    /**
+     * appends the stone in slot to an ADD- or REMOVE-entry
+     */
+    private void recordStone(ModelJournal.Entry entry, int slot) {
+        entry.add(stones.getID(slot), stones.getInsertID(slot), stones.getColor(slot), stones.getType(slot),
+                stones.getRotation(slot), stones.getX(slot), stones.getY(slot), stones.getZ(slot));
+    }
+
+    /**
+     * appends the groups of the stone in slot to a REMOVE-entry
+     */
+    private void recordGroups(ModelJournal.Entry entry, int slot) {
+        int num = stones.getNumGroups(slot);
+        if (num == 0)
+            return;
+        int id = stones.getID(slot);
+        SelectionGroup grp;
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();) {
+            grp = it.next();
+            if (grp.contains(id)) {
+                entry.addGroup(id, grp.id);
+                if (--num == 0)
+                    return;
+            }
         }
-        this.stones.add(newStone);
+    }
+
+    /**
+     * re-inserts the stone of record i of an entry, starting at value first
+     * of the record; returns the slot or -1
+     */
+    private int restoreStone(ModelJournal.Entry entry, int i, int first, int id) {
+        int slot = addStone(id, entry.get(i, first), entry.get(i, first + 1), entry.get(i, first + 2),
+                entry.get(i, first + 4), entry.get(i, first + 5), entry.get(i, first + 6), entry.get(i, first + 3));
+        if (slot == -1)
+            System.out.println("Model: stone " + id + " could not be restored");
+        return slot;
+    }
+
+    /**
+     * all insertions between beginEdit() and endEdit() are undone as one step
+     * (e.g. all stones of a drag-insertion)
+     */
+    public void beginEdit() {
+        journal.begin();
+    }
+
+    public void endEdit() {
+        journal.end();
+    }
+
+    public ModelJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * reverts the last edit; false, if there is nothing to undo
+     */
+    public boolean undo() {
+        ModelJournal.Entry entry = journal.undo();
+        if (entry == null)
+            return false;
+        modCount++;
+        int n = entry.size();
+        int slot;
+        SelectionGroup grp;
+        switch (entry.kind) {
+        case ModelJournal.ADD:
+            for (int i = n - 1; i >= 0; i--)
+                removeStoneByID(entry.get(i, 0));
+            break;
+        case ModelJournal.REMOVE:
+            // the removed stones have been selected
+            stones.clearSelection();
+            for (int i = 0; i < n; i++) {
+                slot = restoreStone(entry, i, 1, entry.get(i, 0));
+                if (slot != -1)
+                    stones.setSelected(slot, true);
+            }
+            // the stones join their groups again (unless the group has been deleted meanwhile)
+            for (int i = 0; i < entry.getNumGroups(); i++) {
+                grp = selectionGroups.get(entry.getGroupID(i));
+                slot = stones.indexOf(entry.getGroupStone(i));
+                if (grp != null && slot != -1 && !grp.contains(entry.getGroupStone(i)))
+                    addToGroup(grp, slot);
+            }
+            break;
+        case ModelJournal.MOVE:
+            // the moved stones have been selected
+            stones.clearSelection();
+            n = translate(entry, -entry.dx, -entry.dy, -entry.dz);
+            for (int i = 0; i < n; i++)
+                stones.setSelected(tmpSlots[i], true);
+            break;
+        case ModelJournal.INSERT_ID:
+            for (int i = 0; i < n; i++) {
+                slot = stones.indexOf(entry.get(i, 0));
+                if (slot != -1)
+                    stones.setInsertID(slot, entry.get(i, 1));
+            }
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * repeats the last undone edit; false, if there is nothing to redo
+     */
+    public boolean redo() {
+        ModelJournal.Entry entry = journal.redo();
+        if (entry == null)
+            return false;
+        modCount++;
+        int n = entry.size();
+        int slot;
+        switch (entry.kind) {
+        case ModelJournal.ADD:
+            for (int i = 0; i < n; i++)
+                restoreStone(entry, i, 1, entry.get(i, 0));
+            break;
+        case ModelJournal.REMOVE:
+            // removeStone(..) drops the stones from their groups again
+            for (int i = n - 1; i >= 0; i--)
+                removeStoneByID(entry.get(i, 0));
+            break;
+        case ModelJournal.MOVE:
+            translate(entry, entry.dx, entry.dy, entry.dz);
+            break;
+        case ModelJournal.INSERT_ID:
+            for (int i = 0; i < n; i++) {
+                slot = stones.indexOf(entry.get(i, 0));
+                if (slot != -1)
+                    stones.setInsertID(slot, entry.insertID);
+            }
+            break;
+        }
+        return true;
     }
 
     public void saveToFile(int fileVersion, DataOutputStream dataOut) throws IOException {
@@ -144,17 +602,15 @@ public class Model {
         // number of stones
         dataOut.writeInt(stones.size());
         // stones
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            dataOut.writeInt(stone.id);
-            dataOut.writeInt(stone.insertID);
-            dataOut.writeInt(stone.color);
-            dataOut.writeInt(stone.type);
-            dataOut.writeInt(stone.rotation);
-            dataOut.writeInt(stone.pos.x);
-            dataOut.writeInt(stone.pos.y);
-            dataOut.writeInt(stone.pos.z);
+        for (int i = 0; i < stones.size(); i++) {
+            dataOut.writeInt(stones.getID(i));
+            dataOut.writeInt(stones.getInsertID(i));
+            dataOut.writeInt(stones.getColor(i));
+            dataOut.writeInt(stones.getType(i));
+            dataOut.writeInt(stones.getRotation(i));
+            dataOut.writeInt(stones.getX(i));
+            dataOut.writeInt(stones.getY(i));
+            dataOut.writeInt(stones.getZ(i));
         }
         // current stone id
         dataOut.writeInt(currentStoneID);
@@ -166,23 +622,26 @@ public class Model {
         dataOut.writeInt(currentSelectionGroupID);
         // selection groups
         SelectionGroup grp;
-        for (Iterator<SelectionGroup> it = selectionGroups.iterator(); it.hasNext();) {
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();) {
             grp = (SelectionGroup) it.next();
             dataOut.writeInt(grp.id);
             dataOut.writeUTF(grp.name);
             // write appropriate stones
-            dataOut.writeInt(grp.stones.size());
-            for (Iterator<Stone> it2 = grp.stones.iterator(); it2.hasNext();) {
-                stone = (Stone) it2.next();
-                dataOut.writeInt(stone.id);
-            }
+            dataOut.writeInt(grp.size());
+            for (int i = 0; i < grp.size(); i++)
+                dataOut.writeInt(grp.getStoneID(i));
         }
     }
 
     public void loadFromFile(int fileVersion, DataInputStream dataIn) throws IOException {
         // empty existing lists
-        selectionGroups = new LinkedList<SelectionGroup>();
-        stones = new LinkedList<Stone>();
+        selectionGroups.clear();
+        stones.clear();
+        grid.clear();
+        bvh.clear();
+        boxes.clear();
+        journal.clear();
+        modCount++;
 
         // input position
         pos.x = dataIn.readDouble();
@@ -193,7 +652,7 @@ public class Model {
         // number of stones
         int numStones = dataIn.readInt();
         // stones
-        int id, insertID, color, type, rotation, posX, posY, posZ;
+        int id, insertID, color, type, rotation, posX, posY, posZ, obj3dIndex, slot;
         for (int i = 0; i < numStones; i++) {
             id = dataIn.readInt();
             insertID = dataIn.readInt();
@@ -203,8 +662,15 @@ public class Model {
             posX = dataIn.readInt();
             posY = dataIn.readInt();
             posZ = dataIn.readInt();
-            insertStone(id, insertID, color, type, posX, posY, posZ, rotation);
+            obj3dIndex = obj3dStones.getSubIndexFromSubId(type);
+            slot = stones.add(id, insertID, color, type, rotation, posX, posY, posZ, obj3dIndex,
+                    obj3dStones.getBounds(obj3dIndex, rotation));
+            grid.add(slot);
         }
+        bvh.build(stones);
+        boxes.build(stones);
+        // overlapping stones are kept and reported
+        overlapReport = checkOverlaps();
         // current stone id
         currentStoneID = dataIn.readInt();
 
@@ -214,34 +680,222 @@ public class Model {
         // current selection group id
         currentSelectionGroupID = dataIn.readInt();
         // selection groups
+        int[] lastGroup = new int[stones.size()]; // index + 1 of the last group of the slot (duplicates)
         for (int i = 0; i < numSelGroups; i++) {
-            SelectionGroup grp = new SelectionGroup();
+            SelectionGroup grp = new SelectionGroup(16);
             grp.id = dataIn.readInt();
             grp.name = dataIn.readUTF();
-            grp.stones = new LinkedList<Stone>();
-            // read appropriate stones
+            // read appropriate stones (only existing ones)
             int numGrpStones = dataIn.readInt();
             int grpStoneId;
             for (int j = 0; j < numGrpStones; j++) {
                 grpStoneId = dataIn.readInt();
-                // create link
-                // a) search in stone-list
-                Stone tmp;
-                for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-                    tmp = (Stone) it.next();
-                    if (tmp.id == grpStoneId) {
-                        // b) insert
-                        grp.stones.add(tmp);
-                        break;
+                if ((slot = stones.indexOf(grpStoneId)) != -1 && lastGroup[slot] != i + 1) {
+                    lastGroup[slot] = i + 1;
+                    addToGroup(grp, slot);
+                }
+            }
+            selectionGroups.put(grp.id, grp);
+        }
+    }
+
+    /*
+     * file-format-version 2 (after the header written by GuiFSM):
+     *   double posX, posY, posZ
+     *   int numStones, int currentStoneID
+     *   int[numStones] id, insertID, color, type, rotation, x, y, z (columns)
+     *   int numGroups, int currentSelectionGroupID
+     *   per group: int id, int nameLength, byte[nameLength] name (utf-8),
+     *              int numStones, int[numStones] stone indices (columns)
+     */
+    private static final int NUM_COLUMNS = 8;
+
+    /**
+     * collects the stone indices of all groups (index = slot)
+     */
+    private LinkedList<int[]> getGroupIndices() {
+        LinkedList<int[]> ret = new LinkedList<int[]>();
+        SelectionGroup grp;
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();) {
+            grp = (SelectionGroup) it.next();
+            int[] indices = new int[grp.size()];
+            for (int i = 0; i < grp.size(); i++)
+                indices[i] = stones.indexOf(grp.getStoneID(i));
+            ret.add(indices);
+        }
+        return ret;
+    }
+
+    /**
+     * writes the model in file-format-version 2
+     */
+    public ByteBuffer saveToBuffer() {
+        int numStones = stones.size();
+        LinkedList<int[]> groupIndices = getGroupIndices();
+        LinkedList<byte[]> groupNames = new LinkedList<byte[]>();
+        int size = 3 * 8 + 2 * 4 + NUM_COLUMNS * numStones * 4 + 2 * 4;
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();)
+            groupNames.add(((SelectionGroup) it.next()).name.getBytes(StandardCharsets.UTF_8));
+        Iterator<byte[]> itNames = groupNames.iterator();
+        for (Iterator<int[]> it = groupIndices.iterator(); it.hasNext();)
+            size += 3 * 4 + ((byte[]) itNames.next()).length + ((int[]) it.next()).length * 4;
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putDouble(pos.x);
+        buf.putDouble(pos.y);
+        buf.putDouble(pos.z);
+        buf.putInt(numStones);
+        buf.putInt(currentStoneID);
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getID(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getInsertID(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getColor(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getType(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getRotation(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getX(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getY(i));
+        for (int i = 0; i < numStones; i++)
+            buf.putInt(stones.getZ(i));
+
+        buf.putInt(selectionGroups.size());
+        buf.putInt(currentSelectionGroupID);
+        itNames = groupNames.iterator();
+        Iterator<int[]> itIndices = groupIndices.iterator();
+        for (Iterator<SelectionGroup> it = selectionGroups.values().iterator(); it.hasNext();) {
+            byte[] name = (byte[]) itNames.next();
+            int[] indices = (int[]) itIndices.next();
+            buf.putInt(((SelectionGroup) it.next()).id);
+            buf.putInt(name.length);
+            buf.put(name);
+            buf.putInt(indices.length);
+            buf.asIntBuffer().put(indices);
+            buf.position(buf.position() + indices.length * 4);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * reads a model in file-format-version 2 (e.g. from a mapped file). the
+     * stones are taken over as they are (no overlap-tests) and the bvh is
+     * built in one pass.
+     */
+    public void loadFromBuffer(ByteBuffer buf) throws IOException {
+        // empty existing lists
+        selectionGroups.clear();
+        stones.clear();
+        grid.clear();
+        bvh.clear();
+        boxes.clear();
+        journal.clear();
+        modCount++;
+
+        try {
+            // input position
+            pos.x = buf.getDouble();
+            pos.y = buf.getDouble();
+            pos.z = buf.getDouble();
+
+            // read stones
+            int numStones = buf.getInt();
+            currentStoneID = buf.getInt();
+            if (numStones < 0 || numStones > buf.remaining() / (NUM_COLUMNS * 4))
+                throw new IOException("invalid number of stones: " + numStones);
+            int[][] columns = new int[NUM_COLUMNS][numStones];
+            for (int c = 0; c < NUM_COLUMNS; c++) {
+                buf.asIntBuffer().get(columns[c]);
+                buf.position(buf.position() + numStones * 4);
+            }
+            int[] id = columns[0], insertID = columns[1], color = columns[2], type = columns[3],
+                    rotation = columns[4], x = columns[5], y = columns[6], z = columns[7];
+            stones.ensureCapacity(numStones);
+            int obj3dIndex, slot;
+            for (int i = 0; i < numStones; i++) {
+                obj3dIndex = obj3dStones.getSubIndexFromSubId(type[i]);
+                slot = stones.add(id[i], insertID[i], color[i], type[i], rotation[i], x[i], y[i], z[i], obj3dIndex,
+                        obj3dStones.getBounds(obj3dIndex, rotation[i]));
+                grid.add(slot);
+            }
+            bvh.build(stones);
+            boxes.build(stones);
+            // overlapping stones are kept and reported
+            overlapReport = checkOverlaps();
+
+            // read selection groups
+            int numSelGroups = buf.getInt();
+            currentSelectionGroupID = buf.getInt();
+            int[] lastGroup = new int[numStones]; // index + 1 of the last group of the stone (duplicates)
+            for (int i = 0; i < numSelGroups; i++) {
+                int grpID = buf.getInt();
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                int numGrpStones = buf.getInt();
+                SelectionGroup grp = new SelectionGroup(Math.min(numGrpStones, buf.remaining() / 4));
+                grp.id = grpID;
+                grp.name = new String(name, StandardCharsets.UTF_8);
+                int index;
+                for (int j = 0; j < numGrpStones; j++) {
+                    index = buf.getInt();
+                    // stone index = slot
+                    if (index >= 0 && index < numStones && lastGroup[index] != i + 1) {
+                        lastGroup[index] = i + 1;
+                        addToGroup(grp, index);
                     }
                 }
+                selectionGroups.put(grp.id, grp);
             }
-            selectionGroups.add(grp);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of file");
+        } catch (NegativeArraySizeException e) {
+            throw new IOException("broken file");
         }
     }
 
     private int lastHeight = 0;
 
+    private Math3d.Double3 rayEye = new Math3d.Double3();
+    private Math3d.Double3 rayDirection = new Math3d.Double3();
+    private Math3d.Double3 rayHit = new Math3d.Double3();
+
+    /**
+     * hits the top face of a stone (used for placement)
+     */
+    private StoneBVH.RayCallback topFaceCallback = new StoneBVH.RayCallback() {
+        public double hit(int slot) {
+            Math3d.AABB aabb = stones.getBounds(slot);
+            double top = stones.getY(slot) * 0.4 + aabb.max.y;
+            if ((top - rayEye.y) / rayDirection.y < 0.0)
+                return -1.0; // behind the eye
+            double distance = Math3d.getIntersection(rayEye, rayDirection, rayHit, top);
+            int x = stones.getX(slot), z = stones.getZ(slot);
+            if (rayHit.x >= (pos.x + x + aabb.min.x) && rayHit.x <= (pos.x + x + aabb.max.x) &&
+                    rayHit.z >= (pos.z + z + aabb.min.z) && rayHit.z <= (pos.z + z + aabb.max.z))
+                return distance;
+            return -1.0;
+        }
+    };
+
+    /**
+     * hits the box of a stone from outside (used for picking)
+     */
+    private StoneBVH.RayCallback boxCallback = new StoneBVH.RayCallback() {
+        public double hit(int slot) {
+            // world box as in StoneStore.getWorldAABB(..), but without a copy
+            Math3d.AABB aabb = stones.getBounds(slot);
+            double x = stones.getX(slot), y = stones.getY(slot) * 0.4, z = stones.getZ(slot);
+            double distance = Math3d.rayBox(rayEye.x, rayEye.y, rayEye.z,
+                    rayDirection.x, rayDirection.y, rayDirection.z,
+                    aabb.min.x + x, aabb.min.y + y, aabb.min.z + z, aabb.max.x + x, aabb.max.y + y, aabb.max.z + z);
+            return distance > 0 ? distance : -1.0;
+        }
+    };
+
     public Math3d.Int3 getPlacementPos(Math3d.Double3 eyePos, Math3d.Double3 rayDir,
             int gridHeight, boolean holdHeightForPlacement) {
         Math3d.Int3 ret = new Math3d.Int3();
@@ -254,25 +908,24 @@ public class Model {
         // grid
         distance = Math3d.getIntersection(eyePos, rayDir, ret, gridHeight * 0.4);
         ret.y = gridHeight;
-        // stones
-        Math3d.Double3 tmpRet = new Math3d.Double3();
-        double tmpDistance;
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            tmpDistance = Math3d.getIntersection(
-                    eyePos, rayDir, tmpRet, stone.pos.y * 0.4 + stone.aabb.max.y);
-            if (tmpDistance < distance &&
-                    tmpRet.x >= (pos.x + stone.pos.x + stone.aabb.min.x)
-                    && tmpRet.x <= (pos.x + stone.pos.x + stone.aabb.max.x) &&
-                    tmpRet.z >= (pos.z + stone.pos.z + stone.aabb.min.z)
-                    && tmpRet.z <= (pos.z + stone.pos.z + stone.aabb.max.z)) {
-                distance = tmpDistance;
-                ret.x = (int) Math.floor(tmpRet.x);
-                ret.y = (int) stone.pos.y + (int) ((stone.aabb.max.y + 0.01) / 0.4); // add 0.01 to avoid numerical
-                                                                                     // instability
-                ret.z = (int) Math.floor(tmpRet.z);
-            }
+        // stones (all of a small model, otherwise only the nodes of the bvh
+        // crossed by the ray are visited)
+        rayEye.set(eyePos);
+        rayDirection.set(rayDir);
+        int slot;
+        if (stones.size() <= bruteForceStones) {
+            slot = boxes.nearestTop(eyePos, rayDir, pos.x, pos.z);
+            if (slot != -1 && topFaceCallback.hit(slot) >= distance)
+                slot = -1; // behind the grid
+        } else
+            slot = bvh.raycast(eyePos, rayDir, distance, topFaceCallback);
+        if (slot != -1) {
+            Math3d.AABB aabb = stones.getBounds(slot);
+            Math3d.getIntersection(eyePos, rayDir, rayHit, stones.getY(slot) * 0.4 + aabb.max.y);
+            ret.x = (int) Math.floor(rayHit.x);
+            ret.y = stones.getY(slot) + (int) ((aabb.max.y + 0.01) / 0.4); // add 0.01 to avoid numerical
+                                                                           // instability
+            ret.z = (int) Math.floor(rayHit.z);
         }
         // ret
         lastHeight = ret.y;
@@ -291,79 +944,124 @@ public class Model {
      */
     public Math3d.Double3 pick(boolean additive, boolean allWithSameInsertID,
             Math3d.Double3 eyePos, Math3d.Double3 rayDir) {
+        modCount++;
+        if (!additive)
+            stones.clearSelection();
+        // nearest stone hit by the ray
+        rayEye.set(eyePos);
+        rayDirection.set(rayDir);
+        int candidate;
+        if (stones.size() <= bruteForceStones)
+            candidate = boxes.nearestBox(eyePos, rayDir);
+        else
+            candidate = bvh.raycast(eyePos, rayDir, Double.MAX_VALUE, boxCallback);
+        if (candidate != -1)
+            stones.setSelected(candidate, true);
+        if (allWithSameInsertID && candidate != -1) {
+            // only the stones of the insertID are visited
+            StoneIndex byInsertID = stones.getByInsertID();
+            int insertID = stones.getInsertID(candidate);
+            for (int i = 0; i < byInsertID.size(insertID); i++)
+                stones.setSelected(byInsertID.get(insertID, i), true);
+        }
+        return getSelectionCenter();
+    }
+
+    /**
+     * center of the selected stones (world units, for the move-tool), or
+     * null if no stone is selected
+     */
+    public Math3d.Double3 getSelectionCenter() {
         Math3d.Double3 center = new Math3d.Double3();
-        int numSelected = 0;
-        Math3d.AABB aabb = new Math3d.AABB();
-        double distance = Double.MAX_VALUE, tmpDistance;
-        Stone stone, selectionCandidate = null;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (!additive)
-                stone.selected = false;
-            else if (stone.selected) {
-                center.add(stone.pos);
-                numSelected++;
-            }
+        if (!stones.getSelectionCenter(center))
+            return null;
+        center.y *= 0.4;
+        center.y += 0.3;
+        return center;
+    }
 
-            aabb.min.set(stone.aabb.min);
-            aabb.min.x += stone.pos.x;
-            aabb.min.y += stone.pos.y * 0.4;
-            aabb.min.z += stone.pos.z;
+    /**
+     * copies of the stones with the given insertID (e.g. the stones of one
+     * insertion); the queries take time in proportion to the number of
+     * stones found, not to the size of the model
+     */
+    public LinkedList<Stone> getStonesByInsertID(int insertID) {
+        return getIndexedStones(stones.getByInsertID(), insertID);
+    }
 
-            aabb.max.set(stone.aabb.max);
-            aabb.max.x += stone.pos.x;
-            aabb.max.y += stone.pos.y * 0.4;
-            aabb.max.z += stone.pos.z;
+    /**
+     * copies of the stones of the given type
+     */
+    public LinkedList<Stone> getStonesByType(int type) {
+        return getIndexedStones(stones.getByType(), type);
+    }
 
-            if (((tmpDistance = aabb.rayIntersection(eyePos, rayDir)) > 0) && tmpDistance < distance) {
-                distance = tmpDistance;
-                selectionCandidate = stone;
+    /**
+     * copies of the stones of the given color
+     */
+    public LinkedList<Stone> getStonesByColor(int color) {
+        return getIndexedStones(stones.getByColor(), color);
+    }
+
+    /**
+     * copies of the stones of the given type and color (e.g. all red 2x4
+     * bricks); the smaller of both sets is filtered
+     */
+    public LinkedList<Stone> getStonesByTypeAndColor(int type, int color) {
+        LinkedList<Stone> ret = new LinkedList<Stone>();
+        StoneIndex byType = stones.getByType(), byColor = stones.getByColor();
+        int slot;
+        if (byType.size(type) <= byColor.size(color)) {
+            for (int i = 0; i < byType.size(type); i++) {
+                slot = byType.get(type, i);
+                if (stones.getColor(slot) == color)
+                    ret.add(stones.getStone(slot));
             }
-        }
-        if (selectionCandidate != null) {
-            selectionCandidate.selected = true;
-            center.add(selectionCandidate.pos);
-            numSelected++;
-        }
-        if (allWithSameInsertID && selectionCandidate != null) {
-            for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-                stone = (Stone) it.next();
-                if (stone.insertID == selectionCandidate.insertID && !stone.selected) {
-                    stone.selected = true;
-                    center.add(stone.pos);
-                    numSelected++;
-                }
+        } else {
+            for (int i = 0; i < byColor.size(color); i++) {
+                slot = byColor.get(color, i);
+                if (stones.getType(slot) == type)
+                    ret.add(stones.getStone(slot));
             }
         }
-        if (numSelected > 0) {
-            center.x /= (double) numSelected;
-            center.y /= (double) numSelected;
-            center.z /= (double) numSelected;
-            center.y *= 0.4;
-            center.y += 0.3;
-            return center;
-        }
-        return null;
+        return ret;
+    }
+
+    private LinkedList<Stone> getIndexedStones(StoneIndex index, int value) {
+        LinkedList<Stone> ret = new LinkedList<Stone>();
+        for (int i = 0; i < index.size(value); i++)
+            ret.add(stones.getStone(index.get(value, i)));
+        return ret;
     }
 
     public void deleteSelected() {
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected)
-                it.remove();
+        journal.begin();
+        ModelJournal.Entry entry = journal.record(ModelJournal.REMOVE);
+        int slot;
+        for (int i = 0; i < stones.getNumSelected(); i++) {
+            slot = stones.getSelected(i);
+            recordStone(entry, slot);
+            recordGroups(entry, slot);
         }
+        removeSelected();
+        journal.end();
+    }
+
+    private void removeSelected() {
+        modCount++;
+        int[] slots = new int[stones.getNumSelected()];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = stones.getSelected(i);
+        Arrays.sort(slots);
+        // from back to front: the stone moved into a freed slot is never selected
+        for (int i = slots.length - 1; i >= 0; i--)
+            removeStone(slots[i]);
     }
 
     public LinkedList<Model.Stone> getSelectedStones() {
         LinkedList<Model.Stone> ret = new LinkedList<Model.Stone>();
-
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected)
-                ret.add(stone);
-        }
+        for (int i = 0; i < stones.getNumSelected(); i++)
+            ret.add(stones.getStone(stones.getSelected(i)));
         return ret;
     }
 
@@ -371,21 +1069,10 @@ public class Model {
      * make insertID of all selected stones the same
      */
     public void unionSelection() {
-        boolean first = true;
-        int insertID = 0;
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected) {
-                if (first) {
-                    first = false;
-                    insertID = stone.insertID;
-                } else {
-                    if (stone.insertID != insertID)
-                        stone.insertID = insertID;
-                }
-            }
-        }
+        if (stones.getNumSelected() == 0)
+            return;
+        int insertID = stones.getInsertID(stones.getSelected(0));
+        setSelectionInsertID(insertID);
     }
 
     /**
@@ -394,12 +1081,22 @@ public class Model {
      * @param newInsertID
      */
     public void separateSelection(int newInsertID) {
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected)
-                stone.insertID = newInsertID;
+        setSelectionInsertID(newInsertID);
+    }
+
+    private void setSelectionInsertID(int insertID) {
+        journal.begin();
+        ModelJournal.Entry entry = journal.record(ModelJournal.INSERT_ID);
+        entry.insertID = insertID;
+        int slot;
+        for (int i = 0; i < stones.getNumSelected(); i++) {
+            slot = stones.getSelected(i);
+            if (stones.getInsertID(slot) != insertID) {
+                entry.add(stones.getID(slot), stones.getInsertID(slot));
+                stones.setInsertID(slot, insertID);
+            }
         }
+        journal.end();
     }
 
     /**
@@ -408,94 +1105,145 @@ public class Model {
      * @return group-ID
      */
     public int makeGroupFromSelection(String grpName) {
-        SelectionGroup grp = new SelectionGroup();
+        SelectionGroup grp = new SelectionGroup(stones.getNumSelected());
         grp.id = currentSelectionGroupID++;
         grp.name = grpName;
-        grp.stones = new LinkedList<Model.Stone>();
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected)
-                grp.stones.add(stone);
-        }
-        selectionGroups.add(grp);
+        for (int i = 0; i < stones.getNumSelected(); i++)
+            addToGroup(grp, stones.getSelected(i));
+        selectionGroups.put(grp.id, grp);
         return grp.id;
     }
 
     public void deleteGroupSelection(int id) {
-        SelectionGroup grp;
-        for (Iterator<SelectionGroup> it = selectionGroups.iterator(); it.hasNext();) {
-            grp = (SelectionGroup) it.next();
-            if (grp.id == id) {
-                it.remove();
-                return;
-            }
+        SelectionGroup grp = selectionGroups.remove(id);
+        if (grp == null)
+            return;
+        int slot;
+        for (int i = 0; i < grp.size(); i++) {
+            slot = stones.indexOf(grp.getStoneID(i));
+            stones.setNumGroups(slot, stones.getNumGroups(slot) - 1);
         }
     }
 
+    /**
+     * the groups in the order of their creation
+     */
     public LinkedList<SelectionGroup> getSelectionGroups() {
-        return selectionGroups;
+        return new LinkedList<SelectionGroup>(selectionGroups.values());
+    }
+
+    /**
+     * group with the given id, or null
+     */
+    public SelectionGroup getSelectionGroup(int id) {
+        return selectionGroups.get(id);
     }
 
     public void deselectAll() {
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            stone.selected = false;
-        }
+        modCount++;
+        stones.clearSelection();
     }
 
     public void selectByGroupID(int id) {
         deselectAll();
-        SelectionGroup grp;
-        for (Iterator<SelectionGroup> it = selectionGroups.iterator(); it.hasNext();) {
-            grp = (SelectionGroup) it.next();
-            if (grp.id == id) {
-                Stone stone;
-                for (Iterator<Stone> it2 = grp.stones.iterator(); it2.hasNext();) {
-                    stone = (Stone) it2.next();
-                    stone.selected = true;
-                }
-                break;
-            }
-        }
+        SelectionGroup grp = selectionGroups.get(id);
+        if (grp == null)
+            return;
+        // groups contain existing stones only
+        for (int i = 0; i < grp.size(); i++)
+            stones.setSelected(stones.indexOf(grp.getStoneID(i)), true);
     }
 
-    public void moveSelectedStones(Math3d.Int3 transformation) {
-        LinkedList<Stone> toChange = new LinkedList<Stone>();
-        Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected) {
-                toChange.add(stone);
-                it.remove();
-            }
+    /**
+     * moves the selected stones by transformation as one edit; the stones
+     * keep their ids, groups and the selection. nothing is moved, if a stone
+     * would overlap a stone which is not selected (tested in the grid for
+     * all stones before the first one is moved).
+     * 
+     * @return false, if the selection could not be moved
+     */
+    public boolean moveSelectedStones(Math3d.Int3 transformation) {
+        int n = stones.getNumSelected();
+        if (n == 0 || (transformation.x == 0 && transformation.y == 0 && transformation.z == 0))
+            return true;
+        if (tmpSlots.length < n)
+            tmpSlots = new int[n];
+        for (int i = 0; i < n; i++)
+            tmpSlots[i] = stones.getSelected(i);
+        // neighbouring stones one after another (their cells are mostly cached)
+        sortByMorton(tmpSlots, n);
+        int slot;
+        for (int i = 0; i < n; i++) {
+            slot = tmpSlots[i];
+            StoneStore.getCollisionAABB(stones.getBounds(slot), stones.getX(slot) + transformation.x,
+                    stones.getY(slot) + transformation.y, stones.getZ(slot) + transformation.z, tmpAABB);
+            if (grid.findCollision(tmpAABB, true) != -1)
+                return false;
         }
-        for (Iterator<Stone> it = toChange.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            stone.pos.add(transformation);
-            insertStone(-1, stone.insertID, stone.color, stone.type, stone.pos.x, stone.pos.y, stone.pos.z,
-                    stone.rotation);
+        journal.begin();
+        ModelJournal.Entry entry = journal.record(ModelJournal.MOVE);
+        entry.dx = transformation.x;
+        entry.dy = transformation.y;
+        entry.dz = transformation.z;
+        for (int i = 0; i < n; i++)
+            entry.add(stones.getID(tmpSlots[i]));
+        translate(tmpSlots, n, transformation.x, transformation.y, transformation.z);
+        journal.end();
+        return true;
+    }
+
+    /**
+     * moves the stones of a MOVE-entry by (dx, dy, dz); their slots are left
+     * in tmpSlots. returns the number of stones.
+     */
+    private int translate(ModelJournal.Entry entry, int dx, int dy, int dz) {
+        if (tmpSlots.length < entry.size())
+            tmpSlots = new int[entry.size()];
+        int n = 0, slot;
+        for (int i = 0; i < entry.size(); i++) {
+            slot = stones.indexOf(entry.get(i, 0));
+            if (slot != -1)
+                tmpSlots[n++] = slot;
+            else
+                System.out.println("Model: stone " + entry.get(i, 0) + " could not be moved");
         }
+        sortByMorton(tmpSlots, n);
+        translate(tmpSlots, n, dx, dy, dz);
+        return n;
     }
 
-    public void duplicateSelectedStones(Math3d.Int3 transformation, int insertID) {
-        Math3d.Int3 newPos = new Math3d.Int3();
+    /**
+     * moves the stones in slots[0..n-1] (sorted by sortByMorton(..)) by (dx,
+     * dy, dz) without testing for overlaps; the grid only updates the cells
+     * the stones leave or enter, the bvh gets them at their new positions as
+     * one sub-tree
+     */
+    private void translate(int[] slots, int n, int dx, int dy, int dz) {
+        modCount++;
+        Math3d.AABB oldBox = new Math3d.AABB();
+        int slot;
+        for (int i = 0; i < n; i++) {
+            slot = slots[i];
+            stones.getCollisionAABB(slot, oldBox);
+            stones.setPosition(slot, stones.getX(slot) + dx, stones.getY(slot) + dy, stones.getZ(slot) + dz);
+            grid.translate(slot, oldBox);
+            stones.getWorldAABB(slot, tmpAABB);
+            boxes.set(slot, tmpAABB);
+        }
+        bvh.update(stones, slots, n);
+    }
 
-        LinkedList<Stone> toCopy = new LinkedList<Stone>();
+    /**
+     * @return stones not duplicated, see insertStones(..)
+     */
+    public OverlapChecker.Report duplicateSelectedStones(Math3d.Int3 transformation, int insertID) {
+        LinkedList<Stone> toCopy = getSelectedStones();
         Stone stone;
-        for (Iterator<Stone> it = stones.iterator(); it.hasNext();) {
-            stone = (Stone) it.next();
-            if (stone.selected) {
-                toCopy.add(stone);
-            }
-        }
         for (Iterator<Stone> it = toCopy.iterator(); it.hasNext();) {
             stone = (Stone) it.next();
-            newPos.set(stone.pos);
-            newPos.add(transformation);
-            insertStone(-1, insertID, stone.color, stone.type, newPos.x, newPos.y, newPos.z, stone.rotation);
+            stone.pos.add(transformation);
         }
+        return insertStones(toCopy, insertID);
     }
 
 }
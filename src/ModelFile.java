@@ -0,0 +1,138 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * reading and writing of BLCS-files (header and one model). version 1 stores
+ * the stones row by row (Model.saveToFile(..)), version 2 column by column
+ * (Model.saveToBuffer()).
+ */
+public class ModelFile {
+    public static final int FILE_IDENTIFIER = 0x424C4353; // "BLCS" - ASCII
+    public static final int FILE_VERSION = 0x02;
+
+    /**
+     * thrown, if a file is not a BLCS-file or has an unknown version
+     */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * file-format-version of the last loaded file
+     */
+    private int version = 0;
+    private int currentInsertID = 0;
+
+    public ModelFile() {
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * current insert id stored in the header
+     */
+    public int getCurrentInsertID() {
+        return currentInsertID;
+    }
+
+    public void setCurrentInsertID(int currentInsertID) {
+        this.currentInsertID = currentInsertID;
+    }
+
+    public void load(File file, Model model) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 12)
+                throw new FormatException("wrong file type");
+            // read identifier
+            if (buf.getInt() != FILE_IDENTIFIER)
+                throw new FormatException("wrong file type");
+            // read file-format-version
+            int version = buf.getInt();
+            if (version != 0x01 && version != 0x02)
+                throw new FormatException("wrong file-format-version");
+            this.version = version;
+
+            // read current insert id
+            currentInsertID = buf.getInt();
+
+            // read number of models
+            // TBD: SUPPORT MORE THAN ONE MODELS
+
+            // read current model
+            if (version == 0x02)
+                model.loadFromBuffer(buf);
+            else {
+                DataInputStream dataIn = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel.position(buf.position()))));
+                model.loadFromFile(0x01, dataIn);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public void save(File file, Model model) throws IOException {
+        save(file, model, FILE_VERSION);
+    }
+
+    /**
+     * @param version
+     *            file-format-version (1 or 2)
+     */
+    public void save(File file, Model model, int version) throws IOException {
+        if (version != 0x01 && version != 0x02)
+            throw new FormatException("wrong file-format-version");
+        ByteBuffer header = ByteBuffer.allocate(12);
+        // write identifier
+        header.putInt(FILE_IDENTIFIER);
+        // write file-format-version
+        header.putInt(version);
+
+        // write current insert id
+        header.putInt(currentInsertID);
+        header.flip();
+
+        // write number of models
+        // dataOut.writeInt(mainFrame.models.size());
+
+        // TBD: SUPPORT MORE THAN ONE MODEL
+
+        // write current model
+        ByteBuffer data;
+        if (version == 0x02)
+            data = model.saveToBuffer();
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(bytes);
+            model.saveToFile(0x01, dataOut);
+            dataOut.flush();
+            data = ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (header.hasRemaining() || data.hasRemaining())
+                channel.write(new ByteBuffer[] { header, data });
+        } finally {
+            channel.close();
+        }
+    }
+}
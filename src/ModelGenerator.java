@@ -0,0 +1,108 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+/**
+ * synthetic models of 4x2 bricks (type 432) for benchmarks: a wall (running
+ * bond), a slab (one layer) and a tower (layers of 4 x 4 bricks). the
+ * stones of a shape never overlap.
+ */
+public class ModelGenerator {
+    public static final String[] SHAPES = { "wall", "slab", "tower" };
+
+    public static final int TYPE = 432;
+
+    private static final int LENGTH = Model.Stone.getSizeX(TYPE); // studs
+    private static final int WIDTH = Model.Stone.getSizeZ(TYPE); // studs
+    private static final int HEIGHT = Model.Stone.getSizeY(TYPE); // plates
+
+    /**
+     * the first numStones stones of the given shape; the color cycles
+     * through the first 5 colors
+     */
+    public static Model.Stone[] generate(String shape, int numStones) {
+        Model.Stone[] stones = new Model.Stone[numStones];
+        // ** number of stones per row and rows per layer **
+        int perRow, rowsPerLayer;
+        if (shape.equals("wall")) {
+            perRow = Math.max(1, (int) Math.sqrt(numStones));
+            rowsPerLayer = 1;
+        } else if (shape.equals("slab")) {
+            perRow = Math.max(1, (int) Math.sqrt(numStones / 2));
+            rowsPerLayer = Integer.MAX_VALUE;
+        } else if (shape.equals("tower")) {
+            perRow = 4;
+            rowsPerLayer = 8; // 4 x 4 bricks (16 x 16 studs)
+        } else
+            throw new IllegalArgumentException("unknown shape " + shape);
+
+        for (int i = 0; i < numStones; i++) {
+            int row = i / perRow;
+            int layer = row / rowsPerLayer;
+            row %= rowsPerLayer;
+            Model.Stone stone = new Model.Stone();
+            stone.type = TYPE;
+            stone.color = i % 5;
+            stone.pos.x = (i % perRow) * LENGTH;
+            if (shape.equals("wall") && layer % 2 == 1)
+                stone.pos.x += LENGTH / 2; // running bond
+            stone.pos.y = layer * HEIGHT;
+            stone.pos.z = row * WIDTH;
+            stones[i] = stone;
+        }
+        return stones;
+    }
+
+    /**
+     * a model with the first numStones stones of the given shape
+     */
+    public static Model build(Object3d obj3dStones, String shape, int numStones) {
+        Model model = new Model(obj3dStones);
+        insert(model, generate(shape, numStones), 0);
+        return model;
+    }
+
+    /**
+     * inserts the stones into the model (as one edit)
+     */
+    public static void insert(Model model, Model.Stone[] stones, int insertID) {
+        model.beginEdit();
+        for (int i = 0; i < stones.length; i++)
+            model.insertStone(-1, insertID, stones[i].color, stones[i].type, stones[i].pos.x, stones[i].pos.y,
+                    stones[i].pos.z, stones[i].rotation);
+        model.endEdit();
+    }
+
+    /**
+     * random rays from above onto the area of the model (eye position and
+     * direction, 6 values per ray)
+     */
+    public static double[] rays(Model model, int numRays, long seed) {
+        StoneStore stones = model.getStones();
+        int maxX = 1, maxY = 1, maxZ = 1;
+        for (int i = 0; i < stones.size(); i++) {
+            maxX = Math.max(maxX, stones.getX(i) + LENGTH);
+            maxY = Math.max(maxY, stones.getY(i) + HEIGHT);
+            maxZ = Math.max(maxZ, stones.getZ(i) + LENGTH);
+        }
+        Random random = new Random(seed);
+        double[] rays = new double[6 * numRays];
+        for (int i = 0; i < numRays; i++) {
+            Math3d.Double3 dir = new Math3d.Double3(random.nextDouble() - 0.5, -0.5 - random.nextDouble(),
+                    random.nextDouble() - 0.5);
+            dir.normalize();
+            rays[6 * i] = random.nextDouble() * maxX;
+            rays[6 * i + 1] = 0.4 * maxY + 20.0;
+            rays[6 * i + 2] = random.nextDouble() * maxZ;
+            rays[6 * i + 3] = dir.x;
+            rays[6 * i + 4] = dir.y;
+            rays[6 * i + 5] = dir.z;
+        }
+        return rays;
+    }
+}
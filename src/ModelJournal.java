@@ -0,0 +1,242 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+/**
+ * undo/redo history of a model. an entry does not store a copy of the model,
+ * but only the delta of one edit as records of ints (ids and attributes of
+ * the affected stones, the translation of a move). the entries are applied
+ * by Model.undo() and Model.redo(). the memory used by all entries is
+ * bounded; if it exceeds the budget, the oldest entries are dropped.
+ */
+public class ModelJournal {
+    // ** kinds of entries **
+    /**
+     * stones added; record: id, insertID, color, type, rotation, x, y, z
+     */
+    public static final int ADD = 0;
+    /**
+     * stones removed; record as ADD. the groups of the removed stones are
+     * kept as pairs of stone id and group id (Entry.addGroup(..)).
+     */
+    public static final int REMOVE = 1;
+    /**
+     * stones moved by (dx, dy, dz); record: id
+     */
+    public static final int MOVE = 2;
+    /**
+     * insertIDs of stones set to insertID; record: id, old insertID
+     */
+    public static final int INSERT_ID = 3;
+
+    private static final int[] RECORD_SIZE = { 8, 8, 1, 2 };
+
+    /**
+     * approximated memory of an entry without its records (bytes)
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    public static class Entry {
+        public final int kind;
+        private int[] data = new int[32];
+        private int size = 0; // number of records
+        private int[] groups = null; // REMOVE: stone id, group id per membership
+        private int numGroups = 0;
+        public int dx, dy, dz; // MOVE
+        public int insertID; // INSERT_ID
+
+        Entry(int kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * appends a record; values must have the record size of the kind
+         */
+        public void add(int... values) {
+            int n = size * RECORD_SIZE[kind];
+            if (n + values.length > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, n + values.length));
+            System.arraycopy(values, 0, data, n, values.length);
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * value at index of record i
+         */
+        public int get(int i, int index) {
+            return data[i * RECORD_SIZE[kind] + index];
+        }
+
+        /**
+         * appends the membership of a stone in a group (REMOVE)
+         */
+        public void addGroup(int stoneID, int groupID) {
+            if (groups == null)
+                groups = new int[8];
+            else if (2 * numGroups == groups.length)
+                groups = Arrays.copyOf(groups, 2 * groups.length);
+            groups[2 * numGroups] = stoneID;
+            groups[2 * numGroups + 1] = groupID;
+            numGroups++;
+        }
+
+        public int getNumGroups() {
+            return numGroups;
+        }
+
+        /**
+         * stone of membership i
+         */
+        public int getGroupStone(int i) {
+            return groups[2 * i];
+        }
+
+        /**
+         * group of membership i
+         */
+        public int getGroupID(int i) {
+            return groups[2 * i + 1];
+        }
+
+        private void trim() {
+            int n = size * RECORD_SIZE[kind];
+            if (n < data.length)
+                data = Arrays.copyOf(data, n);
+            if (groups != null && 2 * numGroups < groups.length)
+                groups = Arrays.copyOf(groups, 2 * numGroups);
+        }
+
+        public long getMemory() {
+            return ENTRY_OVERHEAD + 4L * data.length + (groups != null ? 4L * groups.length : 0);
+        }
+    }
+
+    private LinkedList<Entry> undoEntries = new LinkedList<Entry>();
+    private LinkedList<Entry> redoEntries = new LinkedList<Entry>();
+    private long memory = 0; // of all entries in both histories
+    private long budget;
+
+    private Entry open = null; // entry of the current edit, if not yet closed
+    private int batchDepth = 0;
+
+    /**
+     * @param budget
+     *            maximum memory of all entries in bytes
+     */
+    public ModelJournal(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * starts a batch: all ADD-records until end() are coalesced into a single
+     * entry (e.g. the stones of a drag-insertion). batches can be nested.
+     */
+    public void begin() {
+        batchDepth++;
+    }
+
+    public void end() {
+        if (batchDepth > 0 && --batchDepth == 0)
+            close();
+    }
+
+    /**
+     * entry, to which the records of an edit are appended. outside a batch,
+     * every call starts a new entry; inside a batch, consecutive ADD-records
+     * go into the same entry.
+     */
+    public Entry record(int kind) {
+        if (open != null && (batchDepth == 0 || kind != ADD || open.kind != ADD))
+            close();
+        if (open == null)
+            open = new Entry(kind);
+        return open;
+    }
+
+    /**
+     * closes the current entry; empty entries are dropped (e.g. an insertion
+     * of colliding stones only), so they do not affect the redo-history
+     */
+    public void close() {
+        if (open == null)
+            return;
+        Entry entry = open;
+        open = null;
+        if (entry.size == 0)
+            return;
+        // a new edit makes the redo-history invalid
+        for (Iterator<Entry> it = redoEntries.iterator(); it.hasNext();)
+            memory -= ((Entry) it.next()).getMemory();
+        redoEntries.clear();
+        entry.trim();
+        undoEntries.addLast(entry);
+        memory += entry.getMemory();
+        while (memory > budget && !undoEntries.isEmpty())
+            memory -= ((Entry) undoEntries.removeFirst()).getMemory();
+    }
+
+    /**
+     * removes the newest entry from the undo-history and moves it to the
+     * redo-history; null if there is nothing to undo
+     */
+    public Entry undo() {
+        close();
+        if (undoEntries.isEmpty())
+            return null;
+        Entry entry = (Entry) undoEntries.removeLast();
+        redoEntries.addLast(entry);
+        return entry;
+    }
+
+    /**
+     * counterpart to undo()
+     */
+    public Entry redo() {
+        close();
+        if (redoEntries.isEmpty())
+            return null;
+        Entry entry = (Entry) redoEntries.removeLast();
+        undoEntries.addLast(entry);
+        return entry;
+    }
+
+    public boolean canUndo() {
+        return !undoEntries.isEmpty() || (open != null && open.size > 0);
+    }
+
+    public boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    public void clear() {
+        undoEntries.clear();
+        redoEntries.clear();
+        open = null;
+        batchDepth = 0;
+        memory = 0;
+    }
+
+    /**
+     * memory used by the entries of the undo- and redo-history (bytes)
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+}
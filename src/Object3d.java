@@ -6,22 +6,17 @@
  */
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 
+import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.*;
 
 public class Object3d {
-    public class Token {
-        String str;
-        int srcLine;
-
-        Token(String str, int srcLine) {
-            this.str = str;
-            this.srcLine = srcLine;
-        }
-    }
-
     public class INT2 {
         double x, y;
 
@@ -110,7 +105,8 @@ public class Object3d {
         ArrayList<VECTOR3> vertices;
         ArrayList<TEXCO2> textureCoordinates;
         ArrayList<FACE> faces;
-        int glID = -1;
+        double[] positions = null; // scaled and translated vertices
+        Mesh mesh = null;
 
         public Sub() {
             name = "";
@@ -140,7 +136,6 @@ public class Object3d {
                 clone.textureCoordinates.add(((TEXCO2) it.next()).clone());
             for (Iterator<FACE> it = faces.iterator(); it.hasNext();)
                 clone.faces.add(((FACE) it.next()).clone());
-            clone.glID = glID;
             return clone;
         }
     }
@@ -149,10 +144,16 @@ public class Object3d {
 
     private ArrayList<Sub> subs = null;
     private Sub currentSub = null;
-    private ArrayList<Token> tokens = null;
+    private Object3dLexer lexer = null;
+    private HashMap<String, Integer> subIndexByName = null; // only while parsing
     private int tokenPos = 0;
     private int id;
     private static int idCounter = 0;
+    private boolean built = false;
+    private HashMap<Integer, Integer> subIndexById = new HashMap<Integer, Integer>();
+    private Math3d.AABB[] bounds = new Math3d.AABB[0]; // by sub index * 4 + rotation
+    private boolean rendering = false;
+    private Mesh boundMesh = null;
 
     public int getID() {
         return id;
@@ -178,75 +179,91 @@ public class Object3d {
      * only y-axis rotation implemented yet!!!!!
      */
     public Math3d.AABB getAABB(int subId, double rx, double ry, double rz) {
-        ry = ry / 360.0 * 2.0 * Math.PI;
         Math3d.AABB aabb = new Math3d.AABB();
-        Sub sub;
-        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-            sub = (Sub) it.next();
-            if (sub.id == subId) {
-                Math3d.Double3 vertex;
-                boolean firstVertex = true;
-                for (Iterator<VECTOR3> itVer = sub.vertices.iterator(); itVer.hasNext();) {
-                    vertex = ((VECTOR3) itVer.next()).getDouble3().clone();
-                    vertex.x = vertex.x * sub.scale.x + sub.translation.x;
-                    vertex.y = vertex.y * sub.scale.y + sub.translation.y;
-                    vertex.z = vertex.z * sub.scale.z + sub.translation.z;
-                    // rotate vertex:
-                    double tmpX = vertex.x * Math.cos(-ry) - vertex.z * Math.sin(-ry);
-                    vertex.z = vertex.x * Math.sin(-ry) + vertex.z * Math.cos(-ry);
-                    vertex.x = tmpX;
-                    if (firstVertex || vertex.x < aabb.min.x)
-                        aabb.min.x = vertex.x;
-                    if (firstVertex || vertex.y < aabb.min.y)
-                        aabb.min.y = vertex.y;
-                    if (firstVertex || vertex.z < aabb.min.z)
-                        aabb.min.z = vertex.z;
-                    if (firstVertex || vertex.x > aabb.max.x)
-                        aabb.max.x = vertex.x;
-                    if (firstVertex || vertex.y > aabb.max.y)
-                        aabb.max.y = vertex.y;
-                    if (firstVertex || vertex.z > aabb.max.z)
-                        aabb.max.z = vertex.z;
-                    firstVertex = false;
-                }
-                break;
-            }
+        int index = indexOf(subId);
+        if (index != -1) {
+            ry = ry / 360.0 * 2.0 * Math.PI;
+            computeBounds(subs.get(index).positions, Math.cos(-ry), Math.sin(-ry), aabb);
         }
         return aabb;
     }
 
-    public int getSubIndexFromSubId(int subId) {
-        Sub sub;
-        int retVal = 0;
-        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-            sub = (Sub) it.next();
-            if (sub.id == subId)
-                return retVal;
-            retVal++;
+    /**
+     * bounds of the given vertices, rotated around the y-axis
+     */
+    private static void computeBounds(double[] p, double cos, double sin, Math3d.AABB aabb) {
+        double x, y, z;
+        for (int i = 0; i < p.length; i += 3) {
+            // rotate vertex:
+            x = p[i] * cos - p[i + 2] * sin;
+            y = p[i + 1];
+            z = p[i] * sin + p[i + 2] * cos;
+            if (i == 0 || x < aabb.min.x)
+                aabb.min.x = x;
+            if (i == 0 || y < aabb.min.y)
+                aabb.min.y = y;
+            if (i == 0 || z < aabb.min.z)
+                aabb.min.z = z;
+            if (i == 0 || x > aabb.max.x)
+                aabb.max.x = x;
+            if (i == 0 || y > aabb.max.y)
+                aabb.max.y = y;
+            if (i == 0 || z > aabb.max.z)
+                aabb.max.z = z;
         }
-        return 0;
     }
 
-    public final void renderBySubId(GL2 gl, int subId, double x, double y, double z, double rx, double ry, double rz) {
-        Sub sub;
-        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-            sub = (Sub) it.next();
-            if (sub.id == subId) {
-                if (sub.glID == -1)
-                    build(gl);
-                gl.glPushMatrix();
-                gl.glTranslated(x, y, z);
-                if (rx != 0)
-                    gl.glRotated(rx, 1, 0, 0);
-                if (ry != 0)
-                    gl.glRotated(ry, 0, 1, 0);
-                if (rz != 0)
-                    gl.glRotated(rz, 0, 0, 1);
-                gl.glCallList(sub.glID);
-                gl.glPopMatrix();
-                break;
+    // cos and sin of -rotation * 90 degrees (exact)
+    private static final double[] QUARTER_COS = { 1.0, 0.0, -1.0, 0.0 };
+    private static final double[] QUARTER_SIN = { 0.0, -1.0, 0.0, 1.0 };
+
+    /**
+     * precomputes the bounds of all subs for the four quarter rotations and the
+     * index of every sub id; has to be called after the subs are loaded
+     */
+    private void buildTables() {
+        int numSubs = subs.size();
+        Math3d.AABB[] table = new Math3d.AABB[numSubs * 4];
+        subIndexById = new HashMap<Integer, Integer>();
+        for (int i = 0; i < numSubs; i++) {
+            Sub sub = subs.get(i);
+            if (!subIndexById.containsKey(sub.id))
+                subIndexById.put(sub.id, i);
+            for (int r = 0; r < 4; r++) {
+                table[i * 4 + r] = new Math3d.AABB();
+                computeBounds(sub.positions, QUARTER_COS[r], QUARTER_SIN[r], table[i * 4 + r]);
             }
         }
+        bounds = table;
+    }
+
+    /**
+     * bounds of a sub rotated by rotation * 90 degrees around the y-axis; the
+     * returned box is shared by all callers and must not be modified
+     */
+    public Math3d.AABB getBounds(int subIndex, int rotation) {
+        return bounds[subIndex * 4 + (rotation & 3)];
+    }
+
+    /**
+     * index of the sub with the given id, or -1
+     */
+    public int indexOf(int subId) {
+        Integer index = subIndexById.get(subId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * index of the sub with the given id (0, if there is none)
+     */
+    public int getSubIndexFromSubId(int subId) {
+        return Math.max(indexOf(subId), 0);
+    }
+
+    public final void renderBySubId(GL2 gl, int subId, double x, double y, double z, double rx, double ry, double rz) {
+        int index = indexOf(subId);
+        if (index != -1)
+            renderBySubIndex(gl, index, x, y, z, rx, ry, rz);
     }
 
     public final void renderBySubIndex(GL2 gl, int subIndex, double x, double y, double z, double rx, double ry,
@@ -254,8 +271,6 @@ public class Object3d {
         Sub sub = subs.get(subIndex);
         if (sub == null)
             return;
-        if (sub.glID == -1)
-            build(gl);
         gl.glPushMatrix();
         gl.glTranslated(x, y, z);
         if (rx != 0)
@@ -264,7 +279,7 @@ public class Object3d {
             gl.glRotated(ry, 0, 1, 0);
         if (rz != 0)
             gl.glRotated(rz, 0, 0, 1);
-        gl.glCallList(sub.glID);
+        drawMesh(gl, sub.mesh);
         gl.glPopMatrix();
     }
 
@@ -276,73 +291,26 @@ public class Object3d {
         System.out.println("Object3d: Error: " + str);
     }
 
-    // ********** LEXER **********
-
-    private void lex(BufferedReader buff) throws IOException {
-        char character;
-        boolean inComment = false, inString = false;
-        String line;
-        int lineNo = 0;
-        int currentTokenLineNo = 0;
-        String currentTokenStr = "";
-        while (buff.ready()) {
-            line = buff.readLine();
-            lineNo++;
-            for (int i = 0; i < line.length(); i++) {
-                character = line.charAt(i);
-                if (!inComment && (character == '/' && i <= (line.length() - 2) && line.charAt(i + 1) == '/')) {
-                    if (currentTokenStr.length() > 0)
-                        tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                    currentTokenStr = "";
-                    break;
-                } else if (!inComment && (character == '/' && i <= (line.length() - 2) && line.charAt(i + 1) == '*')) {
-                    if (currentTokenStr.length() > 0)
-                        tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                    currentTokenStr = "";
-                    inComment = true;
-                } else if (character == '*' && i <= (line.length() - 2) && line.charAt(i + 1) == '/') {
-                    i++;
-                    inComment = false;
-                } else if (!inComment && character == '"') {
-                    if (!inString) {
-                        if (currentTokenStr.length() > 0)
-                            tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                        currentTokenStr = "" + character;
-                        currentTokenLineNo = lineNo;
-                        inString = true;
-                    } else {
-                        currentTokenStr = currentTokenStr + character;
-                        currentTokenLineNo = lineNo;
-                        inString = false;
-                    }
-                } else if (!inComment && !inString && (character == ' ' || character == '\n' || character == '\t')) {
-                    if (currentTokenStr.length() > 0)
-                        tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                    currentTokenStr = "";
-                } else if (!inComment && !inString && (character == '{' || character == '}'
-                        || character == '(' || character == ')'
-                        || character == '[' || character == ']'
-                        || character == ',' || character == ';'
-                        || character == ':' || character == '='
-                        || character == '+' || character == '-'
-                        || character == '*' || character == '/'
-                        || character == '%' || character == '.')) {
-                    if (currentTokenStr.length() > 0)
-                        tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                    currentTokenStr = "" + character;
-                    currentTokenLineNo = lineNo;
-                    tokens.add(new Token(currentTokenStr, currentTokenLineNo));
-                    currentTokenStr = "";
-                } else if (!inComment) {
-                    currentTokenStr = currentTokenStr + character;
-                    currentTokenLineNo = lineNo;
-                }
-            }
-        }
+    // ********** LEXER ********** (see Object3dLexer)
+
+    private boolean is(char ch) {
+        return lexer.type(tokenPos) == ch;
+    }
+
+    private boolean is(String keyword) {
+        return lexer.is(tokenPos, keyword);
+    }
+
+    private int line() {
+        return lexer.line(tokenPos);
     }
 
     // ********** PARSER **********
 
+    // ** results of parseINT() and parseDEC() **
+    private int intValue;
+    private double decValue;
+
     // <NUMBER> ::= '0'|'1'|...|'9'
     private boolean isNUMBER(char ch) {
         if (ch >= '0' && ch <= '9')
@@ -358,52 +326,40 @@ public class Object3d {
     }
 
     // <INT> ::= <NUMBER>{<NUMBER>}
-    private Object parseINT() {
+    // (result in intValue)
+    private boolean parseINT() {
         int res;
-        int startTkPos = tokenPos;
-        String tkStr;
-        boolean ok;
+        int len = lexer.length(tokenPos);
         // ** <NUMBER>{<NUMBER>} **
-        ok = true;
         res = 0;
-        tokenPos = startTkPos;
-        tkStr = tokens.get(tokenPos).str;
-        if (tkStr.length() > 0) {
+        if (lexer.type(tokenPos) == Object3dLexer.WORD && len > 0) {
             char ch;
-            for (int i = 0; i < tkStr.length(); i++) {
-                ch = tkStr.charAt(i);
-                if (isNUMBER(ch)) {
-                    res *= 10;
-                    res += ch - '0';
-                } else {
-                    ok = false;
-                    break;
-                }
-            }
-            if (ok) {
-                tokenPos++;
-                return res;
+            for (int i = 0; i < len; i++) {
+                ch = lexer.charAt(tokenPos, i);
+                if (!isNUMBER(ch))
+                    return false;
+                res *= 10;
+                res += ch - '0';
             }
+            tokenPos++;
+            intValue = res;
+            return true;
         }
         // ** no possibility **
-        tokenPos = startTkPos;
-        return null;
+        return false;
     }
 
     // <INT2> ::= <INT>','<INT>
     private INT2 parseINT2() {
         INT2 res = new INT2();
         int startTkPos = tokenPos;
-        Object tmp;
         // ** <INT>','<INT> **
-        res.x = res.y = 0;
-        tokenPos = startTkPos;
-        if ((tmp = parseINT()) != null) {
-            res.x = (Integer) tmp;
-            if (tokens.get(tokenPos).str.equals(",")) {
+        if (parseINT()) {
+            res.x = intValue;
+            if (is(',')) {
                 tokenPos++;
-                if ((tmp = parseINT()) != null) {
-                    res.y = (Integer) tmp;
+                if (parseINT()) {
+                    res.y = intValue;
                     return res;
                 }
             }
@@ -414,69 +370,51 @@ public class Object3d {
     }
 
     // <DEC> ::= ['-']<INT>'.'<INT>|['-']<INT>
-    private Object parseDEC() {
+    // (result in decValue)
+    private boolean parseDEC() {
         double res;
         boolean resNeg;
         int startTkPos = tokenPos;
-        Object tmp;
-        // ** ['-']<INT>'.'<INT> **
-        res = 0.0;
-        tokenPos = startTkPos;
+        // ** ['-']<INT>['.'<INT>] **
         resNeg = false;
-        if (tokens.get(tokenPos).str.equals("-")) {
+        if (is('-')) {
             tokenPos++;
             resNeg = true;
         }
-        if ((tmp = parseINT()) != null) {
-            res += (Integer) tmp;
-            if (tokens.get(tokenPos).str.equals(".")) {
+        if (parseINT()) {
+            res = intValue;
+            if (is('.')) {
+                int fracTkPos = tokenPos + 1;
                 tokenPos++;
-                if ((tmp = parseINT()) != null) {
-                    if ((Integer) tmp != 0)
-                        res += (Integer) tmp / Math.pow(10, Math.ceil(Math.log10((Integer) tmp)));
-                    if (resNeg)
-                        res = -res;
-                    return res;
-                }
+                if (!parseINT()) {
+                    // ** ['-']<INT> (the '.' belongs to the next rule) **
+                    tokenPos = fracTkPos - 1;
+                } else if (intValue != 0)
+                    res += intValue / Math.pow(10, lexer.length(fracTkPos));
             }
-        }
-        // ** ['-']<INT> **
-        res = 0.0;
-        tokenPos = startTkPos;
-        resNeg = false;
-        if (tokens.get(tokenPos).str.equals("-")) {
-            tokenPos++;
-            resNeg = true;
-        }
-        if ((tmp = parseINT()) != null) {
-            res += (Integer) tmp;
-            if (resNeg)
-                res = -res;
-            return res;
+            decValue = resNeg ? -res : res;
+            return true;
         }
         // ** no possibility **
         tokenPos = startTkPos;
-        return null;
+        return false;
     }
 
     // <VECTOR3> ::= <DEC>','<DEC>','<DEC>
     private VECTOR3 parseVECTOR3() {
         VECTOR3 res = new VECTOR3();
         int startTkPos = tokenPos;
-        Object tmp;
         // ** <DEC>','<DEC>','<DEC> **
-        res.x = res.y = res.z = 0.0;
-        tokenPos = startTkPos;
-        if ((tmp = parseDEC()) != null) {
-            res.x = (Double) tmp;
-            if (tokens.get(tokenPos).str.equals(",")) {
+        if (parseDEC()) {
+            res.x = decValue;
+            if (is(',')) {
                 tokenPos++;
-                if ((tmp = parseDEC()) != null) {
-                    res.y = (Double) tmp;
-                    if (tokens.get(tokenPos).str.equals(",")) {
+                if (parseDEC()) {
+                    res.y = decValue;
+                    if (is(',')) {
                         tokenPos++;
-                        if ((tmp = parseDEC()) != null) {
-                            res.z = (Double) tmp;
+                        if (parseDEC()) {
+                            res.z = decValue;
                             return res;
                         }
                     }
@@ -490,47 +428,28 @@ public class Object3d {
 
     // <IDENTIFIER> ::= <LETTER>{<LETTER>|<NUMBER>}
     private String parseIDENTIFIER() {
-        String res;
-        int startTkPos = tokenPos;
-        String tkStr;
-        boolean ok;
+        int len = lexer.length(tokenPos);
         // ** <LETTER>{<LETTER>|<NUMBER>} **
-        ok = true;
-        res = "";
-        tokenPos = startTkPos;
-        tkStr = tokens.get(tokenPos).str;
-        if (tkStr.length() >= 1 && isLETTER(tkStr.charAt(0))) {
-            for (int i = 1; i < tkStr.length(); i++) {
-                if (!isLETTER(tkStr.charAt(i)) && !isNUMBER(tkStr.charAt(i)))
-                    ok = false;
-            }
-            if (ok) {
-                tokenPos++;
-                res = tkStr;
-                return res;
+        if (lexer.type(tokenPos) == Object3dLexer.WORD && len >= 1 && isLETTER(lexer.charAt(tokenPos, 0))) {
+            char ch;
+            for (int i = 1; i < len; i++) {
+                ch = lexer.charAt(tokenPos, i);
+                if (!isLETTER(ch) && !isNUMBER(ch))
+                    return null;
             }
+            return lexer.substring(tokenPos++, 0, len);
         }
         // ** no possibility **
-        tokenPos = startTkPos;
         return null;
     }
 
     // <STRING> ::= '"'{<ASCII>}'"'
     private String parseSTRING() {
-        String res;
-        int startTkPos = tokenPos;
-        String tkStr;
+        int len = lexer.length(tokenPos);
         // ** possibility I **
-        res = "";
-        tokenPos = startTkPos;
-        tkStr = tokens.get(tokenPos).str;
-        if (tkStr.length() >= 2 && tkStr.charAt(0) == '"' && tkStr.charAt(tkStr.length() - 1) == '"') {
-            tokenPos++;
-            res = tkStr.substring(1, tkStr.length() - 1);
-            return res;
-        }
+        if (lexer.type(tokenPos) == Object3dLexer.STRING && len >= 2 && lexer.charAt(tokenPos, len - 1) == '"')
+            return lexer.substring(tokenPos++, 1, len - 1);
         // ** no possibility **
-        tokenPos = startTkPos;
         return null;
     }
 
@@ -542,14 +461,14 @@ public class Object3d {
         Object tmp;
         // ** ID''='<INTEGER>';' **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("ID")) {
+        if (is("ID")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
-                if ((tmp = parseINT()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                if (parseINT()) {
+                    if (is(';')) {
                         tokenPos++;
-                        generateSubId((Integer) tmp);
+                        generateSubId(intValue);
                         return true;
                     }
                 }
@@ -557,12 +476,12 @@ public class Object3d {
         }
         // ** 'CAPTION''='<STRING>';' **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("CAPTION")) {
+        if (is("CAPTION")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
                 if ((tmp = parseSTRING()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                    if (is(';')) {
                         tokenPos++;
                         generateSubCaption((String) tmp);
                         return true;
@@ -572,12 +491,12 @@ public class Object3d {
         }
         // ** 'SCALE''='<VECTOR3>'; **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("SCALE")) {
+        if (is("SCALE")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
                 if ((tmp = parseVECTOR3()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                    if (is(';')) {
                         tokenPos++;
                         generateSubScale((VECTOR3) tmp);
                         return true;
@@ -587,14 +506,14 @@ public class Object3d {
         }
         // ** 'TEX_SIZE'=<INTEGER>';' **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("TEX_SIZE")) {
+        if (is("TEX_SIZE")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
-                if ((tmp = parseINT()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                if (parseINT()) {
+                    if (is(';')) {
                         tokenPos++;
-                        generateSubTextureSize((Integer) tmp);
+                        generateSubTextureSize(intValue);
                         return true;
                     }
                 }
@@ -602,12 +521,12 @@ public class Object3d {
         }
         // ** 'TEX_FILE''='<STRING> **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("TEX_FILE")) {
+        if (is("TEX_FILE")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
                 if ((tmp = parseSTRING()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                    if (is(';')) {
                         tokenPos++;
                         generateSubTextureFilename((String) tmp);
                         return true;
@@ -617,12 +536,12 @@ public class Object3d {
         }
         // ** 'TRANSLATION''='<VECTOR3>';' **
         tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("TRANSLATION")) {
+        if (is("TRANSLATION")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("=")) {
+            if (is('=')) {
                 tokenPos++;
                 if ((tmp = parseVECTOR3()) != null) {
-                    if (tokens.get(tokenPos).str.equals(";")) {
+                    if (is(';')) {
                         tokenPos++;
                         generateSubTranslation((VECTOR3) tmp);
                         return true;
@@ -636,26 +555,22 @@ public class Object3d {
     }
 
     // <INDEX> ::= "["<INT>"]"
-    private Object parseINDEX() {
-        int res;
+    // (result in intValue)
+    private boolean parseINDEX() {
         int startTkPos = tokenPos;
-        Object tmp;
         // ** "["<INT>"]" **
-        res = 0;
-        tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("[")) {
+        if (is('[')) {
             tokenPos++;
-            if ((tmp = parseINT()) != null) {
-                res = (Integer) tmp;
-                if (tokens.get(tokenPos).str.equals("]")) {
+            if (parseINT()) {
+                if (is(']')) {
                     tokenPos++;
-                    return res;
+                    return true;
                 }
             }
         }
         // ** no possibility **
         tokenPos = startTkPos;
-        return null;
+        return false;
     }
 
     // <VERTICES> ::= 'VERT''{'{[<INDEX>]<VECTOR3>';'}'}'
@@ -666,21 +581,20 @@ public class Object3d {
         boolean ok;
         // ** 'VERT''{'{[<INDEX>]<VECTOR3>';'}'}' **
         ok = true;
-        tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("VERT")) {
+        if (is("VERT")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("{")) {
+            if (is('{')) {
                 tokenPos++;
                 while (true) {
                     index = -1;
-                    if (tokens.get(tokenPos).str.equals("}")) {
+                    if (is('}')) {
                         tokenPos++;
                         break;
                     }
-                    if ((tmp = parseINDEX()) != null) {
-                        index = (Integer) tmp;
+                    if (parseINDEX()) {
+                        index = intValue;
                     }
-                    if ((tmp = parseVECTOR3()) == null || !tokens.get(tokenPos).str.equals(";")) {
+                    if ((tmp = parseVECTOR3()) == null || !is(';')) {
                         ok = false;
                         break;
                     } else {
@@ -691,9 +605,9 @@ public class Object3d {
                 if (ok)
                     return true;
                 else
-                    err("error: parseVERTICES()", tokens.get(tokenPos).srcLine);
+                    err("error: parseVERTICES()", line());
             } else
-                err("error: parseVERTICES()", tokens.get(tokenPos).srcLine);
+                err("error: parseVERTICES()", line());
         }
         // ** no possibility **
         tokenPos = startTkPos;
@@ -705,14 +619,11 @@ public class Object3d {
         TEXCO2 res;
         int startTkPos = tokenPos;
         Object tmp;
-        boolean ok;
         // ** <INT2>':'<INT2> **
         res = new TEXCO2();
-        ok = true;
-        tokenPos = startTkPos;
         if ((tmp = parseINT2()) != null) {
             res.list.add((INT2) tmp);
-            if (tokens.get(tokenPos).str.equals(":")) {
+            if (is(':')) {
                 tokenPos++;
                 res.rect = true;
                 if ((tmp = parseINT2()) != null) {
@@ -723,30 +634,26 @@ public class Object3d {
         }
         // <INT2>','<INT2>','<INT2>{','<INT2>}
         res = new TEXCO2();
-        ok = true;
         tokenPos = startTkPos;
         if ((tmp = parseINT2()) != null) {
             res.list.add((INT2) tmp);
-            if (tokens.get(tokenPos).str.equals(",")) {
+            if (is(',')) {
                 tokenPos++;
                 if ((tmp = parseINT2()) != null) {
                     res.list.add((INT2) tmp);
-                    if (tokens.get(tokenPos).str.equals(",")) {
+                    if (is(',')) {
                         tokenPos++;
                         if ((tmp = parseINT2()) != null) {
                             res.list.add((INT2) tmp);
-                            while (tokens.get(tokenPos).str.equals(",")) {
+                            while (is(',')) {
                                 tokenPos++;
-                                if ((tmp = parseINT2()) != null) {
-                                    res.list.add((INT2) tmp);
-                                } else {
-                                    ok = false;
-                                    break;
+                                if ((tmp = parseINT2()) == null) {
+                                    tokenPos = startTkPos;
+                                    return null;
                                 }
+                                res.list.add((INT2) tmp);
                             }
-                            if (ok) {
-                                return res;
-                            }
+                            return res;
                         }
                     }
                 }
@@ -765,21 +672,20 @@ public class Object3d {
         boolean ok;
         // ** 'TEX_COO''{'{[<INDEX>]<TEXCO2>';'}'}' **
         ok = true;
-        tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("TEX_COO")) {
+        if (is("TEX_COO")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("{")) {
+            if (is('{')) {
                 tokenPos++;
                 while (true) {
                     index = -1;
-                    if (tokens.get(tokenPos).str.equals("}")) {
+                    if (is('}')) {
                         tokenPos++;
                         break;
                     }
-                    if ((tmp = parseINDEX()) != null) {
-                        index = (Integer) tmp;
+                    if (parseINDEX()) {
+                        index = intValue;
                     }
-                    if ((tmp = parseTEXCO2()) == null || !tokens.get(tokenPos).str.equals(";")) {
+                    if ((tmp = parseTEXCO2()) == null || !is(';')) {
                         ok = false;
                         break;
                     } else {
@@ -790,9 +696,9 @@ public class Object3d {
                 if (ok)
                     return true;
                 else
-                    err("error: parseTEXTURECOORDS()", tokens.get(tokenPos).srcLine);
+                    err("error: parseTEXTURECOORDS()", line());
             } else
-                err("error: parseTEXTURECOORDS()", tokens.get(tokenPos).srcLine);
+                err("error: parseTEXTURECOORDS()", line());
         }
         // ** no possibility **
         tokenPos = startTkPos;
@@ -803,34 +709,27 @@ public class Object3d {
     private FACE parseFACE() {
         FACE res;
         int startTkPos = tokenPos;
-        Object tmp;
-        boolean ok;
         // <INT>','<INT>','<INT>{','<INT>}
         res = new FACE();
-        ok = true;
-        tokenPos = startTkPos;
-        if ((tmp = parseINT()) != null) {
-            res.indicesVert.add((Integer) tmp);
-            if (tokens.get(tokenPos).str.equals(",")) {
+        if (parseINT()) {
+            res.indicesVert.add(intValue);
+            if (is(',')) {
                 tokenPos++;
-                if ((tmp = parseINT()) != null) {
-                    res.indicesVert.add((Integer) tmp);
-                    if (tokens.get(tokenPos).str.equals(",")) {
+                if (parseINT()) {
+                    res.indicesVert.add(intValue);
+                    if (is(',')) {
                         tokenPos++;
-                        if ((tmp = parseINT()) != null) {
-                            res.indicesVert.add((Integer) tmp);
-                            while (tokens.get(tokenPos).str.equals(",")) {
+                        if (parseINT()) {
+                            res.indicesVert.add(intValue);
+                            while (is(',')) {
                                 tokenPos++;
-                                if ((tmp = parseINT()) != null) {
-                                    res.indicesVert.add((Integer) tmp);
-                                } else {
-                                    ok = false;
-                                    break;
+                                if (!parseINT()) {
+                                    tokenPos = startTkPos;
+                                    return null;
                                 }
+                                res.indicesVert.add(intValue);
                             }
-                            if (ok) {
-                                return res;
-                            }
+                            return res;
                         }
                     }
                 }
@@ -844,48 +743,45 @@ public class Object3d {
     // <FACES> ::= 'FACES''{'{[<INDEX>]<FACE>';'<INT>';'}'}'
     private boolean parseFACES() {
         int startTkPos = tokenPos;
-        Object tmp;
         int index;
         FACE face;
         boolean ok;
         // ** 'FACES''{'{[<INDEX>]<FACE>';'<INT>';'}'}' **
         ok = true;
-        tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("FACES")) {
+        if (is("FACES")) {
             tokenPos++;
-            if (tokens.get(tokenPos).str.equals("{")) {
+            if (is('{')) {
                 tokenPos++;
                 while (true) {
                     index = -1;
-                    if (tokens.get(tokenPos).str.equals("}")) {
+                    if (is('}')) {
                         tokenPos++;
                         break;
                     }
-                    if ((tmp = parseINDEX()) != null) {
-                        index = (Integer) tmp;
+                    if (parseINDEX()) {
+                        index = intValue;
                     }
-                    if ((tmp = parseFACE()) == null || !tokens.get(tokenPos).str.equals(";")) {
+                    if ((face = parseFACE()) == null || !is(';')) {
                         ok = false;
                         break;
                     } else {
                         tokenPos++;
-                        face = (FACE) tmp;
                     }
-                    if ((tmp = parseINT()) == null || !tokens.get(tokenPos).str.equals(";")) {
+                    if (!parseINT() || !is(';')) {
                         ok = false;
                         break;
                     } else {
                         tokenPos++;
-                        face.textureCooIndex = (Integer) tmp;
+                        face.textureCooIndex = intValue;
                         generateSubFace(index, face);
                     }
                 }
                 if (ok)
                     return true;
                 else
-                    err("error: parseFACES()", tokens.get(tokenPos).srcLine);
+                    err("error: parseFACES()", line());
             } else
-                err("error: parseFACES()", tokens.get(tokenPos).srcLine);
+                err("error: parseFACES()", line());
         }
         // ** no possibility **
         tokenPos = startTkPos;
@@ -894,11 +790,7 @@ public class Object3d {
 
     // <DEFINITION> ::= <VERTICES>|<TEXTURECOORDS>|<FACES>
     private boolean parseDEFINITION() {
-        int startTkPos = tokenPos;
-        boolean ok;
         // ** <VERTICES> **
-        ok = true;
-        tokenPos = startTkPos;
         if (parseVERTICES())
             return true;
         // ** <TEXTURECOORDS> **
@@ -908,7 +800,6 @@ public class Object3d {
         if (parseFACES())
             return true;
         // ** no possibility **
-        tokenPos = startTkPos;
         return false;
     }
 
@@ -921,31 +812,30 @@ public class Object3d {
         // ** 'OBJ'<IDENTIFIER>['CLONEOF'<IDENTIFIER>]'{'{<STATEMENT>|<DEFINITION>}'}'
         // **
         ok = true;
-        tokenPos = startTkPos;
-        if (tokens.get(tokenPos).str.equals("OBJ")) {
+        if (is("OBJ")) {
             tokenPos++;
             if ((tmp = parseIDENTIFIER()) != null) {
                 if (!generateNewSub((String) tmp)) {
-                    err("parseOBJECT(): obj-name already exists", tokens.get(tokenPos).srcLine);
+                    err("parseOBJECT(): obj-name already exists", line());
                     tokenPos = startTkPos;
                     return false;
                 }
-                if (tokens.get(tokenPos).str.equals("CLONEOF")) {
+                if (is("CLONEOF")) {
                     tokenPos++;
                     if ((tmp = parseIDENTIFIER()) == null || !generateClone((String) tmp)) {
                         tokenPos = startTkPos;
-                        err("parseOBJECT(): cloning failed (check spelling of src-obj)", tokens.get(tokenPos).srcLine);
+                        err("parseOBJECT(): cloning failed (check spelling of src-obj)", line());
                         return false;
                     }
                 }
-                if (tokens.get(tokenPos).str.equals("{")) {
+                if (is('{')) {
                     tokenPos++;
-                    while (!tokens.get(tokenPos).str.equals("}")) {
+                    while (!is('}')) {
                         if (parseSTATEMENT())
                             continue;
                         if (parseDEFINITION())
                             continue;
-                        err("parseOBJECT(): error", tokens.get(tokenPos).srcLine);
+                        err("parseOBJECT(): error", line());
                         ok = false;
                         break;
                     }
@@ -967,14 +857,14 @@ public class Object3d {
         if (currentSub != null)
             currentSub.id = id;
         else
-            err("error: generateSubId(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubId(..): no currentSub", line());
     }
 
     private void generateSubCaption(String caption) {
         if (currentSub != null)
             currentSub.caption = caption;
         else
-            err("error: generateSubCaption(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubCaption(..): no currentSub", line());
     }
 
     private void generateSubScale(VECTOR3 vec3) {
@@ -983,7 +873,7 @@ public class Object3d {
             currentSub.scale.y = vec3.y;
             currentSub.scale.z = vec3.z;
         } else
-            err("error: generateScale(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateScale(..): no currentSub", line());
     }
 
     private void generateSubTranslation(VECTOR3 vec3) {
@@ -992,21 +882,21 @@ public class Object3d {
             currentSub.translation.y = vec3.y;
             currentSub.translation.z = vec3.z;
         } else
-            err("error: generateSubTranslation(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubTranslation(..): no currentSub", line());
     }
 
     private void generateSubTextureSize(int textureSize) {
         if (currentSub != null)
             currentSub.textureSize = textureSize;
         else
-            err("error: generateSubTextureSize(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubTextureSize(..): no currentSub", line());
     }
 
     private void generateSubTextureFilename(String textureFilename) {
         if (currentSub != null)
             currentSub.textureFilename = textureFilename;
         else
-            err("error: generateSubTextureFilename(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubTextureFilename(..): no currentSub", line());
     }
 
     private void generateSubVertex(int index, VECTOR3 vec) {
@@ -1017,9 +907,9 @@ public class Object3d {
                 currentSub.vertices.set(index, vec);
             else
                 err("error: generateSubVertex(..): invalid index (check also, if OBJ is clone)",
-                        tokens.get(tokenPos).srcLine);
+                        line());
         } else
-            err("error: generateSubVertex(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubVertex(..): no currentSub", line());
     }
 
     private void generateSubTextureCoordinate(int index, TEXCO2 texco) {
@@ -1030,9 +920,9 @@ public class Object3d {
                 currentSub.textureCoordinates.set(index, texco);
             else
                 err("error: generateSubTextureCoordinate(..): invalid index (check also, if OBJ is clone)",
-                        tokens.get(tokenPos).srcLine);
+                        line());
         } else
-            err("error: generateSubTextureCoordinate(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubTextureCoordinate(..): no currentSub", line());
     }
 
     private void generateSubFace(int index, FACE face) {
@@ -1043,20 +933,17 @@ public class Object3d {
                 currentSub.faces.set(index, face);
             else
                 err("error: generateSubFace(..): invalid index (check also, if OBJ is clone)",
-                        tokens.get(tokenPos).srcLine);
+                        line());
         } else
-            err("error: generateSubFace(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateSubFace(..): no currentSub", line());
     }
 
     private boolean generateNewSub(String name) {
-        Sub sub;
-        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-            sub = (Sub) it.next();
-            if (sub.name.equals(name))
-                return false;
-        }
-        sub = new Sub();
+        if (subIndexByName.containsKey(name))
+            return false;
+        Sub sub = new Sub();
         sub.name = name;
+        subIndexByName.put(name, subs.size());
         subs.add(sub);
         currentSub = sub;
         return true;
@@ -1064,147 +951,529 @@ public class Object3d {
 
     private boolean generateClone(String sourceName) {
         if (currentSub != null) {
-            Sub sub;
-            int indexCurrentSub = 0;
-            for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-                sub = (Sub) it.next();
-                if (sub == currentSub)
-                    break;
-                indexCurrentSub++;
-            }
-            for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
-                sub = (Sub) it.next();
-                if (sub.name.equals(sourceName) && sub != currentSub) {
-                    currentSub = sub.clone();
-                    currentSub.name = subs.get(indexCurrentSub).name;
-                    subs.set(indexCurrentSub, currentSub);
-                    return true;
-                }
+            Integer indexCurrentSub = subIndexByName.get(currentSub.name);
+            Integer indexSource = subIndexByName.get(sourceName);
+            if (indexSource != null && !indexSource.equals(indexCurrentSub)) {
+                currentSub = subs.get(indexSource).clone();
+                currentSub.name = subs.get(indexCurrentSub).name;
+                subs.set(indexCurrentSub, currentSub);
+                return true;
             }
-            err("error: generateClone(..): source-obj not found", tokens.get(tokenPos).srcLine);
+            err("error: generateClone(..): source-obj not found", line());
         } else
-            err("error: generateClone(..): no currentSub", tokens.get(tokenPos).srcLine);
+            err("error: generateClone(..): no currentSub", line());
         return false;
     }
 
-    public void build(GL2 gl) {
-        Math3d.Double3 vec0 = new Math3d.Double3();
-        Math3d.Double3 vec1 = new Math3d.Double3();
-        Math3d.Double3 vec2 = new Math3d.Double3();
-        Math3d.Double3 norm0 = new Math3d.Double3();
-        Math3d.Double2 tex0 = new Math3d.Double2();
-        Math3d.Double2 tex1 = new Math3d.Double2();
-        Math3d.Double2 tex2 = new Math3d.Double2();
+    /**
+     * baked geometry of a sub: interleaved vertices (position, normal, texture
+     * coordinate) and triangle indices. does not need a gl context; the vbos
+     * are created by build(..).
+     */
+    public static class Mesh {
+        /**
+         * floats per vertex: position (3), normal (3), texture coordinate (2)
+         */
+        public static final int VERTEX_SIZE = 8;
+        public static final int NORMAL_OFFSET = 3;
+        public static final int TEXCOORD_OFFSET = 6;
+
+        private final FloatBuffer vertices;
+        private final IntBuffer indices;
+        private final int numVertices;
+        private final int numIndices;
+        int vbo = 0, ibo = 0; // 0 = not uploaded yet
+
+        Mesh(float[] vertexData, int numVertices, int[] indexData, int numIndices) {
+            this(Buffers.newDirectFloatBuffer(vertexData, 0, numVertices * VERTEX_SIZE), numVertices,
+                    Buffers.newDirectIntBuffer(indexData, 0, numIndices), numIndices);
+        }
 
-        Sub sub;
-        for (Iterator<Sub> it = this.subs.iterator(); it.hasNext();) {
-            sub = (Sub) it.next();
-            sub.glID = gl.glGenLists(1);
-            gl.glNewList(sub.glID, GL2.GL_COMPILE);
-            gl.glBegin(GL2.GL_TRIANGLES);
-
-            FACE face;
-            for (Iterator<FACE> it2 = sub.faces.iterator(); it2.hasNext();) {
-                face = (FACE) it2.next();
-                for (int i = 1; i < face.indicesVert.size() - 1; i++) {
-                    tex0.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(0).x + 0.5)
-                            / (double) sub.textureSize;
-                    tex0.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(0).y + 0.5)
-                            / (double) sub.textureSize;
-                    if (sub.textureCoordinates.get(face.textureCooIndex).rect) {
-                        if (i == 1) {
-                            tex1.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(0).x + 0.5)
-                                    / (double) sub.textureSize;
-                            tex1.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).y + 0.5)
-                                    / (double) sub.textureSize;
-                            tex2.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).x + 0.5)
-                                    / (double) sub.textureSize;
-                            tex2.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).y + 0.5)
-                                    / (double) sub.textureSize;
-                        } else if (i == 2) {
-                            tex1.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).x + 0.5)
-                                    / (double) sub.textureSize;
-                            tex1.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).y + 0.5)
-                                    / (double) sub.textureSize;
-                            tex2.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(1).x + 0.5)
-                                    / (double) sub.textureSize;
-                            tex2.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(0).y + 0.5)
-                                    / (double) sub.textureSize;
-                        } else {
-                            err("build(..): too many triangles for texcoo");
-                        }
+        /**
+         * uses the given (direct) buffers without copying
+         */
+        Mesh(FloatBuffer vertices, int numVertices, IntBuffer indices, int numIndices) {
+            this.vertices = vertices;
+            this.numVertices = numVertices;
+            this.indices = indices;
+            this.numIndices = numIndices;
+        }
+
+        /**
+         * read-only view of the interleaved vertices
+         */
+        public FloatBuffer getVertices() {
+            return vertices.asReadOnlyBuffer();
+        }
+
+        /**
+         * read-only view of the indices (three per triangle)
+         */
+        public IntBuffer getIndices() {
+            return indices.asReadOnlyBuffer();
+        }
+
+        public int getNumVertices() {
+            return numVertices;
+        }
+
+        public int getNumIndices() {
+            return numIndices;
+        }
+
+        public int getVBO() {
+            return vbo;
+        }
+
+        public int getIBO() {
+            return ibo;
+        }
+    }
+
+    /**
+     * key for merging equal vertices while baking
+     */
+    private static class VertexKey {
+        float[] data;
+        int hash;
+
+        VertexKey(float[] src, int offset) {
+            data = Arrays.copyOfRange(src, offset, offset + Mesh.VERTEX_SIZE);
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof VertexKey && Arrays.equals(data, ((VertexKey) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * triangulates all faces of a sub (scale and translation already applied);
+     * vertices which are equal in position, normal and texture coordinate are
+     * stored only once. no gl-context is needed, the mesh is uploaded by
+     * build(gl).
+     */
+    Mesh bakeMesh(Sub sub) {
+        int numTriangles = 0;
+        for (Iterator<FACE> it = sub.faces.iterator(); it.hasNext();)
+            numTriangles += Math.max(0, ((FACE) it.next()).indicesVert.size() - 2);
+        float[] vertexData = new float[numTriangles * 3 * Mesh.VERTEX_SIZE];
+        int[] indexData = new int[numTriangles * 3];
+        HashMap<VertexKey, Integer> unique = new HashMap<VertexKey, Integer>();
+        int numVertices = 0, numIndices = 0;
+
+        double texScale = 1.0 / (double) sub.textureSize;
+        double[] u = new double[3];
+        double[] v = new double[3];
+        VECTOR3[] p = new VECTOR3[3];
+        FACE face;
+        ArrayList<INT2> texco;
+        boolean rect;
+        for (Iterator<FACE> it = sub.faces.iterator(); it.hasNext();) {
+            face = (FACE) it.next();
+            texco = sub.textureCoordinates.get(face.textureCooIndex).list;
+            rect = sub.textureCoordinates.get(face.textureCooIndex).rect;
+            p[0] = sub.vertices.get(face.indicesVert.get(0));
+            u[0] = (texco.get(0).x + 0.5) * texScale;
+            v[0] = (texco.get(0).y + 0.5) * texScale;
+            for (int i = 1; i < face.indicesVert.size() - 1; i++) {
+                p[1] = sub.vertices.get(face.indicesVert.get(i));
+                p[2] = sub.vertices.get(face.indicesVert.get(i + 1));
+                if (rect) {
+                    // texture rectangle: list(0) and list(1) are opposite corners
+                    if (i == 1) {
+                        u[1] = (texco.get(0).x + 0.5) * texScale;
+                        v[1] = (texco.get(1).y + 0.5) * texScale;
+                        u[2] = (texco.get(1).x + 0.5) * texScale;
+                        v[2] = (texco.get(1).y + 0.5) * texScale;
+                    } else if (i == 2) {
+                        u[1] = (texco.get(1).x + 0.5) * texScale;
+                        v[1] = (texco.get(1).y + 0.5) * texScale;
+                        u[2] = (texco.get(1).x + 0.5) * texScale;
+                        v[2] = (texco.get(0).y + 0.5) * texScale;
                     } else {
-                        tex1.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(i).x + 0.5)
-                                / (double) sub.textureSize;
-                        tex1.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(i).y + 0.5)
-                                / (double) sub.textureSize;
-                        tex2.x = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(i + 1).x + 0.5)
-                                / (double) sub.textureSize;
-                        tex2.y = ((double) sub.textureCoordinates.get(face.textureCooIndex).list.get(i + 1).y + 0.5)
-                                / (double) sub.textureSize;
+                        err("bakeMesh(..): too many triangles for texcoo");
                     }
+                } else {
+                    u[1] = (texco.get(i).x + 0.5) * texScale;
+                    v[1] = (texco.get(i).y + 0.5) * texScale;
+                    u[2] = (texco.get(i + 1).x + 0.5) * texScale;
+                    v[2] = (texco.get(i + 1).y + 0.5) * texScale;
+                }
 
-                    vec0.x = sub.vertices.get(face.indicesVert.get(0)).x;
-                    vec0.y = sub.vertices.get(face.indicesVert.get(0)).y;
-                    vec0.z = sub.vertices.get(face.indicesVert.get(0)).z;
-                    vec1.x = sub.vertices.get(face.indicesVert.get(i)).x;
-                    vec1.y = sub.vertices.get(face.indicesVert.get(i)).y;
-                    vec1.z = sub.vertices.get(face.indicesVert.get(i)).z;
-                    vec2.x = sub.vertices.get(face.indicesVert.get(i + 1)).x;
-                    vec2.y = sub.vertices.get(face.indicesVert.get(i + 1)).y;
-                    vec2.z = sub.vertices.get(face.indicesVert.get(i + 1)).z;
-
-                    norm0 = Math3d.Double3.crossProduct(Math3d.Double3.sub(vec1, vec0), Math3d.Double3.sub(vec2, vec0));
-                    norm0.normalize();
-
-                    gl.glTexCoord2d(tex0.x, 1.0 - tex0.y);
-                    gl.glNormal3d(norm0.x, norm0.y, norm0.z);
-                    gl.glVertex3d(vec0.x * sub.scale.x + sub.translation.x, vec0.y * sub.scale.y + sub.translation.y,
-                            vec0.z * sub.scale.z + sub.translation.z);
-
-                    gl.glTexCoord2d(tex1.x, 1.0 - tex1.y);
-                    gl.glNormal3d(norm0.x, norm0.y, norm0.z);
-                    gl.glVertex3d(vec1.x * sub.scale.x + sub.translation.x, vec1.y * sub.scale.y + sub.translation.y,
-                            vec1.z * sub.scale.z + sub.translation.z);
-
-                    gl.glTexCoord2d(tex2.x, 1.0 - tex2.y);
-                    gl.glNormal3d(norm0.x, norm0.y, norm0.z);
-                    gl.glVertex3d(vec2.x * sub.scale.x + sub.translation.x, vec2.y * sub.scale.y + sub.translation.y,
-                            vec2.z * sub.scale.z + sub.translation.z);
+                // normal = (p1 - p0) x (p2 - p0)
+                double ax = p[1].x - p[0].x, ay = p[1].y - p[0].y, az = p[1].z - p[0].z;
+                double bx = p[2].x - p[0].x, by = p[2].y - p[0].y, bz = p[2].z - p[0].z;
+                double nx = ay * bz - az * by;
+                double ny = az * bx - ax * bz;
+                double nz = ax * by - ay * bx;
+                double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (len > 0.0) {
+                    nx /= len;
+                    ny /= len;
+                    nz /= len;
+                }
+
+                for (int k = 0; k < 3; k++) {
+                    int n = numVertices * Mesh.VERTEX_SIZE;
+                    vertexData[n] = (float) (p[k].x * sub.scale.x + sub.translation.x);
+                    vertexData[n + 1] = (float) (p[k].y * sub.scale.y + sub.translation.y);
+                    vertexData[n + 2] = (float) (p[k].z * sub.scale.z + sub.translation.z);
+                    vertexData[n + 3] = (float) nx;
+                    vertexData[n + 4] = (float) ny;
+                    vertexData[n + 5] = (float) nz;
+                    vertexData[n + 6] = (float) u[k];
+                    vertexData[n + 7] = (float) (1.0 - v[k]);
+                    VertexKey key = new VertexKey(vertexData, n);
+                    Integer index = unique.get(key);
+                    if (index == null) {
+                        index = numVertices++;
+                        unique.put(key, index);
+                    }
+                    indexData[numIndices++] = index;
                 }
             }
-            gl.glEnd();
-            gl.glEndList();
         }
+        return new Mesh(vertexData, numVertices, indexData, numIndices);
     }
 
-    public boolean loadFromFile(String filename) {
-        subs = new ArrayList<Sub>();
+    /**
+     * parsed sub with the given index (do not modify)
+     */
+    Sub getSub(int subIndex) {
+        return subs.get(subIndex);
+    }
 
-        // ***** LEX *****
+    /**
+     * baked mesh of the sub with the given index
+     */
+    public Mesh getMesh(int subIndex) {
+        return subs.get(subIndex).mesh;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * uploads the baked meshes of all subs into vertex- and index-buffers
+     */
+    public void build(GL2 gl) {
+        int[] ids = new int[2];
+        Mesh mesh;
+        for (Iterator<Sub> it = this.subs.iterator(); it.hasNext();) {
+            mesh = ((Sub) it.next()).mesh;
+            gl.glGenBuffers(2, ids, 0);
+            mesh.vbo = ids[0];
+            mesh.ibo = ids[1];
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.vbo);
+            gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) mesh.numVertices * Mesh.VERTEX_SIZE * Buffers.SIZEOF_FLOAT,
+                    mesh.vertices, GL2.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.ibo);
+            gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long) mesh.numIndices * Buffers.SIZEOF_INT, mesh.indices,
+                    GL2.GL_STATIC_DRAW);
+        }
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+        built = true;
+    }
+
+    public void dispose(GL2 gl) {
+        if (!built)
+            return;
+        Mesh mesh;
+        for (Iterator<Sub> it = this.subs.iterator(); it.hasNext();) {
+            mesh = ((Sub) it.next()).mesh;
+            gl.glDeleteBuffers(2, new int[] { mesh.vbo, mesh.ibo }, 0);
+            mesh.vbo = 0;
+            mesh.ibo = 0;
+        }
+        built = false;
+    }
+
+    /**
+     * enables the vertex arrays for a sequence of renderBySub..(..) calls;
+     * meshes are only re-bound if the sub changes
+     */
+    public void beginRender(GL2 gl) {
+        if (!built)
+            build(gl);
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+        rendering = true;
+        boundMesh = null;
+    }
+
+    public void endRender(GL2 gl) {
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+        gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+        rendering = false;
+        boundMesh = null;
+    }
+
+    private void drawMesh(GL2 gl, Mesh mesh) {
+        boolean single = !rendering;
+        if (single)
+            beginRender(gl);
+        if (mesh != boundMesh) {
+            int stride = Mesh.VERTEX_SIZE * Buffers.SIZEOF_FLOAT;
+            gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.vbo);
+            gl.glVertexPointer(3, GL2.GL_FLOAT, stride, 0);
+            gl.glNormalPointer(GL2.GL_FLOAT, stride, Mesh.NORMAL_OFFSET * Buffers.SIZEOF_FLOAT);
+            gl.glTexCoordPointer(2, GL2.GL_FLOAT, stride, Mesh.TEXCOORD_OFFSET * Buffers.SIZEOF_FLOAT);
+            gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.ibo);
+            boundMesh = mesh;
+        }
+        gl.glDrawElements(GL2.GL_TRIANGLES, mesh.numIndices, GL2.GL_UNSIGNED_INT, 0);
+        if (single)
+            endRender(gl);
+    }
+
+    // ********** BINARY CACHE **********
+
+    /*
+     * a parsed and baked library is written into a binary cache file, which
+     * is memory-mapped on the next start instead of lexing and parsing the
+     * text again. the cache is only used if the sha-256 of the source text
+     * and the version match; the version has to be increased whenever the
+     * parser or the bake produce different data from the same text (2: the
+     * span-based lexer, fractions scaled by their number of digits). layout
+     * (little endian):
+     *   int magic, int version, byte[32] hash, int numSubs,
+     *   per sub: int id, int textureSize, string caption, string name,
+     *            string textureFilename, int numPositions, int numVertices,
+     *            int numIndices, double[3*numPositions] positions,
+     *            float[VERTEX_SIZE*numVertices] vertices, int[numIndices] indices
+     *   string: int length, utf-8 bytes
+     */
+    private static final int CACHE_MAGIC = 0x42444C43; // "BDLC"
+    private static final int CACHE_VERSION = 2;
+
+    /**
+     * directory of the cache files; may be changed with the system-property
+     * "blockdesigner.cacheDir"
+     */
+    public static File getCacheDir() {
+        String dir = System.getProperty("blockdesigner.cacheDir");
+        if (dir != null)
+            return new File(dir);
+        return new File(System.getProperty("user.home"), ".blockdesigner");
+    }
+
+    private static File getCacheFile(String filename) {
+        return new File(getCacheDir(), filename + ".cache");
+    }
+
+    private static byte[] readResource(String filename) throws IOException {
+        InputStream is = GuiMainFrame.class.getResourceAsStream("/" + filename);
+        if (is == null)
+            throw new FileNotFoundException(filename);
+        try {
+            return is.readAllBytes();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            return new byte[32];
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buf, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * maps the cache file; the vertex- and index-buffers of the meshes are
+     * views of the mapped file. returns false, if the cache is missing,
+     * outdated or broken.
+     */
+    private boolean loadCache(File file, byte[] hash) {
+        if (!file.isFile())
+            return false;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            MappedByteBuffer buf;
+            try {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt() != CACHE_MAGIC || buf.getInt() != CACHE_VERSION)
+                return false;
+            byte[] cachedHash = new byte[32];
+            buf.get(cachedHash);
+            if (!Arrays.equals(cachedHash, hash))
+                return false;
+            int numSubs = buf.getInt();
+            ArrayList<Sub> cached = new ArrayList<Sub>(numSubs);
+            for (int i = 0; i < numSubs; i++) {
+                Sub sub = new Sub();
+                sub.id = buf.getInt();
+                sub.textureSize = buf.getInt();
+                sub.caption = getString(buf);
+                sub.name = getString(buf);
+                sub.textureFilename = getString(buf);
+                int numPositions = buf.getInt();
+                int numVertices = buf.getInt();
+                int numIndices = buf.getInt();
+                sub.positions = new double[3 * numPositions];
+                buf.asDoubleBuffer().get(sub.positions);
+                buf.position(buf.position() + sub.positions.length * 8);
+                FloatBuffer vertices = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                vertices.limit(numVertices * Mesh.VERTEX_SIZE);
+                buf.position(buf.position() + numVertices * Mesh.VERTEX_SIZE * 4);
+                IntBuffer indices = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                indices.limit(numIndices);
+                buf.position(buf.position() + numIndices * 4);
+                sub.mesh = new Mesh(vertices, numVertices, indices, numIndices);
+                cached.add(sub);
+            }
+            subs = cached;
+            return true;
+        } catch (IOException e) {
+            err("loadCache(..): " + e.getMessage());
+        } catch (RuntimeException e) {
+            err("loadCache(..): broken cache-file " + file);
+        }
+        return false;
+    }
+
+    private void writeCache(File file, byte[] hash) {
+        Sub sub;
+        int size = 44;
+        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
+            sub = (Sub) it.next();
+            size += 32 + 3 * (sub.caption.length() + sub.name.length() + sub.textureFilename.length())
+                    + sub.positions.length * 8 + sub.mesh.numVertices * Mesh.VERTEX_SIZE * 4
+                    + sub.mesh.numIndices * 4;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(CACHE_MAGIC);
+        buf.putInt(CACHE_VERSION);
+        buf.put(hash);
+        buf.putInt(subs.size());
+        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
+            sub = (Sub) it.next();
+            buf.putInt(sub.id);
+            buf.putInt(sub.textureSize);
+            putString(buf, sub.caption);
+            putString(buf, sub.name);
+            putString(buf, sub.textureFilename);
+            buf.putInt(sub.positions.length / 3);
+            buf.putInt(sub.mesh.numVertices);
+            buf.putInt(sub.mesh.numIndices);
+            for (int i = 0; i < sub.positions.length; i++)
+                buf.putDouble(sub.positions[i]);
+            for (int i = 0; i < sub.mesh.numVertices * Mesh.VERTEX_SIZE; i++)
+                buf.putFloat(sub.mesh.vertices.get(i));
+            for (int i = 0; i < sub.mesh.numIndices; i++)
+                buf.putInt(sub.mesh.indices.get(i));
+        }
+        buf.flip();
+        // write into a temporary file first, so that a broken cache is never visible
         try {
-            // FileReader fileReader = new FileReader(filename);
-            // BufferedReader buff = new BufferedReader(fileReader);
-            InputStream is = GuiMainFrame.class.getResourceAsStream("/" + filename);
-            BufferedReader buff = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            Files.createDirectories(file.getParentFile().toPath());
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+            FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            try {
+                while (buf.hasRemaining())
+                    channel.write(buf);
+            } finally {
+                channel.close();
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            err("writeCache(..): could not write " + file + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * scaled and translated vertices of a sub (for the bounding-boxes)
+     */
+    private static double[] bakePositions(Sub sub) {
+        double[] dest = new double[3 * sub.vertices.size()];
+        int n = 0;
+        VECTOR3 vertex;
+        for (Iterator<VECTOR3> it = sub.vertices.iterator(); it.hasNext();) {
+            vertex = (VECTOR3) it.next();
+            dest[n++] = vertex.x * sub.scale.x + sub.translation.x;
+            dest[n++] = vertex.y * sub.scale.y + sub.translation.y;
+            dest[n++] = vertex.z * sub.scale.z + sub.translation.z;
+        }
+        return dest;
+    }
 
-            tokens = new ArrayList<Token>();
+    /**
+     * loads a brick library; the binary cache is used if it is up to date,
+     * otherwise the text is parsed and the cache is (re-)written
+     */
+    public boolean loadFromFile(String filename) {
+        return loadFromFile(filename, true);
+    }
 
-            lex(buff);
+    public boolean loadFromFile(String filename, boolean useCache) {
+        subs = new ArrayList<Sub>();
 
-            // buff.close();
-            // fileReader.close();
+        byte[] source;
+        try {
+            source = readResource(filename);
         } catch (IOException e) {
             err("loadFromFile(..) failed");
             return false;
         }
+        byte[] hash = hash(source);
+        File cacheFile = getCacheFile(filename);
+        if (useCache && loadCache(cacheFile, hash)) {
+            buildTables();
+            return true;
+        }
+
+        // ***** LEX *****
+        lexer = new Object3dLexer();
+        subIndexByName = new HashMap<String, Integer>();
+        lexer.lex(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(source)));
+        tokenPos = 0;
+
         // ***** PARSE and GENERATE *****
-        while (tokenPos < tokens.size() && parseOBJECT()) {
+        while (tokenPos < lexer.getNumTokens() && parseOBJECT()) {
         }
+        lexer = null;
+        subIndexByName = null;
 
-        // ***** BUILD *****
-        // build(gl);
+        // ***** BAKE ***** (upload into vbos: see build(gl))
+        for (Iterator<Sub> it = subs.iterator(); it.hasNext();) {
+            Sub sub = (Sub) it.next();
+            sub.positions = bakePositions(sub);
+            sub.mesh = bakeMesh(sub);
+        }
 
+        buildTables();
+        if (useCache)
+            writeCache(cacheFile, hash);
         return true;
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.nio.CharBuffer;
+
+/**
+ * lexer for the brick description language of Object3d. the tokens are not
+ * copied out of the source: every token is stored as type, offset, length
+ * and source line in int-arrays, and the parser compares and converts the
+ * characters directly in the CharBuffer.
+ */
+public class Object3dLexer {
+    // ** token types (single characters use their char code as type) **
+    public static final int END = -1;
+    public static final int WORD = -2; // identifiers, keywords and numbers
+    public static final int STRING = -3; // including the quotes
+
+    private CharBuffer src;
+    private int numTokens = 0;
+    private int[] types = new int[1024];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] lines = new int[1024];
+
+    public Object3dLexer() {
+    }
+
+    private static boolean isPunctuation(char ch) {
+        switch (ch) {
+        case '{':
+        case '}':
+        case '(':
+        case ')':
+        case '[':
+        case ']':
+        case ',':
+        case ';':
+        case ':':
+        case '=':
+        case '+':
+        case '-':
+        case '*':
+        case '/':
+        case '%':
+        case '.':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void add(int type, int offset, int length, int line) {
+        if (numTokens == types.length) {
+            int capacity = numTokens * 2;
+            types = java.util.Arrays.copyOf(types, capacity);
+            offsets = java.util.Arrays.copyOf(offsets, capacity);
+            lengths = java.util.Arrays.copyOf(lengths, capacity);
+            lines = java.util.Arrays.copyOf(lines, capacity);
+        }
+        types[numTokens] = type;
+        offsets[numTokens] = offset;
+        lengths[numTokens] = length;
+        lines[numTokens] = line;
+        numTokens++;
+    }
+
+    /**
+     * splits src into tokens; the buffer must not be changed until parsing
+     * is finished
+     */
+    public void lex(CharBuffer src) {
+        this.src = src;
+        numTokens = 0;
+        int n = src.limit();
+        int line = 1;
+        int start = -1; // start of the current word
+        char ch, next;
+        for (int i = src.position(); i < n; i++) {
+            ch = src.get(i);
+            next = i + 1 < n ? src.get(i + 1) : 0;
+            if (ch == '/' && next == '/') {
+                // line comment
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = -1;
+                while (i + 1 < n && src.get(i + 1) != '\n')
+                    i++;
+            } else if (ch == '/' && next == '*') {
+                // block comment
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = -1;
+                for (i += 2; i < n && !(src.get(i) == '*' && i + 1 < n && src.get(i + 1) == '/'); i++)
+                    if (src.get(i) == '\n')
+                        line++;
+                i++;
+            } else if (ch == '*' && next == '/') {
+                // end of comment without start: ignored
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = -1;
+                i++;
+            } else if (ch == '"') {
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = i;
+                for (i++; i < n && src.get(i) != '"'; i++)
+                    if (src.get(i) == '\n')
+                        line++;
+                add(STRING, start, Math.min(i + 1, n) - start, line);
+                start = -1;
+            } else if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') {
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = -1;
+                if (ch == '\n')
+                    line++;
+            } else if (isPunctuation(ch)) {
+                if (start >= 0)
+                    add(WORD, start, i - start, line);
+                start = -1;
+                add(ch, i, 1, line);
+            } else if (start < 0)
+                start = i;
+        }
+        if (start >= 0)
+            add(WORD, start, n - start, line);
+    }
+
+    public int getNumTokens() {
+        return numTokens;
+    }
+
+    /**
+     * type of token i; END, if i is behind the last token
+     */
+    public int type(int i) {
+        return i < numTokens ? types[i] : END;
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return i < numTokens ? lengths[i] : 0;
+    }
+
+    /**
+     * source line of token i (of the last token, if i is behind it)
+     */
+    public int line(int i) {
+        if (numTokens == 0)
+            return 0;
+        return lines[Math.min(i, numTokens - 1)];
+    }
+
+    public char charAt(int i, int index) {
+        return src.get(offsets[i] + index);
+    }
+
+    /**
+     * true, if token i is a word equal to str
+     */
+    public boolean is(int i, String str) {
+        if (type(i) != WORD || lengths[i] != str.length())
+            return false;
+        int offset = offsets[i];
+        for (int k = 0; k < str.length(); k++)
+            if (src.get(offset + k) != str.charAt(k))
+                return false;
+        return true;
+    }
+
+    /**
+     * copies the characters of token i (from index begin to end) into a new
+     * string; only used for values which are stored (names, captions)
+     */
+    public String substring(int i, int begin, int end) {
+        int offset = offsets[i];
+        return src.subSequence(offset + begin - src.position(), offset + end - src.position()).toString();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * finds all pairs of overlapping boxes of a whole model in parallel. the
+ * space is partitioned into tiles of TILE_SIZE x TILE_HEIGHT x TILE_SIZE
+ * (studs in x and z, world units in y), so tall models (towers) do not pile
+ * up their stones in a few tiles; every box is assigned to all tiles it
+ * covers and the tiles are tested independently (sweep over x) by the tasks
+ * of a ForkJoinPool. a pair is only reported by the tile containing the
+ * minimum corner of the intersection of both boxes, so it is reported once,
+ * even if both boxes share several tiles. tiles far apart may share a key
+ * (11 bits per x and z, 10 bits for y); they are then tested as one tile,
+ * which is slower but still correct.
+ */
+public class OverlapChecker {
+    public static final int TILE_SIZE = 16;
+
+    /**
+     * 12 plates (4 bricks) of 0.4
+     */
+    public static final double TILE_HEIGHT = 4.8;
+
+    /**
+     * a task tests at least this many tile-entries (or assigns this many
+     * boxes to tiles) before the work is split
+     */
+    private static final int TASK_ENTRIES = 2048;
+
+    /**
+     * pairs of overlapping stones (or boxes)
+     */
+    public static class Report {
+        private int size;
+        private int[] pairs;
+
+        public Report(int[] pairs, int size) {
+            this.pairs = pairs;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getFirst(int i) {
+            return pairs[2 * i];
+        }
+
+        public int getSecond(int i) {
+            return pairs[2 * i + 1];
+        }
+    }
+
+    private ForkJoinPool pool;
+
+    public OverlapChecker() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public OverlapChecker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private static int tile(double value) {
+        return (int) Math.floor(value / TILE_SIZE);
+    }
+
+    private static int tileY(double value) {
+        return (int) Math.floor(value / TILE_HEIGHT);
+    }
+
+    private static long tileKey(int tx, int ty, int tz) {
+        return ((long) (tx & 0x7FF) << 21) | ((long) (ty & 0x3FF) << 11) | (long) (tz & 0x7FF);
+    }
+
+    /**
+     * finds all overlapping pairs of n boxes (6 values per box: min x, y, z,
+     * max x, y, z; boxes touching each other do not overlap). only pairs with
+     * at least one box of index first or higher are reported (0: all pairs).
+     * the pairs (i, j) of the report are indices with i < j, sorted by i and
+     * j.
+     */
+    public Report check(double[] boxes, int n, int first) {
+        // ** assign the boxes to tiles; entry: tile key (upper 32 bits), box **
+        int[] offsets = new int[n + 1];
+        pool.invoke(new AssignTask(boxes, offsets, null, 0, n));
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] += offsets[i];
+        int numEntries = offsets[n];
+        long[] entries = new long[numEntries];
+        pool.invoke(new AssignTask(boxes, offsets, entries, 0, n));
+        Arrays.parallelSort(entries);
+
+        // ** first entry of every tile **
+        int numTiles = 0;
+        int[] tileStart = new int[Math.max(numEntries, 1) + 1];
+        for (int i = 0; i < numEntries; i++)
+            if (i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32))
+                tileStart[numTiles++] = i;
+        tileStart[numTiles] = numEntries;
+
+        long[] pairs = pool.invoke(new TileTask(boxes, first, entries, tileStart, 0, numTiles));
+        Arrays.parallelSort(pairs);
+        int[] result = new int[2 * pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            result[2 * i] = (int) (pairs[i] >>> 32);
+            result[2 * i + 1] = (int) pairs[i];
+        }
+        return new Report(result, pairs.length);
+    }
+
+    /**
+     * counts the tiles of the boxes [begin, end) into offsets[i + 1] (entries
+     * is null), or writes the entries of the boxes starting at offsets[i]
+     */
+    private static class AssignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private double[] boxes;
+        private int[] offsets;
+        private long[] entries;
+        private int begin, end;
+
+        AssignTask(double[] boxes, int[] offsets, long[] entries, int begin, int end) {
+            this.boxes = boxes;
+            this.offsets = offsets;
+            this.entries = entries;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - begin > TASK_ENTRIES) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new AssignTask(boxes, offsets, entries, begin, middle),
+                        new AssignTask(boxes, offsets, entries, middle, end));
+                return;
+            }
+            for (int i = begin; i < end; i++) {
+                int tx0 = tile(boxes[6 * i]), ty0 = tileY(boxes[6 * i + 1]), tz0 = tile(boxes[6 * i + 2]);
+                int tx1 = tile(boxes[6 * i + 3]), ty1 = tileY(boxes[6 * i + 4]), tz1 = tile(boxes[6 * i + 5]);
+                if (entries == null) {
+                    offsets[i + 1] = (tx1 - tx0 + 1) * (ty1 - ty0 + 1) * (tz1 - tz0 + 1);
+                    continue;
+                }
+                int k = offsets[i];
+                for (int tx = tx0; tx <= tx1; tx++)
+                    for (int ty = ty0; ty <= ty1; ty++)
+                        for (int tz = tz0; tz <= tz1; tz++)
+                            entries[k++] = (tileKey(tx, ty, tz) << 32) | i;
+            }
+        }
+    }
+
+    /**
+     * tests the tiles [begin, end); the result are the pairs as longs (first
+     * index in the upper 32 bits)
+     */
+    private static class TileTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private double[] boxes;
+        private int first;
+        private long[] entries;
+        private int[] tileStart;
+        private int begin, end;
+
+        TileTask(double[] boxes, int first, long[] entries, int[] tileStart, int begin, int end) {
+            this.boxes = boxes;
+            this.first = first;
+            this.entries = entries;
+            this.tileStart = tileStart;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        protected long[] compute() {
+            if (end - begin > 1 && tileStart[end] - tileStart[begin] > TASK_ENTRIES) {
+                int middle = (begin + end) >>> 1;
+                TileTask left = new TileTask(boxes, first, entries, tileStart, begin, middle);
+                TileTask right = new TileTask(boxes, first, entries, tileStart, middle, end);
+                left.fork();
+                long[] r = right.compute();
+                long[] l = left.join();
+                if (l.length == 0)
+                    return r;
+                if (r.length == 0)
+                    return l;
+                long[] pairs = Arrays.copyOf(l, l.length + r.length);
+                System.arraycopy(r, 0, pairs, l.length, r.length);
+                return pairs;
+            }
+            long[] pairs = new long[0];
+            int numPairs = 0;
+            int[] order = new int[0];
+            for (int t = begin; t < end; t++) {
+                int from = tileStart[t], m = tileStart[t + 1] - from;
+                long key = entries[from] >>> 32;
+                if (order.length < m)
+                    order = new int[Math.max(m, 2 * order.length)];
+                for (int i = 0; i < m; i++)
+                    order[i] = (int) entries[from + i];
+                sortByMinX(order, 0, m - 1);
+
+                // ** sweep over x **
+                for (int a = 0; a < m; a++) {
+                    int i = order[a];
+                    int bi = 6 * i;
+                    for (int b = a + 1; b < m; b++) {
+                        int j = order[b];
+                        int bj = 6 * j;
+                        if (boxes[bj] >= boxes[bi + 3])
+                            break;
+                        if (i < first && j < first)
+                            continue;
+                        if (boxes[bj + 3] <= boxes[bi] || boxes[bj + 1] >= boxes[bi + 4]
+                                || boxes[bj + 4] <= boxes[bi + 1] || boxes[bj + 2] >= boxes[bi + 5]
+                                || boxes[bj + 5] <= boxes[bi + 2])
+                            continue;
+                        // only reported by the tile of the minimum corner of the intersection
+                        if (tileKey(tile(Math.max(boxes[bi], boxes[bj])), tileY(Math.max(boxes[bi + 1], boxes[bj + 1])),
+                                tile(Math.max(boxes[bi + 2], boxes[bj + 2]))) != key)
+                            continue;
+                        if (numPairs == pairs.length)
+                            pairs = Arrays.copyOf(pairs, Math.max(16, 2 * numPairs));
+                        pairs[numPairs++] = i < j ? ((long) i << 32) | j : ((long) j << 32) | i;
+                    }
+                }
+            }
+            return numPairs == pairs.length ? pairs : Arrays.copyOf(pairs, numPairs);
+        }
+
+        /**
+         * sorts the box indices by the minimum x of their boxes (quicksort)
+         */
+        private void sortByMinX(int[] order, int left, int right) {
+            while (right - left > 16) {
+                double pivot = boxes[6 * order[(left + right) >>> 1]];
+                int i = left, j = right, tmp;
+                while (i <= j) {
+                    while (boxes[6 * order[i]] < pivot)
+                        i++;
+                    while (boxes[6 * order[j]] > pivot)
+                        j--;
+                    if (i <= j) {
+                        tmp = order[i];
+                        order[i++] = order[j];
+                        order[j--] = tmp;
+                    }
+                }
+                // recursion into the smaller part
+                if (j - left < right - i) {
+                    sortByMinX(order, left, j);
+                    left = i;
+                } else {
+                    sortByMinX(order, i, right);
+                    right = j;
+                }
+            }
+            for (int i = left + 1; i <= right; i++) {
+                int index = order[i];
+                double value = boxes[6 * index];
+                int j = i - 1;
+                while (j >= left && boxes[6 * order[j]] > value) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = index;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.Arrays;
+
+/**
+ * world-space boxes of the stones of a model in flat arrays (one array per
+ * coordinate, indexed by slot) for testing a ray against all boxes at once.
+ * the tests are done by a Kernel: VectorRayBoxKernel tests several boxes per
+ * instruction (jdk.incubator.vector, the vm has to be started with
+ * --add-modules jdk.incubator.vector), otherwise the scalar kernel is used.
+ * without spatial structure, so this pays off for small models only (see
+ * Model.BRUTE_FORCE_STONES).
+ */
+public class RayBoxBatch {
+    /**
+     * nearest hit of a ray against boxes [0, n)
+     */
+    public static abstract class Kernel {
+        /**
+         * the slot of the nearest box entered by the ray (the origin must be
+         * outside, as with Math3d.rayBox(..) > 0); dest[0] is set to the
+         * distance. among equally near boxes the lowest slot is returned.
+         * the distances are computed with the reciprocal of the direction,
+         * so they may differ from Math3d.rayBox(..) in the last bit.
+         */
+        public abstract int nearestBox(RayBoxBatch boxes, double origX, double origY, double origZ,
+                double dirX, double dirY, double dirZ, double[] dest);
+
+        /**
+         * the slot of the nearest top face (max y) hit by the ray in front of
+         * the origin; the boxes are moved by offsetX, offsetZ for the test of
+         * the hit point (the x- and z-bounds are inclusive). dest[0] is set to
+         * the distance. among equally near faces the lowest slot is returned.
+         */
+        public abstract int nearestTop(RayBoxBatch boxes, double origX, double origY, double origZ,
+                double dirX, double dirY, double dirZ, double offsetX, double offsetZ, double[] dest);
+
+        public abstract String getName();
+    }
+
+    public static final Kernel SCALAR = new ScalarKernel();
+
+    private static Kernel preferredKernel = null;
+
+    int size = 0;
+    double[] minX = new double[16], minY = new double[16], minZ = new double[16];
+    double[] maxX = new double[16], maxY = new double[16], maxZ = new double[16];
+
+    private Kernel kernel = getPreferredKernel();
+    private double[] distance = new double[1];
+
+    public RayBoxBatch() {
+    }
+
+    /**
+     * the vector kernel, or null, if the vector api is not available
+     */
+    public static Kernel getVectorKernel() {
+        try {
+            return (Kernel) Class.forName("VectorRayBoxKernel").getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null; // module jdk.incubator.vector not present
+        }
+    }
+
+    /**
+     * the vector kernel, if available, otherwise the scalar one
+     */
+    public static synchronized Kernel getPreferredKernel() {
+        if (preferredKernel == null) {
+            preferredKernel = getVectorKernel();
+            if (preferredKernel == null)
+                preferredKernel = SCALAR;
+        }
+        return preferredKernel;
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public void setKernel(Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= minX.length)
+            return;
+        capacity = Math.max(capacity, 2 * minX.length);
+        minX = Arrays.copyOf(minX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        minZ = Arrays.copyOf(minZ, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+        maxZ = Arrays.copyOf(maxZ, capacity);
+    }
+
+    /**
+     * sets the box of slot (slots up to slot are added, if necessary)
+     */
+    public void set(int slot, Math3d.AABB box) {
+        ensureCapacity(slot + 1);
+        size = Math.max(size, slot + 1);
+        minX[slot] = box.min.x;
+        minY[slot] = box.min.y;
+        minZ[slot] = box.min.z;
+        maxX[slot] = box.max.x;
+        maxY[slot] = box.max.y;
+        maxZ[slot] = box.max.z;
+    }
+
+    /**
+     * removes the box of slot by moving the last box into it (as
+     * StoneStore.remove(..))
+     */
+    public void remove(int slot) {
+        int last = --size;
+        minX[slot] = minX[last];
+        minY[slot] = minY[last];
+        minZ[slot] = minZ[last];
+        maxX[slot] = maxX[last];
+        maxY[slot] = maxY[last];
+        maxZ[slot] = maxZ[last];
+    }
+
+    /**
+     * takes over the world-space boxes of all stones of the store
+     */
+    public void build(StoneStore store) {
+        Math3d.AABB box = new Math3d.AABB();
+        size = 0;
+        ensureCapacity(store.size());
+        for (int i = 0; i < store.size(); i++) {
+            store.getWorldAABB(i, box);
+            set(i, box);
+        }
+    }
+
+    /**
+     * slot of the nearest box entered by the ray (or -1); see
+     * Kernel.nearestBox(..)
+     */
+    public int nearestBox(Math3d.Double3 orig, Math3d.Double3 dir) {
+        return kernel.nearestBox(this, orig.x, orig.y, orig.z, dir.x, dir.y, dir.z, distance);
+    }
+
+    /**
+     * slot of the nearest top face hit by the ray (or -1); see
+     * Kernel.nearestTop(..)
+     */
+    public int nearestTop(Math3d.Double3 orig, Math3d.Double3 dir, double offsetX, double offsetZ) {
+        return kernel.nearestTop(this, orig.x, orig.y, orig.z, dir.x, dir.y, dir.z, offsetX, offsetZ, distance);
+    }
+
+    /**
+     * distance of the hit of the last query
+     */
+    public double getLastDistance() {
+        return distance[0];
+    }
+
+    /**
+     * nearest box of the slots [from, to) entered by the ray, if nearer than
+     * the given one (slot nearest, distance dest[0]); the direction is given
+     * by its reciprocal, an infinite component (a ray parallel to a
+     * coordinate plane) is tested as in Math3d.rayBox(..)
+     */
+    static int nearestBox(RayBoxBatch boxes, int from, int to, double origX, double origY, double origZ,
+            double invX, double invY, double invZ, int nearest, double[] dest) {
+        double[] minX = boxes.minX, minY = boxes.minY, minZ = boxes.minZ;
+        double[] maxX = boxes.maxX, maxY = boxes.maxY, maxZ = boxes.maxZ;
+        boolean parallelX = Double.isInfinite(invX), parallelY = Double.isInfinite(invY),
+                parallelZ = Double.isInfinite(invZ);
+        double best = dest[0], tMin, tMax, t0, t1, tmp;
+        for (int i = from; i < to; i++) {
+            tMin = 0.0;
+            tMax = Double.MAX_VALUE;
+            // x
+            if (!parallelX) {
+                t0 = (minX[i] - origX) * invX;
+                t1 = (maxX[i] - origX) * invX;
+                if (t0 > t1) {
+                    tmp = t0;
+                    t0 = t1;
+                    t1 = tmp;
+                }
+                tMin = Math.max(tMin, t0);
+                tMax = Math.min(tMax, t1);
+            } else if (origX < minX[i] || origX > maxX[i])
+                continue;
+            // y
+            if (!parallelY) {
+                t0 = (minY[i] - origY) * invY;
+                t1 = (maxY[i] - origY) * invY;
+                if (t0 > t1) {
+                    tmp = t0;
+                    t0 = t1;
+                    t1 = tmp;
+                }
+                tMin = Math.max(tMin, t0);
+                tMax = Math.min(tMax, t1);
+            } else if (origY < minY[i] || origY > maxY[i])
+                continue;
+            // z
+            if (!parallelZ) {
+                t0 = (minZ[i] - origZ) * invZ;
+                t1 = (maxZ[i] - origZ) * invZ;
+                if (t0 > t1) {
+                    tmp = t0;
+                    t0 = t1;
+                    t1 = tmp;
+                }
+                tMin = Math.max(tMin, t0);
+                tMax = Math.min(tMax, t1);
+            } else if (origZ < minZ[i] || origZ > maxZ[i])
+                continue;
+            if (tMin <= tMax && tMin > 0.0 && tMin < best) {
+                best = tMin;
+                nearest = i;
+            }
+        }
+        dest[0] = best;
+        return nearest;
+    }
+
+    /**
+     * one box after the other (slab method as Math3d.rayBox(..))
+     */
+    private static class ScalarKernel extends Kernel {
+        public int nearestBox(RayBoxBatch boxes, double origX, double origY, double origZ,
+                double dirX, double dirY, double dirZ, double[] dest) {
+            dest[0] = Double.MAX_VALUE;
+            return RayBoxBatch.nearestBox(boxes, 0, boxes.size, origX, origY, origZ, 1.0 / dirX, 1.0 / dirY,
+                    1.0 / dirZ, -1, dest);
+        }
+
+        public int nearestTop(RayBoxBatch boxes, double origX, double origY, double origZ,
+                double dirX, double dirY, double dirZ, double offsetX, double offsetZ, double[] dest) {
+            double[] minX = boxes.minX, minZ = boxes.minZ;
+            double[] maxX = boxes.maxX, maxY = boxes.maxY, maxZ = boxes.maxZ;
+            int nearest = -1;
+            double best = Double.MAX_VALUE, t, x, z;
+            dest[0] = best;
+            if (dirY == 0.0)
+                return -1;
+            for (int i = 0; i < boxes.size; i++) {
+                t = (maxY[i] - origY) / dirY;
+                if (t < 0.0 || t >= best)
+                    continue;
+                x = origX + t * dirX;
+                z = origZ + t * dirZ;
+                if (x >= offsetX + minX[i] && x <= offsetX + maxX[i] && z >= offsetZ + minZ[i]
+                        && z <= offsetZ + maxZ[i]) {
+                    best = t;
+                    nearest = i;
+                }
+            }
+            dest[0] = best;
+            return nearest;
+        }
+
+        public String getName() {
+            return "scalar";
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+import com.jogamp.opengl.*;
+
+/**
+ * immutable copy of everything the gl thread renders: the stones of the
+ * current model, the preview stones, the grid and the move-tool. snapshots
+ * are built by GuiFSM.publishScene() on the event dispatch thread while the
+ * gl thread renders the previous one (double buffering); the new snapshot is
+ * handed over by exchanging a single volatile reference. so display(..)
+ * never reads the model or the preview, which are edited concurrently. the
+ * stones are only copied if the model has changed, otherwise they are shared
+ * with the previous snapshot.
+ */
+public final class SceneSnapshot {
+    /**
+     * floats per stone: x, y, z, rotation (degrees), r, g, b
+     */
+    public static final int INSTANCE_SIZE = 7;
+
+    private static final float[] SELECTION_COLOR = { 1.0f, 0.0f, 1.0f };
+
+    /**
+     * edge length of the chunks (studs) used for culling
+     */
+    public static final int CHUNK_SIZE = StoneChunks.CHUNK_SIZE;
+
+    /**
+     * the stones of a model grouped by brick type (first all stones of type
+     * 0, then all of type 1, ...); the layout is the per-instance data of
+     * InstancedStoneRenderer. within a type the stones are sorted by the
+     * chunk (CHUNK_SIZE x CHUNK_SIZE studs of the x-z-plane) containing
+     * their position; a run is the range of instances of one type in one
+     * chunk. chunks are culled as a whole (cull(..)), the runs of the visible
+     * chunks are rendered. every chunk carries the stamp of its last change
+     * (StoneChunks), so renderers can keep data of unchanged chunks.
+     */
+    public static final class Stones {
+        private final float[] instances;
+        private final int[] typeStart; // first instance of each type
+        private final int[] typeCount; // number of instances of each type
+        private final int numInstances;
+
+        // ** chunks: bounds (6 values per chunk), number of stones, key and stamp (StoneChunks) **
+        private final double[] chunkBounds;
+        private final int[] chunkStones;
+        private final long[] chunkKeys, chunkStamps;
+
+        // ** runs (grouped by type, the runs of type t are typeRuns[t] .. typeRuns[t + 1] - 1) **
+        private final int[] typeRuns;
+        private final int[] runType, runChunk, runStart, runCount;
+
+        // ** runs of each chunk: chunkRuns[chunkRunStart[c] .. chunkRunStart[c + 1] - 1] **
+        private final int[] chunkRunStart, chunkRuns;
+
+        private Stones(float[] instances, int[] typeStart, int[] typeCount, int numInstances,
+                double[] chunkBounds, int[] chunkStones, long[] chunkKeys, long[] chunkStamps, int[] typeRuns,
+                int[] runType, int[] runChunk, int[] runStart, int[] runCount, int[] chunkRunStart,
+                int[] chunkRuns) {
+            this.instances = instances;
+            this.typeStart = typeStart;
+            this.typeCount = typeCount;
+            this.numInstances = numInstances;
+            this.chunkBounds = chunkBounds;
+            this.chunkStones = chunkStones;
+            this.chunkKeys = chunkKeys;
+            this.chunkStamps = chunkStamps;
+            this.typeRuns = typeRuns;
+            this.runType = runType;
+            this.runChunk = runChunk;
+            this.runStart = runStart;
+            this.runCount = runCount;
+            this.chunkRunStart = chunkRunStart;
+            this.chunkRuns = chunkRuns;
+        }
+
+        /**
+         * key of the chunk containing the position (ordered by z, then x)
+         */
+        private static int chunkKey(int x, int z) {
+            int cx = Math.floorDiv(x, CHUNK_SIZE), cz = Math.floorDiv(z, CHUNK_SIZE);
+            return (((cz + 0x4000) & 0x7FFF) << 15) | ((cx + 0x4000) & 0x7FFF);
+        }
+
+        /**
+         * indices of the keys sorted by key (stable radix sort of the 30
+         * bits of the chunk keys)
+         */
+        private static int[] sortByKey(int[] keys) {
+            int n = keys.length;
+            int[] from = new int[n], to = new int[n], tmp;
+            int[] count = new int[(1 << 15) + 1];
+            for (int i = 0; i < n; i++)
+                from[i] = i;
+            for (int shift = 0; shift < 30; shift += 15) {
+                Arrays.fill(count, 0);
+                for (int i = 0; i < n; i++)
+                    count[((keys[i] >>> shift) & 0x7FFF) + 1]++;
+                for (int i = 0; i < (1 << 15); i++)
+                    count[i + 1] += count[i];
+                for (int i = 0; i < n; i++)
+                    to[count[(keys[from[i]] >>> shift) & 0x7FFF]++] = from[i];
+                tmp = from;
+                from = to;
+                to = tmp;
+            }
+            return from;
+        }
+
+        /**
+         * chunk of every slot; only chunks containing stones are numbered
+         * (by z, then x). dest[0] is set to the number of chunks.
+         */
+        private static int[] getChunks(StoneStore stones, int[] dest) {
+            int numStones = stones.size();
+            int[] chunkOf = new int[numStones];
+            int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+            int cx, cz, i;
+            for (i = 0; i < numStones; i++) {
+                cx = Math.floorDiv(stones.getX(i), CHUNK_SIZE);
+                cz = Math.floorDiv(stones.getZ(i), CHUNK_SIZE);
+                minX = Math.min(minX, cx);
+                maxX = Math.max(maxX, cx);
+                minZ = Math.min(minZ, cz);
+                maxZ = Math.max(maxZ, cz);
+            }
+            int numChunks = 0;
+            long cells = numStones == 0 ? 0 : (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+            if (cells <= 4L * numStones + 1024) {
+                // ** dense: grid over the chunks of the model **
+                int width = maxX - minX + 1;
+                int[] grid = new int[(int) cells];
+                for (i = 0; i < numStones; i++) {
+                    cx = Math.floorDiv(stones.getX(i), CHUNK_SIZE);
+                    cz = Math.floorDiv(stones.getZ(i), CHUNK_SIZE);
+                    chunkOf[i] = (cz - minZ) * width + cx - minX; // cell
+                    grid[chunkOf[i]] = 1;
+                }
+                for (i = 0; i < grid.length; i++)
+                    if (grid[i] != 0)
+                        grid[i] = numChunks++;
+                for (i = 0; i < numStones; i++)
+                    chunkOf[i] = grid[chunkOf[i]];
+            } else {
+                // ** sparse: slots sorted by chunk **
+                int[] keys = new int[numStones];
+                for (i = 0; i < numStones; i++)
+                    keys[i] = chunkKey(stones.getX(i), stones.getZ(i));
+                int[] sorted = sortByKey(keys);
+                for (i = 0; i < numStones; i++) {
+                    if (i == 0 || keys[sorted[i]] != keys[sorted[i - 1]])
+                        numChunks++;
+                    chunkOf[sorted[i]] = numChunks - 1;
+                }
+            }
+            dest[0] = numChunks;
+            return chunkOf;
+        }
+
+        /**
+         * copies the stones; the store is locked while it is read (see
+         * StoneStore), so the snapshot may also be built on another thread
+         * than the one editing the model
+         */
+        public static Stones build(Object3d obj3d, StoneStore stones, Math3d.Double3 offset) {
+            synchronized (stones) {
+                return copy(obj3d, stones, offset);
+            }
+        }
+
+        private static Stones copy(Object3d obj3d, StoneStore stones, Math3d.Double3 offset) {
+            int numTypes = obj3d.getSubLength();
+            int[] typeStart = new int[numTypes];
+            int[] typeCount = new int[numTypes];
+            int numStones = stones.size();
+            for (int i = 0; i < numStones; i++)
+                typeCount[stones.getObj3dIndex(i)]++;
+            int numInstances = 0;
+            for (int i = 0; i < numTypes; i++) {
+                typeStart[i] = numInstances;
+                numInstances += typeCount[i];
+            }
+
+            // ** order of the instances: by type, then by chunk (two stable counting sorts) **
+            int[] numChunksRef = new int[1];
+            int[] chunkOf = getChunks(stones, numChunksRef);
+            int numChunks = numChunksRef[0];
+            int[] chunkStart = new int[numChunks + 1];
+            for (int i = 0; i < numStones; i++)
+                chunkStart[chunkOf[i] + 1]++;
+            for (int i = 0; i < numChunks; i++)
+                chunkStart[i + 1] += chunkStart[i];
+            int[] byChunk = new int[numStones];
+            for (int i = 0; i < numStones; i++)
+                byChunk[chunkStart[chunkOf[i]]++] = i;
+            int[] order = new int[numInstances]; // slot of the instance
+            int[] next = typeStart.clone();
+            int slot;
+            for (int i = 0; i < numStones; i++) {
+                slot = byChunk[i];
+                order[next[stones.getObj3dIndex(slot)]++] = slot;
+            }
+
+            // ** runs **
+            int[] typeRuns = new int[numTypes + 1];
+            int[] runType = new int[16], runChunk = new int[16], runStart = new int[16], runCount = new int[16];
+            int numRuns = 0, chunk;
+            for (int t = 0; t < numTypes; t++) {
+                typeRuns[t] = numRuns;
+                for (int n = typeStart[t]; n < typeStart[t] + typeCount[t]; n++) {
+                    chunk = chunkOf[order[n]];
+                    if (n > typeStart[t] && chunk == runChunk[numRuns - 1]) {
+                        runCount[numRuns - 1]++;
+                        continue;
+                    }
+                    if (numRuns == runChunk.length) {
+                        runType = Arrays.copyOf(runType, 2 * numRuns);
+                        runChunk = Arrays.copyOf(runChunk, 2 * numRuns);
+                        runStart = Arrays.copyOf(runStart, 2 * numRuns);
+                        runCount = Arrays.copyOf(runCount, 2 * numRuns);
+                    }
+                    runType[numRuns] = t;
+                    runChunk[numRuns] = chunk;
+                    runStart[numRuns] = n;
+                    runCount[numRuns] = 1;
+                    numRuns++;
+                }
+            }
+            typeRuns[numTypes] = numRuns;
+            int[] chunkRunStart = new int[numChunks + 1];
+            for (int r = 0; r < numRuns; r++)
+                chunkRunStart[runChunk[r] + 1]++;
+            for (int i = 0; i < numChunks; i++)
+                chunkRunStart[i + 1] += chunkRunStart[i];
+            int[] chunkRuns = new int[numRuns];
+            next = Arrays.copyOf(chunkRunStart, numChunks);
+            for (int r = 0; r < numRuns; r++)
+                chunkRuns[next[runChunk[r]]++] = r;
+
+            // ** instances (run by run) and bounds of the chunks **
+            float[] instances = new float[numInstances * INSTANCE_SIZE];
+            double[] chunkBounds = new double[6 * numChunks];
+            int[] chunkStones = new int[numChunks];
+            long[] chunkKeys = new long[numChunks], chunkStamps = new long[numChunks];
+            for (int i = 0; i < numChunks; i++)
+                for (int k = 0; k < 3; k++) {
+                    chunkBounds[6 * i + k] = Double.MAX_VALUE;
+                    chunkBounds[6 * i + 3 + k] = -Double.MAX_VALUE;
+                }
+            float[] color;
+            int c, b, n;
+            double x, y, z, minX, minY, minZ, maxX, maxY, maxZ;
+            Math3d.AABB bounds;
+            for (int r = 0; r < numRuns; r++) {
+                b = 6 * runChunk[r];
+                minX = chunkBounds[b];
+                minY = chunkBounds[b + 1];
+                minZ = chunkBounds[b + 2];
+                maxX = chunkBounds[b + 3];
+                maxY = chunkBounds[b + 4];
+                maxZ = chunkBounds[b + 5];
+                for (int i = runStart[r]; i < runStart[r] + runCount[r]; i++) {
+                    slot = order[i];
+                    n = i * INSTANCE_SIZE;
+                    x = offset.x + stones.getX(slot);
+                    y = offset.y + 0.4 * stones.getY(slot);
+                    z = offset.z + stones.getZ(slot);
+                    instances[n] = (float) x;
+                    instances[n + 1] = (float) y;
+                    instances[n + 2] = (float) z;
+                    instances[n + 3] = (float) (stones.getRotation(slot) * 90.0);
+                    c = stones.getColor(slot);
+                    if (stones.isSelected(slot))
+                        color = SELECTION_COLOR;
+                    else if (c >= 0 && c < GraphicsHelper.COLORS.length)
+                        color = GraphicsHelper.COLORS[c];
+                    else
+                        color = GraphicsHelper.COLORS[0];
+                    instances[n + 4] = color[0];
+                    instances[n + 5] = color[1];
+                    instances[n + 6] = color[2];
+                    bounds = stones.getBounds(slot);
+                    minX = Math.min(minX, x + bounds.min.x);
+                    minY = Math.min(minY, y + bounds.min.y);
+                    minZ = Math.min(minZ, z + bounds.min.z);
+                    maxX = Math.max(maxX, x + bounds.max.x);
+                    maxY = Math.max(maxY, y + bounds.max.y);
+                    maxZ = Math.max(maxZ, z + bounds.max.z);
+                }
+                chunkBounds[b] = minX;
+                chunkBounds[b + 1] = minY;
+                chunkBounds[b + 2] = minZ;
+                chunkBounds[b + 3] = maxX;
+                chunkBounds[b + 4] = maxY;
+                chunkBounds[b + 5] = maxZ;
+                chunkStones[runChunk[r]] += runCount[r];
+                if (chunkStamps[runChunk[r]] == 0) {
+                    slot = order[runStart[r]];
+                    chunkKeys[runChunk[r]] = StoneChunks.key(stones.getX(slot), stones.getZ(slot));
+                    chunkStamps[runChunk[r]] = stones.getChunkStamp(chunkKeys[runChunk[r]]);
+                }
+            }
+            return new Stones(instances, typeStart, typeCount, numInstances, chunkBounds, chunkStones, chunkKeys,
+                    chunkStamps, typeRuns, runType, runChunk, runStart, runCount, chunkRunStart, chunkRuns);
+        }
+
+        public int getNumTypes() {
+            return typeCount.length;
+        }
+
+        public int getNumInstances() {
+            return numInstances;
+        }
+
+        /**
+         * number of types with at least one stone (draw calls of instanced
+         * rendering)
+         */
+        public int getNumUsedTypes() {
+            int n = 0;
+            for (int i = 0; i < typeCount.length; i++)
+                if (typeCount[i] > 0)
+                    n++;
+            return n;
+        }
+
+        public int getNumInstances(int subIndex) {
+            return typeCount[subIndex];
+        }
+
+        /**
+         * first instance of the given type in getInstance(..)
+         */
+        public int getFirstInstance(int subIndex) {
+            return typeStart[subIndex];
+        }
+
+        /**
+         * value of instance i (index: 0..INSTANCE_SIZE-1)
+         */
+        public float getInstance(int i, int index) {
+            return instances[i * INSTANCE_SIZE + index];
+        }
+
+        /**
+         * copies the instance data into dest (numInstances * INSTANCE_SIZE
+         * floats)
+         */
+        public void copyInstances(float[] dest) {
+            System.arraycopy(instances, 0, dest, 0, numInstances * INSTANCE_SIZE);
+        }
+
+        public int getNumChunks() {
+            return chunkStones.length;
+        }
+
+        /**
+         * world-space bounds of the stones of a chunk (min x, y, z, max x,
+         * y, z at 6 * chunk)
+         */
+        public double[] getChunkBounds() {
+            return chunkBounds;
+        }
+
+        /**
+         * first run of the given type; the runs of a type end at
+         * getFirstRun(type + 1)
+         */
+        public int getFirstRun(int subIndex) {
+            return typeRuns[subIndex];
+        }
+
+        /**
+         * key of the chunk (StoneChunks.key(..))
+         */
+        public long getChunkKey(int chunk) {
+            return chunkKeys[chunk];
+        }
+
+        /**
+         * stamp of the last change of a stone in the chunk (StoneChunks)
+         */
+        public long getChunkStamp(int chunk) {
+            return chunkStamps[chunk];
+        }
+
+        /**
+         * first run of the chunk in getChunkRun(..); the runs of a chunk end
+         * at getFirstChunkRun(chunk + 1)
+         */
+        public int getFirstChunkRun(int chunk) {
+            return chunkRunStart[chunk];
+        }
+
+        /**
+         * run i of the runs grouped by chunk (within a chunk ordered by type)
+         */
+        public int getChunkRun(int i) {
+            return chunkRuns[i];
+        }
+
+        /**
+         * sub-index (type) of the stones of the run
+         */
+        public int getRunType(int run) {
+            return runType[run];
+        }
+
+        public int getRunChunk(int run) {
+            return runChunk[run];
+        }
+
+        /**
+         * first instance of the run
+         */
+        public int getRunStart(int run) {
+            return runStart[run];
+        }
+
+        public int getRunCount(int run) {
+            return runCount[run];
+        }
+
+        /**
+         * sets visible[chunk] for all chunks (the array must have
+         * getNumChunks() elements); returns the number of stones in the
+         * culled chunks
+         */
+        public int cull(Frustum frustum, boolean[] visible) {
+            int culled = 0;
+            for (int i = 0; i < chunkStones.length; i++) {
+                visible[i] = frustum.intersects(chunkBounds, i);
+                if (!visible[i])
+                    culled += chunkStones[i];
+            }
+            return culled;
+        }
+
+        /**
+         * renders the stones of the visible chunks without instancing
+         * (display-lists)
+         */
+        public void render(GL2 gl, Object3d obj3d, boolean[] visible) {
+            obj3d.beginRender(gl);
+            for (int type = 0; type < typeCount.length; type++) {
+                for (int r = typeRuns[type]; r < typeRuns[type + 1]; r++) {
+                    if (!visible[runChunk[r]])
+                        continue;
+                    for (int i = runStart[r]; i < runStart[r] + runCount[r]; i++) {
+                        int n = i * INSTANCE_SIZE;
+                        gl.glColor3f(instances[n + 4], instances[n + 5], instances[n + 6]);
+                        obj3d.renderBySubIndex(gl, type, instances[n], instances[n + 1], instances[n + 2], 0.0,
+                                instances[n + 3], 0.0);
+                    }
+                }
+            }
+            obj3d.endRender(gl);
+        }
+    }
+
+    // ** stones of the model **
+    public final Stones stones;
+
+    // ** preview stones **
+    private final int[] preview; // obj3d index, x, y, z, rotation per stone
+    public final int previewColor;
+
+    // ** grid **
+    public final boolean holdHeight;
+    public final int gridHeight; // plates (the height of the preview, if holdHeight)
+
+    // ** move-tool **
+    public final boolean renderMoveTool;
+    public final double moveToolX, moveToolY, moveToolZ;
+
+    public SceneSnapshot(Stones stones, int[] preview, int previewColor, boolean holdHeight, int gridHeight,
+            boolean renderMoveTool, Math3d.Double3 moveToolPos) {
+        this.stones = stones;
+        this.preview = preview;
+        this.previewColor = previewColor;
+        this.holdHeight = holdHeight;
+        this.gridHeight = gridHeight;
+        this.renderMoveTool = renderMoveTool;
+        this.moveToolX = moveToolPos.x;
+        this.moveToolY = moveToolPos.y;
+        this.moveToolZ = moveToolPos.z;
+    }
+
+    /**
+     * copies the preview stones (stones of unknown type are left out)
+     */
+    public static int[] buildPreview(Object3d obj3d, List<Model.Stone> currentStones) {
+        int[] preview = new int[5 * currentStones.size()];
+        int n = 0, index;
+        Model.Stone stone;
+        for (Iterator<Model.Stone> it = currentStones.iterator(); it.hasNext();) {
+            stone = (Model.Stone) it.next();
+            if ((index = obj3d.indexOf(stone.type)) == -1)
+                continue;
+            preview[n++] = index;
+            preview[n++] = stone.pos.x;
+            preview[n++] = stone.pos.y;
+            preview[n++] = stone.pos.z;
+            preview[n++] = stone.rotation;
+        }
+        return n == preview.length ? preview : Arrays.copyOf(preview, n);
+    }
+
+    public int getNumPreviewStones() {
+        return preview.length / 5;
+    }
+
+    /**
+     * renders the preview stones; the color has to be set already
+     */
+    public void renderPreview(GL2 gl, Object3d obj3d) {
+        obj3d.beginRender(gl);
+        for (int n = 0; n < preview.length; n += 5)
+            obj3d.renderBySubIndex(gl, preview[n], preview[n + 1], 0.4 * preview[n + 2], preview[n + 3], 0,
+                    preview[n + 4] * 90.0, 0);
+        obj3d.endRender(gl);
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.Arrays;
+
+/**
+ * bounding-volume-hierarchy over the world-space boxes of the stones of a
+ * model (leafs reference the slot of the stone in the store). the tree is
+ * updated incrementally (insert/remove of single leafs) and kept balanced by
+ * rotations, so ray-queries only visit the nodes hit by the ray and stay
+ * logarithmic in the number of stones. many stones at once are built into a
+ * sub-tree, which is inserted as a whole (build(..), insert(..)).
+ */
+public class StoneBVH {
+    public static class Node {
+        Math3d.AABB box = new Math3d.AABB();
+        Node parent, child1, child2;
+        int slot = -1; // only set for leafs (MARKED: inner node to be re-fitted)
+        int height; // leaf = 0
+
+        boolean isLeaf() {
+            return child1 == null;
+        }
+    }
+
+    /**
+     * leaf-test for ray-queries
+     */
+    public interface RayCallback {
+        /**
+         * returns the distance of the hit along the ray; no hit, if distance < 0
+         */
+        double hit(int slot);
+    }
+
+    private static final int MARKED = -2;
+
+    private Node root = null;
+    private int numLeafs = 0;
+    private Node[] leafs = new Node[16]; // by slot
+
+    // ** traversal stack (reused by all queries) **
+    private Node[] stackNodes = new Node[64];
+    private double[] stackDist = new double[64];
+
+    private double lastDistance;
+
+    public StoneBVH() {
+    }
+
+    public int size() {
+        return numLeafs;
+    }
+
+    public void clear() {
+        root = null;
+        numLeafs = 0;
+        Arrays.fill(leafs, null);
+    }
+
+    /**
+     * rebuilds the tree top-down over all stones of the store (faster than
+     * inserting the stones one by one, e.g. after loading a file); the boxes
+     * are split at the median of the longest axis
+     */
+    public void build(StoneStore store) {
+        clear();
+        int n = store.size();
+        if (n == 0)
+            return;
+        if (n > leafs.length)
+            leafs = new Node[n];
+        int[] order = new int[n];
+        double[][] centers = new double[3][n];
+        for (int i = 0; i < n; i++) {
+            Node leaf = new Node();
+            store.getWorldAABB(i, leaf.box);
+            leaf.slot = i;
+            leafs[i] = leaf;
+            order[i] = i;
+            centers[0][i] = leaf.box.min.x + leaf.box.max.x;
+            centers[1][i] = leaf.box.min.y + leaf.box.max.y;
+            centers[2][i] = leaf.box.min.z + leaf.box.max.z;
+        }
+        numLeafs = n;
+        root = build(order, centers, 0, n);
+    }
+
+    /**
+     * inserts the stones in slots[0..n-1] of the store, which have to be
+     * sorted spatially (e.g. in morton order): the sub-tree over them is
+     * built by halving the list of slots and inserted like a single leaf
+     * (much faster than inserting the stones one by one)
+     */
+    public void insert(StoneStore store, int[] slots, int n) {
+        if (n == 0)
+            return;
+        for (int i = 0; i < n; i++) {
+            int slot = slots[i];
+            Node leaf = new Node();
+            store.getWorldAABB(slot, leaf.box);
+            leaf.slot = slot;
+            if (slot >= leafs.length)
+                leafs = Arrays.copyOf(leafs, Math.max(slot + 1, leafs.length * 2));
+            leafs[slot] = leaf;
+        }
+        numLeafs += n;
+        Node node = build(slots, 0, n);
+        if (root == null)
+            root = node;
+        else
+            insert(node);
+    }
+
+    private Node build(int[] slots, int from, int to) {
+        if (to - from == 1)
+            return leafs[slots[from]];
+        int mid = (from + to) >>> 1;
+        Node node = new Node();
+        node.child1 = build(slots, from, mid);
+        node.child2 = build(slots, mid, to);
+        node.child1.parent = node;
+        node.child2.parent = node;
+        union(node.box, node.child1.box, node.child2.box);
+        node.height = 1 + Math.max(node.child1.height, node.child2.height);
+        return node;
+    }
+
+    private Node build(int[] order, double[][] centers, int from, int to) {
+        if (to - from == 1)
+            return leafs[order[from]];
+        // ** longest axis of the centers **
+        int longest = 0;
+        double longestExtent = -1.0;
+        for (int axis = 0; axis < 3; axis++) {
+            double[] c = centers[axis];
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                min = Math.min(min, c[order[i]]);
+                max = Math.max(max, c[order[i]]);
+            }
+            if (max - min > longestExtent) {
+                longestExtent = max - min;
+                longest = axis;
+            }
+        }
+        // ** split at the median **
+        int mid = (from + to) >>> 1;
+        select(order, centers[longest], from, to - 1, mid);
+        Node node = new Node();
+        node.child1 = build(order, centers, from, mid);
+        node.child2 = build(order, centers, mid, to);
+        node.child1.parent = node;
+        node.child2.parent = node;
+        union(node.box, node.child1.box, node.child2.box);
+        node.height = 1 + Math.max(node.child1.height, node.child2.height);
+        return node;
+    }
+
+    /**
+     * partially sorts order[left..right] by key, so that order[k] is at its
+     * sorted position (quickselect)
+     */
+    private static void select(int[] order, double[] key, int left, int right, int k) {
+        while (right > left) {
+            double pivot = key[order[(left + right) >>> 1]];
+            int i = left, j = right, tmp;
+            while (i <= j) {
+                while (key[order[i]] < pivot)
+                    i++;
+                while (key[order[j]] > pivot)
+                    j--;
+                if (i <= j) {
+                    tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private static void union(Math3d.AABB dest, Math3d.AABB a, Math3d.AABB b) {
+        dest.min.x = Math.min(a.min.x, b.min.x);
+        dest.min.y = Math.min(a.min.y, b.min.y);
+        dest.min.z = Math.min(a.min.z, b.min.z);
+        dest.max.x = Math.max(a.max.x, b.max.x);
+        dest.max.y = Math.max(a.max.y, b.max.y);
+        dest.max.z = Math.max(a.max.z, b.max.z);
+    }
+
+    private static double area(Math3d.AABB a) {
+        double dx = a.max.x - a.min.x, dy = a.max.y - a.min.y, dz = a.max.z - a.min.z;
+        return 2.0 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    private static double unionArea(Math3d.AABB a, Math3d.AABB b) {
+        double dx = Math.max(a.max.x, b.max.x) - Math.min(a.min.x, b.min.x);
+        double dy = Math.max(a.max.y, b.max.y) - Math.min(a.min.y, b.min.y);
+        double dz = Math.max(a.max.z, b.max.z) - Math.min(a.min.z, b.min.z);
+        return 2.0 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /**
+     * inserts the stone in slot with the given world-space box
+     */
+    public void insert(int slot, Math3d.AABB box) {
+        Node leaf = new Node();
+        leaf.box.min.set(box.min);
+        leaf.box.max.set(box.max);
+        leaf.slot = slot;
+        if (slot >= leafs.length)
+            leafs = Arrays.copyOf(leafs, Math.max(slot + 1, leafs.length * 2));
+        leafs[slot] = leaf;
+        numLeafs++;
+
+        if (root == null)
+            root = leaf;
+        else
+            insert(leaf);
+    }
+
+    /**
+     * inserts a leaf or a sub-tree into the (non-empty) tree
+     */
+    private void insert(Node leaf) {
+        // ** find best sibling (surface area heuristic) **
+        Node index = root;
+        while (!index.isLeaf()) {
+            double area = area(index.box);
+            double combinedArea = unionArea(index.box, leaf.box);
+            // cost of creating a new parent for this node and the new leaf
+            double cost = 2.0 * combinedArea;
+            // minimum cost of pushing the leaf further down the tree
+            double inheritanceCost = 2.0 * (combinedArea - area);
+            double cost1 = descendCost(index.child1, leaf.box, inheritanceCost);
+            double cost2 = descendCost(index.child2, leaf.box, inheritanceCost);
+            if (cost < cost1 && cost < cost2)
+                break;
+            index = cost1 < cost2 ? index.child1 : index.child2;
+        }
+        Node sibling = index;
+
+        // ** create new parent **
+        Node oldParent = sibling.parent;
+        Node newParent = new Node();
+        newParent.parent = oldParent;
+        union(newParent.box, leaf.box, sibling.box);
+        newParent.height = Math.max(sibling.height, leaf.height) + 1;
+        newParent.child1 = sibling;
+        newParent.child2 = leaf;
+        sibling.parent = newParent;
+        leaf.parent = newParent;
+        if (oldParent != null) {
+            if (oldParent.child1 == sibling)
+                oldParent.child1 = newParent;
+            else
+                oldParent.child2 = newParent;
+        } else
+            root = newParent;
+
+        refit(leaf.parent);
+    }
+
+    private double descendCost(Node child, Math3d.AABB box, double inheritanceCost) {
+        if (child.isLeaf())
+            return unionArea(child.box, box) + inheritanceCost;
+        return unionArea(child.box, box) - area(child.box) + inheritanceCost;
+    }
+
+    public void remove(int slot) {
+        Node leaf = slot < leafs.length ? leafs[slot] : null;
+        if (leaf == null)
+            return;
+        leafs[slot] = null;
+        numLeafs--;
+
+        if (leaf == root) {
+            root = null;
+            return;
+        }
+        Node parent = leaf.parent;
+        Node grandParent = parent.parent;
+        Node sibling = parent.child1 == leaf ? parent.child2 : parent.child1;
+        if (grandParent != null) {
+            if (grandParent.child1 == parent)
+                grandParent.child1 = sibling;
+            else
+                grandParent.child2 = sibling;
+            sibling.parent = grandParent;
+            refit(grandParent);
+        } else {
+            root = sibling;
+            sibling.parent = null;
+        }
+    }
+
+    /**
+     * the stones in slots[0..n-1] have been moved; the slots have to be sorted
+     * spatially, see insert(store, slots, n). their leafs are unlinked first,
+     * the nodes above them are re-fitted once (instead of once per stone, as
+     * remove(slot)), and the leafs are inserted again as one sub-tree over
+     * their new boxes (the leafs are reused).
+     */
+    public void update(StoneStore store, int[] slots, int n) {
+        if (n == 0)
+            return;
+        Node[] changed = new Node[n];
+        int numChanged = 0;
+        for (int i = 0; i < n; i++) {
+            Node leaf = leafs[slots[i]];
+            if (leaf == root) {
+                root = null;
+                continue;
+            }
+            Node parent = leaf.parent;
+            Node grandParent = parent.parent;
+            Node sibling = parent.child1 == leaf ? parent.child2 : parent.child1;
+            parent.height = -1; // dropped
+            if (grandParent != null) {
+                if (grandParent.child1 == parent)
+                    grandParent.child1 = sibling;
+                else
+                    grandParent.child2 = sibling;
+                sibling.parent = grandParent;
+                changed[numChanged++] = grandParent;
+            } else {
+                root = sibling;
+                sibling.parent = null;
+            }
+        }
+        // ** mark the changed nodes and their ancestors, then re-fit them bottom-up **
+        Node node;
+        for (int i = 0; i < numChanged; i++)
+            for (node = changed[i]; node != null && node.height != -1 && node.slot != MARKED; node = node.parent)
+                node.slot = MARKED;
+        if (root != null)
+            refitMarked(root);
+
+        // ** insert the leafs at their new boxes as one sub-tree **
+        for (int i = 0; i < n; i++)
+            store.getWorldAABB(slots[i], leafs[slots[i]].box);
+        node = build(slots, 0, n);
+        node.parent = null;
+        if (root == null)
+            root = node;
+        else
+            insert(node);
+    }
+
+    private void refitMarked(Node node) {
+        if (node.slot != MARKED)
+            return;
+        node.slot = -1;
+        refitMarked(node.child1);
+        refitMarked(node.child2);
+        node.height = 1 + Math.max(node.child1.height, node.child2.height);
+        union(node.box, node.child1.box, node.child2.box);
+    }
+
+    /**
+     * the stone in slot "from" has been moved to slot "to" of the store
+     */
+    public void move(int from, int to) {
+        Node leaf = leafs[from];
+        leafs[from] = null;
+        if (to >= leafs.length)
+            leafs = Arrays.copyOf(leafs, Math.max(to + 1, leafs.length * 2));
+        leafs[to] = leaf;
+        if (leaf != null)
+            leaf.slot = to;
+    }
+
+    /**
+     * walks up from index, re-balancing and re-fitting the boxes
+     */
+    private void refit(Node index) {
+        while (index != null) {
+            index = balance(index);
+            index.height = 1 + Math.max(index.child1.height, index.child2.height);
+            union(index.box, index.child1.box, index.child2.box);
+            index = index.parent;
+        }
+    }
+
+    /**
+     * performs a left or right rotation if node A is imbalanced; returns the
+     * new root of the sub-tree
+     */
+    private Node balance(Node a) {
+        if (a.isLeaf() || a.height < 2)
+            return a;
+        Node b = a.child1;
+        Node c = a.child2;
+        int balance = c.height - b.height;
+        if (balance > 1)
+            return rotate(a, c, b);
+        if (balance < -1)
+            return rotate(a, b, c);
+        return a;
+    }
+
+    /**
+     * rotates the higher child "up" up; "other" stays a child of a
+     */
+    private Node rotate(Node a, Node up, Node other) {
+        Node f = up.child1;
+        Node g = up.child2;
+
+        // swap a and up
+        up.child1 = a;
+        up.parent = a.parent;
+        a.parent = up;
+        if (up.parent != null) {
+            if (up.parent.child1 == a)
+                up.parent.child1 = up;
+            else
+                up.parent.child2 = up;
+        } else
+            root = up;
+
+        // keep the higher grandchild below up, move the other one to a
+        Node keep = f.height > g.height ? f : g;
+        Node move = keep == f ? g : f;
+        up.child2 = keep;
+        if (a.child1 == up)
+            a.child1 = move;
+        else
+            a.child2 = move;
+        move.parent = a;
+        union(a.box, a.child1.box, a.child2.box);
+        a.height = 1 + Math.max(a.child1.height, a.child2.height);
+        union(up.box, a.box, keep.box);
+        up.height = 1 + Math.max(a.height, keep.height);
+        return up;
+    }
+
+    /**
+     * returns the entry distance of the ray into the box; no hit, if < 0
+     */
+    private static double rayEntry(Math3d.AABB box, Math3d.Double3 orig, Math3d.Double3 dir) {
+        return Math3d.rayBox(orig.x, orig.y, orig.z, dir.x, dir.y, dir.z,
+                box.min.x, box.min.y, box.min.z, box.max.x, box.max.y, box.max.z);
+    }
+
+    private void push(int top, Node node, double dist) {
+        if (top == stackNodes.length) {
+            Node[] nodes = new Node[top * 2];
+            double[] dists = new double[top * 2];
+            System.arraycopy(stackNodes, 0, nodes, 0, top);
+            System.arraycopy(stackDist, 0, dists, 0, top);
+            stackNodes = nodes;
+            stackDist = dists;
+        }
+        stackNodes[top] = node;
+        stackDist[top] = dist;
+    }
+
+    /**
+     * returns the slot of the nearest hit closer than maxDistance (or -1);
+     * the distance of the hit is available via getLastDistance().
+     * nodes are visited front-to-back and skipped as soon as they start behind
+     * the nearest hit found so far. the ray direction must be normalized.
+     */
+    public int raycast(Math3d.Double3 orig, Math3d.Double3 dir, double maxDistance, RayCallback callback) {
+        int nearest = -1;
+        double best = maxDistance;
+        lastDistance = maxDistance;
+        if (root == null)
+            return -1;
+        double t = rayEntry(root.box, orig, dir);
+        if (t < 0.0)
+            return -1;
+        int top = 0;
+        push(top++, root, t);
+        Node node;
+        double t1, t2;
+        while (top > 0) {
+            top--;
+            node = stackNodes[top];
+            stackNodes[top] = null;
+            if (stackDist[top] > best)
+                continue;
+            if (node.isLeaf()) {
+                t = callback.hit(node.slot);
+                if (t >= 0.0 && t < best) {
+                    best = t;
+                    nearest = node.slot;
+                }
+                continue;
+            }
+            t1 = rayEntry(node.child1.box, orig, dir);
+            t2 = rayEntry(node.child2.box, orig, dir);
+            // push the farther child first, so that the nearer one is visited first
+            if (t1 >= 0.0 && t2 >= 0.0 && t1 < t2) {
+                push(top++, node.child2, t2);
+                push(top++, node.child1, t1);
+            } else {
+                if (t1 >= 0.0)
+                    push(top++, node.child1, t1);
+                if (t2 >= 0.0)
+                    push(top++, node.child2, t2);
+            }
+        }
+        lastDistance = best;
+        return nearest;
+    }
+
+    public double getLastDistance() {
+        return lastDistance;
+    }
+
+    public int getHeight() {
+        return root == null ? 0 : root.height;
+    }
+
+    /**
+     * root of the tree, or null (e.g. to check the tree in tests)
+     */
+    Node getRoot() {
+        return root;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+/**
+ * change stamps of the chunks (CHUNK_SIZE x CHUNK_SIZE studs of the
+ * x-z-plane) of a model: every change of a stone (insertion, removal,
+ * selection) gives the chunk containing its position a new stamp. stamps are
+ * unique over all models, so a chunk with an unchanged stamp has not changed
+ * since it was last seen (BakedStoneRenderer only rebuilds chunks with new
+ * stamps). the chunks are kept in an open-addressing hash-table with the
+ * packed chunk coordinates as key, as in StoneGrid.
+ */
+public class StoneChunks {
+    /**
+     * edge length of the chunks (studs)
+     */
+    public static final int CHUNK_SIZE = 16;
+
+    private static long lastStamp = 0;
+
+    // ** hash-table (linear probing); stamp 0 = empty entry **
+    private long[] keys = new long[256];
+    private long[] stamps = new long[256];
+    private int numChunks = 0;
+
+    public StoneChunks() {
+    }
+
+    /**
+     * packs the coordinates of the chunk containing the position (studs)
+     * into one key
+     */
+    public static long key(int x, int z) {
+        int cx = Math.floorDiv(x, CHUNK_SIZE), cz = Math.floorDiv(z, CHUNK_SIZE);
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    private static synchronized long nextStamp() {
+        return ++lastStamp;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * position of key in the table, or of the empty entry where it belongs
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (stamps[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys, oldStamps = stamps;
+        keys = new long[oldKeys.length * 2];
+        stamps = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldStamps[i] != 0) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                stamps[j] = oldStamps[i];
+            }
+    }
+
+    /**
+     * gives the chunk containing the position a new stamp
+     */
+    public void touch(int x, int z) {
+        long key = key(x, z);
+        int i = find(key);
+        if (stamps[i] == 0) {
+            if (2 * (numChunks + 1) > keys.length) {
+                grow();
+                i = find(key);
+            }
+            keys[i] = key;
+            numChunks++;
+        }
+        stamps[i] = nextStamp();
+    }
+
+    /**
+     * stamp of the chunk, or 0 if none of its stones has ever changed
+     */
+    public long getStamp(long key) {
+        return stamps[find(key)];
+    }
+
+    public void clear() {
+        keys = new long[256];
+        stamps = new long[256];
+        numChunks = 0;
+    }
+}
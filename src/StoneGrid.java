@@ -0,0 +1,264 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+/**
+ * sparse voxel-grid over the stones of a model; a cell is CELL_SIZE studs in x
+ * and z and CELL_HEIGHT plates in y (about a brick, so a stone covers few
+ * cells and a cell holds few stones). every stone is registered (by its slot
+ * in the store) in all cells its collision-box covers, so overlap-tests only
+ * have to look at the stones in the cells of the tested box instead of at the
+ * whole model. the cells are kept in an open-addressing hash-table with the
+ * packed cell coordinates as key (no key objects).
+ */
+public class StoneGrid {
+    /**
+     * edge length of the cells in x and z (studs)
+     */
+    public static final int CELL_SIZE = 4;
+    /**
+     * height of the cells (plates)
+     */
+    public static final int CELL_HEIGHT = 3;
+
+    // ** hash-table (linear probing); cell: [0] = number of slots, [1..] = slots **
+    private long[] keys = new long[256];
+    private int[][] cells = new int[256][];
+    private int numCells = 0;
+
+    private StoneStore store;
+
+    private Math3d.Int3 min = new Math3d.Int3();
+    private Math3d.Int3 max = new Math3d.Int3();
+    private Math3d.Int3 oldMin = new Math3d.Int3();
+    private Math3d.Int3 oldMax = new Math3d.Int3();
+    private Math3d.AABB tmp = new Math3d.AABB();
+
+    public StoneGrid(StoneStore store) {
+        this.store = store;
+    }
+
+    /**
+     * packs the cell coordinates (21 bits each) into one key
+     */
+    private static long key(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (long) (z & 0x1FFFFF);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * position of key in the table, or of the empty entry where it belongs
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (cells[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[][] oldCells = cells;
+        keys = new long[oldKeys.length * 2];
+        cells = new int[oldKeys.length * 2][];
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldCells[i] != null) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                cells[j] = oldCells[i];
+            }
+    }
+
+    /**
+     * removes the entry at position i and moves following entries of the same
+     * probe sequence back
+     */
+    private void deleteEntry(int i) {
+        int mask = keys.length - 1;
+        int j = i, home;
+        cells[i] = null;
+        numCells--;
+        while (true) {
+            j = (j + 1) & mask;
+            if (cells[j] == null)
+                return;
+            home = hash(keys[j]) & mask;
+            // move entry j to i, if i lies cyclically between home and j
+            if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                cells[i] = cells[j];
+                cells[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * get the (inclusive) range of cells covered by a collision-box
+     */
+    private void getCellRange(Math3d.AABB box, Math3d.Int3 min, Math3d.Int3 max) {
+        min.x = (int) Math.floor(box.min.x / CELL_SIZE);
+        min.y = (int) Math.floor(box.min.y / (0.4 * CELL_HEIGHT));
+        min.z = (int) Math.floor(box.min.z / CELL_SIZE);
+        max.x = (int) Math.floor(box.max.x / CELL_SIZE);
+        max.y = (int) Math.floor(box.max.y / (0.4 * CELL_HEIGHT));
+        max.z = (int) Math.floor(box.max.z / CELL_SIZE);
+    }
+
+    private void addToCell(long key, int slot) {
+        int i = find(key);
+        int[] cell = cells[i];
+        if (cell == null) {
+            if (2 * (numCells + 1) > keys.length) {
+                grow();
+                i = find(key);
+            }
+            cell = new int[8];
+            keys[i] = key;
+            cells[i] = cell;
+            numCells++;
+        } else if (cell[0] + 1 == cell.length) {
+            cell = Arrays.copyOf(cell, cell.length * 2);
+            cells[i] = cell;
+        }
+        cell[++cell[0]] = slot;
+    }
+
+    private void removeFromCell(long key, int slot) {
+        int i = find(key);
+        int[] cell = cells[i];
+        if (cell == null)
+            return;
+        for (int k = 1; k <= cell[0]; k++)
+            if (cell[k] == slot) {
+                cell[k] = cell[cell[0]--];
+                break;
+            }
+        if (cell[0] == 0)
+            deleteEntry(i);
+    }
+
+    public void add(int slot) {
+        store.getCollisionAABB(slot, tmp);
+        getCellRange(tmp, min, max);
+        for (int x = min.x; x <= max.x; x++)
+            for (int y = min.y; y <= max.y; y++)
+                for (int z = min.z; z <= max.z; z++)
+                    addToCell(key(x, y, z), slot);
+    }
+
+    /**
+     * must be called before the position of the stone is changed
+     */
+    public void remove(int slot) {
+        store.getCollisionAABB(slot, tmp);
+        getCellRange(tmp, min, max);
+        for (int x = min.x; x <= max.x; x++)
+            for (int y = min.y; y <= max.y; y++)
+                for (int z = min.z; z <= max.z; z++)
+                    removeFromCell(key(x, y, z), slot);
+    }
+
+    /**
+     * the stone in slot has been moved to another position; oldBox is its
+     * collision-box at the old position. only the cells which the stone has
+     * left or entered are updated (few for a small move).
+     */
+    public void translate(int slot, Math3d.AABB oldBox) {
+        getCellRange(oldBox, oldMin, oldMax);
+        store.getCollisionAABB(slot, tmp);
+        getCellRange(tmp, min, max);
+        for (int x = oldMin.x; x <= oldMax.x; x++)
+            for (int y = oldMin.y; y <= oldMax.y; y++)
+                for (int z = oldMin.z; z <= oldMax.z; z++)
+                    if (!contains(min, max, x, y, z))
+                        removeFromCell(key(x, y, z), slot);
+        for (int x = min.x; x <= max.x; x++)
+            for (int y = min.y; y <= max.y; y++)
+                for (int z = min.z; z <= max.z; z++)
+                    if (!contains(oldMin, oldMax, x, y, z))
+                        addToCell(key(x, y, z), slot);
+    }
+
+    private static boolean contains(Math3d.Int3 min, Math3d.Int3 max, int x, int y, int z) {
+        return x >= min.x && x <= max.x && y >= min.y && y <= max.y && z >= min.z && z <= max.z;
+    }
+
+    /**
+     * the stone in slot "from" has been moved to slot "to" of the store
+     */
+    public void move(int from, int to) {
+        store.getCollisionAABB(to, tmp);
+        getCellRange(tmp, min, max);
+        for (int x = min.x; x <= max.x; x++)
+            for (int y = min.y; y <= max.y; y++)
+                for (int z = min.z; z <= max.z; z++) {
+                    int[] cell = cells[find(key(x, y, z))];
+                    if (cell == null)
+                        continue;
+                    for (int k = 1; k <= cell[0]; k++)
+                        if (cell[k] == from) {
+                            cell[k] = to;
+                            break;
+                        }
+                }
+    }
+
+    /**
+     * true, if box overlaps with the collision-box of any registered stone
+     */
+    public boolean collides(Math3d.AABB box) {
+        return findCollision(box) != -1;
+    }
+
+    /**
+     * slot of a registered stone whose collision-box overlaps with box, or -1
+     */
+    public int findCollision(Math3d.AABB box) {
+        return findCollision(box, false);
+    }
+
+    /**
+     * see findCollision(box); if ignoreSelected is set, the selected stones
+     * are skipped (e.g. to test the new positions of moved stones)
+     */
+    public int findCollision(Math3d.AABB box, boolean ignoreSelected) {
+        getCellRange(box, min, max);
+        for (int x = min.x; x <= max.x; x++)
+            for (int y = min.y; y <= max.y; y++)
+                for (int z = min.z; z <= max.z; z++) {
+                    int[] cell = cells[find(key(x, y, z))];
+                    if (cell == null)
+                        continue;
+                    for (int k = 1; k <= cell[0]; k++) {
+                        if (ignoreSelected && store.isSelected(cell[k]))
+                            continue;
+                        store.getCollisionAABB(cell[k], tmp);
+                        if (box.collision(tmp))
+                            return cell[k];
+                    }
+                }
+        return -1;
+    }
+
+    public void clear() {
+        Arrays.fill(cells, null);
+        numCells = 0;
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+}
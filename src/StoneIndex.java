@@ -0,0 +1,114 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+/**
+ * slots of the stones of a store grouped by the value of an attribute (e.g.
+ * the insertID). the slots of a value are kept in a dense list and the
+ * position of every slot within its list in a column, so adding and removing
+ * a stone and moving it to another slot (StoneStore.remove(..)) take constant
+ * time, and the stones with a given value are found without looking at the
+ * other stones. the entry of the last value is cached, as stones are often
+ * added and removed in runs of the same value (e.g. a bulk insertion).
+ * maintained by StoneStore.
+ */
+public class StoneIndex {
+    /**
+     * the slots with one value
+     */
+    private static class Entry {
+        int[] slots = new int[4];
+        int size = 0;
+    }
+
+    private HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private int[] position = new int[0]; // of the slot in the list of its value
+    private int lastValue = 0;
+    private Entry lastEntry = null; // entry of lastValue, or null
+
+    public StoneIndex() {
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > position.length)
+            position = Arrays.copyOf(position, capacity);
+    }
+
+    /**
+     * entry of the value, or null
+     */
+    private Entry getEntry(int value) {
+        if (lastEntry == null || value != lastValue) {
+            lastEntry = entries.get(value);
+            lastValue = value;
+        }
+        return lastEntry;
+    }
+
+    public void add(int value, int slot) {
+        Entry entry = getEntry(value);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(value, entry);
+            lastEntry = entry;
+        }
+        if (entry.size == entry.slots.length)
+            entry.slots = Arrays.copyOf(entry.slots, 2 * entry.size);
+        ensureCapacity(slot + 1);
+        position[slot] = entry.size;
+        entry.slots[entry.size++] = slot;
+    }
+
+    public void remove(int value, int slot) {
+        Entry entry = getEntry(value);
+        int last = entry.slots[--entry.size];
+        entry.slots[position[slot]] = last;
+        position[last] = position[slot];
+        if (entry.size == 0) {
+            entries.remove(value);
+            lastEntry = null;
+        }
+    }
+
+    /**
+     * the stone with the given value has been moved from slot from to slot to
+     */
+    public void move(int value, int from, int to) {
+        ensureCapacity(to + 1);
+        getEntry(value).slots[position[from]] = to;
+        position[to] = position[from];
+    }
+
+    public void clear() {
+        entries.clear();
+        lastEntry = null;
+    }
+
+    /**
+     * number of stones with the value
+     */
+    public int size(int value) {
+        Entry entry = getEntry(value);
+        return entry != null ? entry.size : 0;
+    }
+
+    /**
+     * slot of the i-th stone with the value (0 <= i < size(value); the
+     * order changes when stones are removed)
+     */
+    public int get(int value, int i) {
+        return getEntry(value).slots[i];
+    }
+
+    /**
+     * number of distinct values
+     */
+    public int getNumValues() {
+        return entries.size();
+    }
+}
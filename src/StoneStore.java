@@ -0,0 +1,382 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import java.util.*;
+
+/**
+ * columnar storage of the stones of a model: every attribute is kept in its
+ * own primitive array, indexed by the slot of the stone. slots are dense
+ * (0..size()-1); removing a stone moves the last stone into the freed slot, so
+ * slots are not stable and stones have to be referenced by id from outside.
+ * the bounds of a stone are shared with all stones of the same type and
+ * rotation. every change of a stone gives its chunk a new stamp (see
+ * StoneChunks). the selected slots are kept in a dense list (in the order of
+ * selection) together with the sum of their positions, so the selection and
+ * its center cost in proportion to the number of selected stones. the
+ * stones with a given insertID, type or color are found by indexes
+ * (StoneIndex), which are kept up to date by add(..), remove(..),
+ * setInsertID(..) and clear(). the number of selection groups containing a
+ * stone is kept with the stone for the model (Model.SelectionGroup).
+ * all changes are synchronized on the store, so a snapshot of the stones
+ * (SceneSnapshot.Stones.build(..)) always sees the store between two changes,
+ * even if it is built on another thread than the one editing the model.
+ */
+public class StoneStore {
+    private int size = 0;
+    private int[] id = new int[0];
+    private int[] insertID = new int[0];
+    private int[] color = new int[0];
+    private int[] type = new int[0];
+    private int[] rotation = new int[0];
+    private int[] x = new int[0];
+    private int[] y = new int[0];
+    private int[] z = new int[0];
+    private int[] obj3dIndex = new int[0];
+    private Math3d.AABB[] bounds = new Math3d.AABB[0];
+    private int[] numGroups = new int[0];
+
+    // ** selection: position of the slot in selectedSlots (or -1), sum of the positions **
+    private int[] selectedIndex = new int[0];
+    private int[] selectedSlots = new int[16];
+    private int numSelected = 0;
+    private long selectedX = 0, selectedY = 0, selectedZ = 0;
+
+    // ** indexes **
+    private StoneIndex byInsertID = new StoneIndex();
+    private StoneIndex byType = new StoneIndex();
+    private StoneIndex byColor = new StoneIndex();
+
+    private IntIntMap slotByID = new IntIntMap();
+
+    private StoneChunks chunks = new StoneChunks();
+
+    public StoneStore() {
+    }
+
+    /**
+     * makes room for the given number of stones (e.g. before a bulk load)
+     */
+    public synchronized void ensureCapacity(int capacity) {
+        if (capacity <= id.length)
+            return;
+        capacity = Math.max(capacity, Math.max(16, id.length * 2));
+        id = Arrays.copyOf(id, capacity);
+        insertID = Arrays.copyOf(insertID, capacity);
+        color = Arrays.copyOf(color, capacity);
+        type = Arrays.copyOf(type, capacity);
+        rotation = Arrays.copyOf(rotation, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        obj3dIndex = Arrays.copyOf(obj3dIndex, capacity);
+        bounds = Arrays.copyOf(bounds, capacity);
+        numGroups = Arrays.copyOf(numGroups, capacity);
+        selectedIndex = Arrays.copyOf(selectedIndex, capacity);
+        byInsertID.ensureCapacity(capacity);
+        byType.ensureCapacity(capacity);
+        byColor.ensureCapacity(capacity);
+    }
+
+    /**
+     * appends a stone and returns its slot; bounds is not copied
+     */
+    public synchronized int add(int id, int insertID, int color, int type, int rotation, int x, int y, int z,
+            int obj3dIndex, Math3d.AABB bounds) {
+        ensureCapacity(size + 1);
+        int slot = size++;
+        this.id[slot] = id;
+        this.insertID[slot] = insertID;
+        this.color[slot] = color;
+        this.type[slot] = type;
+        this.rotation[slot] = rotation;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        this.z[slot] = z;
+        this.obj3dIndex[slot] = obj3dIndex;
+        this.bounds[slot] = bounds;
+        numGroups[slot] = 0;
+        selectedIndex[slot] = -1;
+        byInsertID.add(insertID, slot);
+        byType.add(type, slot);
+        byColor.add(color, slot);
+        slotByID.put(id, slot);
+        chunks.touch(x, z);
+        return slot;
+    }
+
+    /**
+     * removes the stone in slot by moving the last stone into it; returns the
+     * previous slot of the moved stone, or -1 if no stone was moved
+     */
+    public synchronized int remove(int slot) {
+        setSelected(slot, false);
+        int last = --size;
+        chunks.touch(x[slot], z[slot]);
+        byInsertID.remove(insertID[slot], slot);
+        byType.remove(type[slot], slot);
+        byColor.remove(color[slot], slot);
+        if (slotByID.get(id[slot]) == slot)
+            slotByID.remove(id[slot]);
+        if (slot != last) {
+            id[slot] = id[last];
+            insertID[slot] = insertID[last];
+            color[slot] = color[last];
+            type[slot] = type[last];
+            rotation[slot] = rotation[last];
+            x[slot] = x[last];
+            y[slot] = y[last];
+            z[slot] = z[last];
+            obj3dIndex[slot] = obj3dIndex[last];
+            bounds[slot] = bounds[last];
+            numGroups[slot] = numGroups[last];
+            selectedIndex[slot] = selectedIndex[last];
+            if (selectedIndex[slot] != -1)
+                selectedSlots[selectedIndex[slot]] = slot;
+            byInsertID.move(insertID[slot], last, slot);
+            byType.move(type[slot], last, slot);
+            byColor.move(color[slot], last, slot);
+            slotByID.put(id[slot], slot);
+        }
+        bounds[last] = null;
+        return slot != last ? last : -1;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(bounds, 0, size, null);
+        size = 0;
+        numSelected = 0;
+        selectedX = selectedY = selectedZ = 0;
+        byInsertID.clear();
+        byType.clear();
+        byColor.clear();
+        slotByID.clear();
+        chunks.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * slot of the stone with the given id, or -1
+     */
+    public int indexOf(int id) {
+        return slotByID.get(id);
+    }
+
+    public int getID(int slot) {
+        return id[slot];
+    }
+
+    public int getInsertID(int slot) {
+        return insertID[slot];
+    }
+
+    public synchronized void setInsertID(int slot, int insertID) {
+        byInsertID.remove(this.insertID[slot], slot);
+        this.insertID[slot] = insertID;
+        byInsertID.add(insertID, slot);
+    }
+
+    /**
+     * slots of the stones by insertID (do not modify)
+     */
+    public StoneIndex getByInsertID() {
+        return byInsertID;
+    }
+
+    /**
+     * number of selection groups containing the stone
+     */
+    public int getNumGroups(int slot) {
+        return numGroups[slot];
+    }
+
+    public synchronized void setNumGroups(int slot, int numGroups) {
+        this.numGroups[slot] = numGroups;
+    }
+
+    public int getColor(int slot) {
+        return color[slot];
+    }
+
+    /**
+     * slots of the stones by color (do not modify)
+     */
+    public StoneIndex getByColor() {
+        return byColor;
+    }
+
+    public int getType(int slot) {
+        return type[slot];
+    }
+
+    /**
+     * slots of the stones by type (do not modify)
+     */
+    public StoneIndex getByType() {
+        return byType;
+    }
+
+    public int getRotation(int slot) {
+        return rotation[slot];
+    }
+
+    public int getX(int slot) {
+        return x[slot];
+    }
+
+    public int getY(int slot) {
+        return y[slot];
+    }
+
+    public int getZ(int slot) {
+        return z[slot];
+    }
+
+    public int getObj3dIndex(int slot) {
+        return obj3dIndex[slot];
+    }
+
+    /**
+     * moves the stone in slot to a new position; the spatial structures of
+     * the model have to be updated by the caller
+     */
+    public synchronized void setPosition(int slot, int x, int y, int z) {
+        long oldChunk = StoneChunks.key(this.x[slot], this.z[slot]);
+        chunks.touch(this.x[slot], this.z[slot]);
+        if (isSelected(slot)) {
+            selectedX += x - this.x[slot];
+            selectedY += y - this.y[slot];
+            selectedZ += z - this.z[slot];
+        }
+        this.x[slot] = x;
+        this.y[slot] = y;
+        this.z[slot] = z;
+        if (StoneChunks.key(x, z) != oldChunk)
+            chunks.touch(x, z);
+    }
+
+    /**
+     * bounds of the stone relative to its position (shared, do not modify)
+     */
+    public Math3d.AABB getBounds(int slot) {
+        return bounds[slot];
+    }
+
+    public boolean isSelected(int slot) {
+        return selectedIndex[slot] != -1;
+    }
+
+    public synchronized void setSelected(int slot, boolean selected) {
+        if (isSelected(slot) == selected)
+            return;
+        if (selected) {
+            if (numSelected == selectedSlots.length)
+                selectedSlots = Arrays.copyOf(selectedSlots, 2 * numSelected);
+            selectedIndex[slot] = numSelected;
+            selectedSlots[numSelected++] = slot;
+            selectedX += x[slot];
+            selectedY += y[slot];
+            selectedZ += z[slot];
+        } else {
+            int last = selectedSlots[--numSelected];
+            selectedSlots[selectedIndex[slot]] = last;
+            selectedIndex[last] = selectedIndex[slot];
+            selectedIndex[slot] = -1;
+            selectedX -= x[slot];
+            selectedY -= y[slot];
+            selectedZ -= z[slot];
+        }
+        chunks.touch(x[slot], z[slot]);
+    }
+
+    public synchronized void clearSelection() {
+        int slot;
+        for (int i = 0; i < numSelected; i++) {
+            slot = selectedSlots[i];
+            selectedIndex[slot] = -1;
+            chunks.touch(x[slot], z[slot]);
+        }
+        numSelected = 0;
+        selectedX = selectedY = selectedZ = 0;
+    }
+
+    public int getNumSelected() {
+        return numSelected;
+    }
+
+    /**
+     * slot of the i-th selected stone (0 <= i < getNumSelected(); the order
+     * of selection, which changes when stones are deselected)
+     */
+    public int getSelected(int i) {
+        return selectedSlots[i];
+    }
+
+    /**
+     * average position of the selected stones (studs and plates, as the
+     * positions of the stones); false, if no stone is selected
+     */
+    public boolean getSelectionCenter(Math3d.Double3 dest) {
+        if (numSelected == 0)
+            return false;
+        dest.x = (double) selectedX / numSelected;
+        dest.y = (double) selectedY / numSelected;
+        dest.z = (double) selectedZ / numSelected;
+        return true;
+    }
+
+    /**
+     * stamp of the chunk with the given key (StoneChunks.key(..))
+     */
+    public long getChunkStamp(long key) {
+        return chunks.getStamp(key);
+    }
+
+    public void getWorldAABB(int slot, Math3d.AABB dest) {
+        Math3d.AABB aabb = bounds[slot];
+        dest.min.x = aabb.min.x + x[slot];
+        dest.min.y = aabb.min.y + y[slot] * 0.4;
+        dest.min.z = aabb.min.z + z[slot];
+        dest.max.x = aabb.max.x + x[slot];
+        dest.max.y = aabb.max.y + y[slot] * 0.4;
+        dest.max.z = aabb.max.z + z[slot];
+    }
+
+    /**
+     * world-space box used for collision-tests; shrunk by 0.01 to prevent
+     * numerical instability with adjacent stones
+     */
+    public void getCollisionAABB(int slot, Math3d.AABB dest) {
+        getCollisionAABB(bounds[slot], x[slot], y[slot], z[slot], dest);
+    }
+
+    public static void getCollisionAABB(Math3d.AABB bounds, int x, int y, int z, Math3d.AABB dest) {
+        dest.min.x = bounds.min.x + x + 0.01;
+        dest.min.y = bounds.min.y + y * 0.4 + 0.01;
+        dest.min.z = bounds.min.z + z + 0.01;
+        dest.max.x = bounds.max.x + x - 0.01;
+        dest.max.y = bounds.max.y + y * 0.4 - 0.01;
+        dest.max.z = bounds.max.z + z - 0.01;
+    }
+
+    /**
+     * copy of the stone in slot
+     */
+    public Model.Stone getStone(int slot) {
+        Model.Stone stone = new Model.Stone();
+        stone.id = id[slot];
+        stone.insertID = insertID[slot];
+        stone.color = color[slot];
+        stone.type = type[slot];
+        stone.rotation = rotation[slot];
+        stone.pos.set(x[slot], y[slot], z[slot]);
+        stone.selected = isSelected(slot);
+        return stone;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import jdk.incubator.vector.*;
+
+/**
+ * RayBoxBatch.Kernel testing DoubleVector.SPECIES_PREFERRED.length() boxes
+ * per instruction (4 with avx2, 8 with avx-512). every lane keeps its own
+ * nearest hit; the lanes are reduced at the end. the loops are free of
+ * branches and allocations (rays parallel to a coordinate plane are left to
+ * the scalar kernel), the results are the same as those of the scalar
+ * kernel. only loaded by RayBoxBatch.getVectorKernel(), which falls back to
+ * the scalar kernel if jdk.incubator.vector is missing.
+ */
+public class VectorRayBoxKernel extends RayBoxBatch.Kernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final int LANES = SPECIES.length();
+
+    // ** lane offsets 0, 1, 2, ... (as doubles, to be blended like the distances) **
+    private static final double[] IOTA = new double[LANES];
+
+    static {
+        for (int i = 0; i < LANES; i++)
+            IOTA[i] = i;
+    }
+
+    public VectorRayBoxKernel() {
+        if (LANES < 2)
+            throw new UnsupportedOperationException("no vector registers");
+    }
+
+    public String getName() {
+        return "vector" + LANES;
+    }
+
+    /**
+     * reduces the nearest hit of every lane (lowest slot among equal
+     * distances); dest[0] is set to the distance (Double.MAX_VALUE, if there
+     * is no hit)
+     */
+    private static int reduce(DoubleVector best, DoubleVector bestSlot, double[] dest) {
+        VectorMask<Double> hit = bestSlot.compare(VectorOperators.GE, 0.0);
+        if (!hit.anyTrue()) {
+            dest[0] = Double.MAX_VALUE;
+            return -1;
+        }
+        double t = best.reduceLanes(VectorOperators.MIN, hit);
+        dest[0] = t;
+        return (int) bestSlot.reduceLanes(VectorOperators.MIN, hit.and(best.compare(VectorOperators.EQ, t)));
+    }
+
+    public int nearestBox(RayBoxBatch boxes, double origX, double origY, double origZ,
+            double dirX, double dirY, double dirZ, double[] dest) {
+        double invX = 1.0 / dirX, invY = 1.0 / dirY, invZ = 1.0 / dirZ;
+        dest[0] = Double.MAX_VALUE;
+        if (Double.isInfinite(invX) || Double.isInfinite(invY) || Double.isInfinite(invZ))
+            return RayBoxBatch.nearestBox(boxes, 0, boxes.size, origX, origY, origZ, invX, invY, invZ, -1, dest);
+        double[] minX = boxes.minX, minY = boxes.minY, minZ = boxes.minZ;
+        double[] maxX = boxes.maxX, maxY = boxes.maxY, maxZ = boxes.maxZ;
+        int n = boxes.size;
+        int bound = SPECIES.loopBound(n);
+        DoubleVector best = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+        DoubleVector bestSlot = DoubleVector.broadcast(SPECIES, -1.0);
+        DoubleVector iota = DoubleVector.fromArray(SPECIES, IOTA, 0);
+        DoubleVector tMin, tMax, t0, t1;
+        VectorMask<Double> hit;
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            // x (the distances start at 0: boxes behind the origin are missed)
+            t0 = DoubleVector.fromArray(SPECIES, minX, i).sub(origX).mul(invX);
+            t1 = DoubleVector.fromArray(SPECIES, maxX, i).sub(origX).mul(invX);
+            tMin = t0.min(t1).max(0.0);
+            tMax = t0.max(t1);
+            // y
+            t0 = DoubleVector.fromArray(SPECIES, minY, i).sub(origY).mul(invY);
+            t1 = DoubleVector.fromArray(SPECIES, maxY, i).sub(origY).mul(invY);
+            tMin = tMin.max(t0.min(t1));
+            tMax = tMax.min(t0.max(t1));
+            // z
+            t0 = DoubleVector.fromArray(SPECIES, minZ, i).sub(origZ).mul(invZ);
+            t1 = DoubleVector.fromArray(SPECIES, maxZ, i).sub(origZ).mul(invZ);
+            tMin = tMin.max(t0.min(t1));
+            tMax = tMax.min(t0.max(t1));
+
+            hit = tMin.compare(VectorOperators.LE, tMax).and(tMin.compare(VectorOperators.GT, 0.0))
+                    .and(tMin.compare(VectorOperators.LT, best));
+            best = best.blend(tMin, hit);
+            bestSlot = bestSlot.blend(iota.add(i), hit);
+        }
+        int nearest = reduce(best, bestSlot, dest);
+        // ** remaining boxes **
+        return RayBoxBatch.nearestBox(boxes, i, n, origX, origY, origZ, invX, invY, invZ, nearest, dest);
+    }
+
+    public int nearestTop(RayBoxBatch boxes, double origX, double origY, double origZ,
+            double dirX, double dirY, double dirZ, double offsetX, double offsetZ, double[] dest) {
+        double[] minX = boxes.minX, minZ = boxes.minZ;
+        double[] maxX = boxes.maxX, maxY = boxes.maxY, maxZ = boxes.maxZ;
+        dest[0] = Double.MAX_VALUE;
+        if (dirY == 0.0)
+            return -1;
+        int n = boxes.size;
+        int bound = SPECIES.loopBound(n);
+        DoubleVector best = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+        DoubleVector bestSlot = DoubleVector.broadcast(SPECIES, -1.0);
+        DoubleVector iota = DoubleVector.fromArray(SPECIES, IOTA, 0);
+        DoubleVector t, x, z;
+        VectorMask<Double> hit;
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            t = DoubleVector.fromArray(SPECIES, maxY, i).sub(origY).div(dirY);
+            x = t.mul(dirX).add(origX);
+            z = t.mul(dirZ).add(origZ);
+            hit = t.compare(VectorOperators.GE, 0.0).and(t.compare(VectorOperators.LT, best))
+                    .and(x.compare(VectorOperators.GE, DoubleVector.fromArray(SPECIES, minX, i).add(offsetX)))
+                    .and(x.compare(VectorOperators.LE, DoubleVector.fromArray(SPECIES, maxX, i).add(offsetX)))
+                    .and(z.compare(VectorOperators.GE, DoubleVector.fromArray(SPECIES, minZ, i).add(offsetZ)))
+                    .and(z.compare(VectorOperators.LE, DoubleVector.fromArray(SPECIES, maxZ, i).add(offsetZ)));
+            best = best.blend(t, hit);
+            bestSlot = bestSlot.blend(iota.add(i), hit);
+        }
+        int nearest = reduce(best, bestSlot, dest);
+        // ** remaining boxes **
+        double ti, xi, zi;
+        for (; i < n; i++) {
+            ti = (maxY[i] - origY) / dirY;
+            if (ti < 0.0 || ti >= dest[0])
+                continue;
+            xi = origX + ti * dirX;
+            zi = origZ + ti * dirZ;
+            if (xi >= offsetX + minX[i] && xi <= offsetX + maxX[i] && zi >= offsetZ + minZ[i]
+                    && zi <= offsetZ + maxZ[i]) {
+                dest[0] = ti;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * edits of a model and their undo/redo (no gl-context needed)
+ */
+public class ModelTest {
+    private static Object3d obj3d;
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+    }
+
+    /**
+     * inserts a row of n stones of the first type, 8 studs apart
+     */
+    private static Model row(int n) {
+        Model model = new Model(obj3d);
+        for (int i = 0; i < n; i++)
+            model.insertStone(-1, 0, 0, obj3d.getSubId(0), 8 * i, 0, 0, 0);
+        assertEquals(n, model.getStones().size());
+        return model;
+    }
+
+    private static void select(Model model, int... ids) {
+        model.deselectAll();
+        for (int id : ids)
+            model.getStones().setSelected(model.getStones().indexOf(id), true);
+    }
+
+    private static void assertMembers(Model model, int groupID, int... ids) {
+        Model.SelectionGroup grp = model.getSelectionGroup(groupID);
+        assertEquals(ids.length, grp.size());
+        for (int id : ids)
+            assertTrue(grp.contains(id), "stone " + id + " not in group " + groupID);
+    }
+
+    private static int numGroups(Model model, int id) {
+        return model.getStones().getNumGroups(model.getStones().indexOf(id));
+    }
+
+    /**
+     * positions of all stones by id
+     */
+    private static Map<Integer, List<Integer>> positions(Model model) {
+        StoneStore stones = model.getStones();
+        HashMap<Integer, List<Integer>> positions = new HashMap<Integer, List<Integer>>();
+        for (int slot = 0; slot < stones.size(); slot++)
+            positions.put(stones.getID(slot), Arrays.asList(stones.getX(slot), stones.getY(slot), stones.getZ(slot)));
+        return positions;
+    }
+
+    /**
+     * positions with the given stones moved by (dx, dy, dz)
+     */
+    private static Map<Integer, List<Integer>> moved(Map<Integer, List<Integer>> positions, int dx, int dy, int dz,
+            int... ids) {
+        HashMap<Integer, List<Integer>> moved = new HashMap<Integer, List<Integer>>(positions);
+        for (int id : ids) {
+            List<Integer> pos = positions.get(id);
+            moved.put(id, Arrays.asList(pos.get(0) + dx, pos.get(1) + dy, pos.get(2) + dz));
+        }
+        return moved;
+    }
+
+    @Test
+    void undoRemoveRestoresGroups() {
+        Model model = row(4);
+        StoneStore stones = model.getStones();
+        int a = stones.getID(0), b = stones.getID(1), c = stones.getID(2), d = stones.getID(3);
+        select(model, a, b);
+        int first = model.makeGroupFromSelection("first");
+        select(model, b, c);
+        int second = model.makeGroupFromSelection("second");
+
+        select(model, a, b, d);
+        model.deleteSelected();
+        assertEquals(1, stones.size());
+        assertMembers(model, first);
+        assertMembers(model, second, c);
+
+        assertTrue(model.undo());
+        assertEquals(4, stones.size());
+        assertMembers(model, first, a, b);
+        assertMembers(model, second, b, c);
+        assertEquals(1, numGroups(model, a));
+        assertEquals(2, numGroups(model, b));
+        assertEquals(0, numGroups(model, d));
+
+        assertTrue(model.redo());
+        assertEquals(1, stones.size());
+        assertMembers(model, first);
+        assertMembers(model, second, c);
+        assertEquals(1, numGroups(model, c));
+
+        assertTrue(model.undo());
+        assertMembers(model, first, a, b);
+        assertMembers(model, second, b, c);
+    }
+
+    @Test
+    void emptyEditsKeepRedo() {
+        Model model = row(2);
+        StoneStore stones = model.getStones();
+        Model.Stone copy = stones.getStone(0);
+        assertTrue(model.undo());
+        assertTrue(model.getJournal().canRedo());
+
+        // a bulk insertion of colliding stones only
+        int modCount = model.getModCount();
+        OverlapChecker.Report report = model.insertStones(Arrays.asList(copy, copy), -1);
+        assertEquals(2, report.size());
+        assertEquals(1, stones.size());
+        assertEquals(modCount, model.getModCount());
+        assertTrue(model.getJournal().canRedo());
+
+        // a deletion without selected stones
+        model.deselectAll();
+        model.deleteSelected();
+        assertTrue(model.getJournal().canRedo());
+
+        assertTrue(model.redo());
+        assertEquals(2, stones.size());
+
+        // a real edit
+        assertTrue(model.undo());
+        model.insertStone(-1, 0, 0, obj3d.getSubId(0), 0, 0, 40, 0);
+        assertFalse(model.getJournal().canRedo());
+        assertFalse(model.redo());
+    }
+
+    @Test
+    void undoRemoveSkipsDeletedGroups() {
+        Model model = row(3);
+        StoneStore stones = model.getStones();
+        int a = stones.getID(0), b = stones.getID(1);
+        select(model, a, b);
+        int first = model.makeGroupFromSelection("first");
+        int second = model.makeGroupFromSelection("second");
+
+        select(model, a);
+        model.deleteSelected();
+        model.deleteGroupSelection(first);
+        assertTrue(model.undo());
+        assertNull(model.getSelectionGroup(first));
+        assertMembers(model, second, a, b);
+        assertEquals(1, numGroups(model, a));
+        assertEquals(1, numGroups(model, b));
+    }
+
+    private static Model load(File file, int expectedVersion) throws IOException {
+        Model model = new Model(obj3d);
+        ModelFile modelFile = new ModelFile();
+        modelFile.load(file, model);
+        assertEquals(expectedVersion, modelFile.getVersion());
+        return model;
+    }
+
+    /**
+     * same stones (by id, with all attributes) and same groups
+     */
+    private static void assertSameModel(Model expected, Model model) {
+        StoneStore a = expected.getStones(), b = model.getStones();
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            int id = a.getID(i), slot = b.indexOf(id);
+            assertTrue(slot != -1, "stone " + id + " missing");
+            assertEquals(a.getInsertID(i), b.getInsertID(slot), "insert id of stone " + id);
+            assertEquals(a.getColor(i), b.getColor(slot), "color of stone " + id);
+            assertEquals(a.getType(i), b.getType(slot), "type of stone " + id);
+            assertEquals(a.getRotation(i), b.getRotation(slot), "rotation of stone " + id);
+            assertEquals(a.getX(i), b.getX(slot), "x of stone " + id);
+            assertEquals(a.getY(i), b.getY(slot), "y of stone " + id);
+            assertEquals(a.getZ(i), b.getZ(slot), "z of stone " + id);
+            assertEquals(a.getNumGroups(i), b.getNumGroups(slot), "groups of stone " + id);
+        }
+        assertEquals(expected.getSelectionGroups().size(), model.getSelectionGroups().size());
+        for (Model.SelectionGroup grp : expected.getSelectionGroups()) {
+            Model.SelectionGroup other = model.getSelectionGroup(grp.id);
+            assertNotNull(other, "group " + grp.id + " missing");
+            assertEquals(grp.name, other.name);
+            assertEquals(grp.size(), other.size(), "members of group " + grp.id);
+            for (int i = 0; i < grp.size(); i++)
+                assertTrue(other.contains(grp.getStoneID(i)), "stone " + grp.getStoneID(i) + " not in group " + grp.id);
+        }
+    }
+
+    @Test
+    void saveAndLoadBothVersions() throws IOException {
+        Model building = load(new File("examples/building"), 0x01);
+        assertTrue(building.getStones().size() > 0);
+        assertFalse(building.getSelectionGroups().isEmpty());
+        for (int version = 0x01; version <= 0x02; version++) {
+            File file = File.createTempFile("building", ".blcs");
+            try {
+                new ModelFile().save(file, building, version);
+                assertSameModel(building, load(file, version));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    void blockedMoveChangesNothing() {
+        Model model = row(3);
+        StoneStore stones = model.getStones();
+        int a = stones.getID(0), b = stones.getID(1), c = stones.getID(2);
+        Map<Integer, List<Integer>> before = positions(model);
+        long memory = model.getJournal().getMemory();
+
+        // a onto the cells of b (selected) is allowed, b onto c is not
+        select(model, a, b);
+        int modCount = model.getModCount();
+        assertFalse(model.moveSelectedStones(new Math3d.Int3(8, 0, 0)));
+        assertEquals(before, positions(model));
+        assertEquals(memory, model.getJournal().getMemory());
+        assertEquals(modCount, model.getModCount());
+        assertTrue(stones.isSelected(stones.indexOf(a)));
+        assertTrue(stones.isSelected(stones.indexOf(b)));
+
+        // the last edit is still the insertion of c
+        assertTrue(model.undo());
+        assertEquals(-1, stones.indexOf(c));
+        before.remove(c);
+        assertEquals(before, positions(model));
+    }
+
+    @Test
+    void moveKeepsIdsGroupsAndSelection() {
+        Model model = row(3);
+        StoneStore stones = model.getStones();
+        int a = stones.getID(0), b = stones.getID(1), c = stones.getID(2);
+        select(model, a, b);
+        int grp = model.makeGroupFromSelection("grp");
+        select(model, b, c);
+        model.makeGroupFromSelection("other");
+        Map<Integer, List<Integer>> before = positions(model);
+
+        select(model, a, b);
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(0, 3, 5)));
+        assertEquals(moved(before, 0, 3, 5, a, b), positions(model));
+        assertEquals(3, stones.size());
+        assertEquals(1, numGroups(model, a));
+        assertEquals(2, numGroups(model, b));
+        assertEquals(1, numGroups(model, c));
+        assertMembers(model, grp, a, b);
+        assertEquals(2, stones.getNumSelected());
+        assertTrue(stones.isSelected(stones.indexOf(a)));
+        assertTrue(stones.isSelected(stones.indexOf(b)));
+        assertFalse(stones.isSelected(stones.indexOf(c)));
+    }
+
+    @Test
+    void moveOntoOwnCells() {
+        Model model = row(3);
+        StoneStore stones = model.getStones();
+        int b = stones.getID(1), c = stones.getID(2);
+        Map<Integer, List<Integer>> before = positions(model);
+        select(model, b, c);
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(1, 0, 0)));
+        assertEquals(moved(before, 1, 0, 0, b, c), positions(model));
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(-1, 0, 0)));
+        assertEquals(before, positions(model));
+    }
+
+    @Test
+    void undoRedoMove() {
+        Model model = row(3);
+        StoneStore stones = model.getStones();
+        int a = stones.getID(0), c = stones.getID(2);
+        Map<Integer, List<Integer>> before = positions(model);
+        select(model, a, c);
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(0, 3, 0)));
+        Map<Integer, List<Integer>> after = moved(before, 0, 3, 0, a, c);
+        assertEquals(after, positions(model));
+        // the grid follows: a has left its cells for the ones above
+        select(model, stones.getID(1));
+        assertFalse(model.moveSelectedStones(new Math3d.Int3(-8, 3, 0)));
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(-8, 0, 0)));
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(8, 0, 0)));
+        // undo both moves of b
+        assertTrue(model.undo());
+        assertTrue(model.undo());
+        assertEquals(after, positions(model));
+
+        assertTrue(model.undo());
+        assertEquals(before, positions(model));
+        assertTrue(model.redo());
+        assertEquals(after, positions(model));
+        assertTrue(model.undo());
+        assertEquals(before, positions(model));
+
+        // c is back in its cells, the cells above a are free again
+        select(model, stones.getID(1));
+        assertFalse(model.moveSelectedStones(new Math3d.Int3(8, 0, 0)));
+        assertTrue(model.moveSelectedStones(new Math3d.Int3(-8, 3, 0)));
+    }
+}
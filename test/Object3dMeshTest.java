@@ -0,0 +1,137 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * the baked meshes (no gl-context needed) must describe the triangles which
+ * build(gl) emitted into display-lists before the meshes were introduced
+ */
+public class Object3dMeshTest {
+    private static final float EPSILON = 1e-5f;
+
+    private static Object3d obj3d;
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+    }
+
+    /**
+     * triangles as emitted by the former build(gl): per vertex x, y, z,
+     * normal x, y, z, u, v (the layout of Mesh)
+     */
+    private static float[] displayListTriangles(Object3d.Sub sub) {
+        ArrayList<Float> values = new ArrayList<Float>();
+        Math3d.Double3 vec0 = new Math3d.Double3(), vec1 = new Math3d.Double3(), vec2 = new Math3d.Double3();
+        Math3d.Double2 tex0 = new Math3d.Double2(), tex1 = new Math3d.Double2(), tex2 = new Math3d.Double2();
+        Math3d.Double3 norm0;
+        for (Object3d.FACE face : sub.faces) {
+            ArrayList<Object3d.INT2> list = sub.textureCoordinates.get(face.textureCooIndex).list;
+            boolean rect = sub.textureCoordinates.get(face.textureCooIndex).rect;
+            for (int i = 1; i < face.indicesVert.size() - 1; i++) {
+                tex0.x = (list.get(0).x + 0.5) / (double) sub.textureSize;
+                tex0.y = (list.get(0).y + 0.5) / (double) sub.textureSize;
+                if (rect) {
+                    assertTrue(i <= 2, "too many triangles for a texture rectangle");
+                    tex1.x = (list.get(i == 1 ? 0 : 1).x + 0.5) / (double) sub.textureSize;
+                    tex1.y = (list.get(1).y + 0.5) / (double) sub.textureSize;
+                    tex2.x = (list.get(1).x + 0.5) / (double) sub.textureSize;
+                    tex2.y = (list.get(i == 1 ? 1 : 0).y + 0.5) / (double) sub.textureSize;
+                } else {
+                    tex1.x = (list.get(i).x + 0.5) / (double) sub.textureSize;
+                    tex1.y = (list.get(i).y + 0.5) / (double) sub.textureSize;
+                    tex2.x = (list.get(i + 1).x + 0.5) / (double) sub.textureSize;
+                    tex2.y = (list.get(i + 1).y + 0.5) / (double) sub.textureSize;
+                }
+                set(vec0, sub.vertices.get(face.indicesVert.get(0)));
+                set(vec1, sub.vertices.get(face.indicesVert.get(i)));
+                set(vec2, sub.vertices.get(face.indicesVert.get(i + 1)));
+                norm0 = Math3d.Double3.crossProduct(Math3d.Double3.sub(vec1, vec0), Math3d.Double3.sub(vec2, vec0));
+                norm0.normalize();
+                emit(values, sub, vec0, norm0, tex0);
+                emit(values, sub, vec1, norm0, tex1);
+                emit(values, sub, vec2, norm0, tex2);
+            }
+        }
+        float[] triangles = new float[values.size()];
+        for (int i = 0; i < triangles.length; i++)
+            triangles[i] = values.get(i);
+        return triangles;
+    }
+
+    private static void set(Math3d.Double3 dest, Object3d.VECTOR3 v) {
+        dest.set(v.x, v.y, v.z);
+    }
+
+    private static void emit(ArrayList<Float> values, Object3d.Sub sub, Math3d.Double3 vec, Math3d.Double3 norm,
+            Math3d.Double2 tex) {
+        values.add((float) (vec.x * sub.scale.x + sub.translation.x));
+        values.add((float) (vec.y * sub.scale.y + sub.translation.y));
+        values.add((float) (vec.z * sub.scale.z + sub.translation.z));
+        values.add((float) norm.x);
+        values.add((float) norm.y);
+        values.add((float) norm.z);
+        values.add((float) tex.x);
+        values.add((float) (1.0 - tex.y));
+    }
+
+    /**
+     * compares the indexed mesh, vertex by vertex, with the triangles
+     */
+    private static void assertSameTriangles(float[] triangles, Object3d.Mesh mesh, String name) {
+        int size = Object3d.Mesh.VERTEX_SIZE;
+        assertEquals(triangles.length / size, mesh.getNumIndices(), name + ": number of vertices");
+        assertTrue(mesh.getNumVertices() <= mesh.getNumIndices(), name);
+        FloatBuffer vertices = mesh.getVertices();
+        IntBuffer indices = mesh.getIndices();
+        for (int k = 0; k < mesh.getNumIndices(); k++) {
+            int index = indices.get(k);
+            assertTrue(index >= 0 && index < mesh.getNumVertices(), name + ": index " + index);
+            for (int i = 0; i < size; i++) {
+                float expected = triangles[k * size + i];
+                if (Float.isNaN(expected)) // normal of a degenerated triangle
+                    continue;
+                assertEquals(expected, vertices.get(index * size + i), EPSILON,
+                        name + ": vertex " + k + ", value " + i);
+            }
+        }
+    }
+
+    @Test
+    void meshesMatchDisplayLists() {
+        assertTrue(obj3d.getSubLength() > 0);
+        for (int s = 0; s < obj3d.getSubLength(); s++) {
+            Object3d.Sub sub = obj3d.getSub(s);
+            float[] triangles = displayListTriangles(sub);
+            assertTrue(triangles.length > 0, obj3d.getSubCaption(s) + " has no triangles");
+            assertSameTriangles(triangles, obj3d.getMesh(s), obj3d.getSubCaption(s));
+        }
+    }
+
+    @Test
+    void equalVerticesAreShared() {
+        for (int s = 0; s < obj3d.getSubLength(); s++) {
+            Object3d.Mesh mesh = obj3d.bakeMesh(obj3d.getSub(s));
+            assertSameTriangles(displayListTriangles(obj3d.getSub(s)), mesh, obj3d.getSubCaption(s));
+            FloatBuffer vertices = mesh.getVertices();
+            HashSet<List<Float>> unique = new HashSet<List<Float>>();
+            for (int v = 0; v < mesh.getNumVertices(); v++) {
+                ArrayList<Float> vertex = new ArrayList<Float>();
+                for (int i = 0; i < Object3d.Mesh.VERTEX_SIZE; i++)
+                    vertex.add(vertices.get(v * Object3d.Mesh.VERTEX_SIZE + i));
+                assertTrue(unique.add(vertex), obj3d.getSubCaption(s) + ": vertex " + v + " stored twice");
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * the pairs found by the checker are compared with a test of all pairs of
+ * boxes
+ */
+public class OverlapCheckerTest {
+    private Random random;
+
+    @BeforeEach
+    void setUp() {
+        random = new Random(13);
+    }
+
+    /**
+     * n random boxes of 1..maxSize studs (1..maxHeight world units in y)
+     * around the origin; the positions are multiples of 0.4 (plates), so
+     * boxes often touch each other
+     */
+    private double[] randomBoxes(int n, int range, int maxSize, int maxHeight) {
+        double[] boxes = new double[6 * n];
+        for (int i = 0; i < n; i++) {
+            double x = random.nextInt(2 * range) - range, y = 0.4 * (random.nextInt(6 * range) - 3 * range);
+            double z = random.nextInt(2 * range) - range;
+            boxes[6 * i] = x;
+            boxes[6 * i + 1] = y;
+            boxes[6 * i + 2] = z;
+            boxes[6 * i + 3] = x + 1 + random.nextInt(maxSize);
+            boxes[6 * i + 4] = y + 0.4 * (1 + random.nextInt(Math.max(1, (int) (maxHeight / 0.4))));
+            boxes[6 * i + 5] = z + 1 + random.nextInt(maxSize);
+        }
+        return boxes;
+    }
+
+    /**
+     * all overlapping pairs (i, j), i < j, with j >= first (all pairs tested)
+     */
+    private static List<Long> allPairs(double[] boxes, int n, int first) {
+        ArrayList<Long> pairs = new ArrayList<Long>();
+        for (int i = 0; i < n; i++)
+            for (int j = Math.max(i + 1, first); j < n; j++) {
+                boolean overlap = true;
+                for (int k = 0; k < 3; k++)
+                    if (boxes[6 * j + k] >= boxes[6 * i + 3 + k] || boxes[6 * j + 3 + k] <= boxes[6 * i + k])
+                        overlap = false;
+                if (overlap)
+                    pairs.add(((long) i << 32) | j);
+            }
+        return pairs;
+    }
+
+    private static void assertPairs(double[] boxes, int n, int first, OverlapChecker checker) {
+        List<Long> expected = allPairs(boxes, n, first);
+        OverlapChecker.Report report = checker.check(boxes, n, first);
+        assertEquals(expected.size(), report.size(), "number of pairs");
+        for (int i = 0; i < report.size(); i++) {
+            long pair = expected.get(i);
+            assertEquals((int) (pair >>> 32), report.getFirst(i), "first box of pair " + i);
+            assertEquals((int) pair, report.getSecond(i), "second box of pair " + i);
+        }
+    }
+
+    @Test
+    void randomBoxes() {
+        OverlapChecker checker = new OverlapChecker();
+        for (int round = 0; round < 20; round++) {
+            int n = 1 + random.nextInt(3000);
+            double[] boxes = randomBoxes(n, 20 + random.nextInt(100), 1 + random.nextInt(40), 1 + random.nextInt(20));
+            assertPairs(boxes, n, 0, checker);
+            assertPairs(boxes, n, random.nextInt(n + 1), checker);
+        }
+    }
+
+    @Test
+    void splitIntoTasks() {
+        // small tasks on a pool of its own: the pairs of the tiles are merged
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            OverlapChecker checker = new OverlapChecker(pool);
+            int n = 8000;
+            double[] boxes = randomBoxes(n, 100, 8, 3);
+            assertPairs(boxes, n, 0, checker);
+            assertPairs(boxes, n, n / 2, checker);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void tilesSharingAKey() {
+        // tiles 2048 tiles (x, z) or 1024 tiles (y) apart share their key
+        OverlapChecker checker = new OverlapChecker();
+        double dx = 2048 * OverlapChecker.TILE_SIZE, dy = 1024 * OverlapChecker.TILE_HEIGHT;
+        int n = 400;
+        double[] boxes = randomBoxes(n, 10, 12, 4);
+        for (int i = n / 2; i < n; i++) {
+            double shiftX = (i % 3 == 0) ? dx : 0, shiftY = (i % 3 == 1) ? dy : 0, shiftZ = (i % 3 == 2) ? -dx : 0;
+            boxes[6 * i] = boxes[6 * (i - n / 2)] + shiftX;
+            boxes[6 * i + 1] = boxes[6 * (i - n / 2) + 1] + shiftY;
+            boxes[6 * i + 2] = boxes[6 * (i - n / 2) + 2] + shiftZ;
+            boxes[6 * i + 3] = boxes[6 * (i - n / 2) + 3] + shiftX;
+            boxes[6 * i + 4] = boxes[6 * (i - n / 2) + 4] + shiftY;
+            boxes[6 * i + 5] = boxes[6 * (i - n / 2) + 5] + shiftZ;
+        }
+        assertPairs(boxes, n, 0, checker);
+    }
+
+    @Test
+    void tower() {
+        // stacked bricks overlapping by one plate every 50 layers
+        int n = 6000;
+        double[] boxes = new double[6 * n];
+        for (int i = 0; i < n; i++) {
+            int layer = i / 16;
+            double y = 1.2 * layer - (layer % 50 == 0 ? 0.4 : 0);
+            double x = 4 * (i % 4), z = 2 * (i / 4 % 4);
+            double[] box = { x + 0.01, y + 0.01, z + 0.01, x + 3.99, y + 1.19, z + 1.99 };
+            System.arraycopy(box, 0, boxes, 6 * i, 6);
+        }
+        OverlapChecker checker = new OverlapChecker();
+        assertTrue(checker.check(boxes, n, 0).size() > 0);
+        assertPairs(boxes, n, 0, checker);
+    }
+
+    @Test
+    void noBoxes() {
+        assertEquals(0, new OverlapChecker().check(new double[0], 0, 0).size());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * snapshots of the stones are built on one thread while another thread edits
+ * the model (as the event dispatch thread does); every published snapshot
+ * must be consistent in itself.
+ */
+public class SceneSnapshotConcurrencyTest {
+    private static final int EDITS = 20000;
+
+    private static Object3d obj3d;
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+    }
+
+    @Test
+    void buildWhileEditing() throws Exception {
+        final Model model = new Model(obj3d);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean editing = new AtomicBoolean(true);
+
+        Thread editor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    edit(model, new Random(1));
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    editing.set(false);
+                }
+            }
+        }, "editor");
+
+        final AtomicInteger numSnapshots = new AtomicInteger();
+        Thread renderer = new Thread(new Runnable() {
+            private volatile SceneSnapshot.Stones published;
+
+            public void run() {
+                try {
+                    do {
+                        published = SceneSnapshot.Stones.build(obj3d, model.getStones(), model.getPosition());
+                        checkConsistent(published);
+                        numSnapshots.incrementAndGet();
+                    } while (editing.get() && failure.get() == null);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }, "renderer");
+
+        editor.start();
+        renderer.start();
+        editor.join(120000);
+        renderer.join(120000);
+        assertFalse(editor.isAlive() || renderer.isAlive(), "threads did not finish");
+        if (failure.get() != null)
+            fail(failure.get());
+        assertTrue(numSnapshots.get() > 0);
+        checkConsistent(SceneSnapshot.Stones.build(obj3d, model.getStones(), model.getPosition()));
+    }
+
+    /**
+     * inserts, moves and deletes random stones
+     */
+    private static void edit(Model model, Random random) {
+        StoneStore stones = model.getStones();
+        Math3d.Int3 move = new Math3d.Int3();
+        for (int i = 0; i < EDITS; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+                // select some stones and move them
+                model.deselectAll();
+                for (int k = 0; k < 8 && stones.size() > 0; k++)
+                    stones.setSelected(random.nextInt(stones.size()), true);
+                move.set(random.nextInt(9) - 4, 3 * (random.nextInt(3) - 1), random.nextInt(9) - 4);
+                model.moveSelectedStones(move);
+                break;
+            case 1:
+                // select some stones and delete them
+                model.deselectAll();
+                for (int k = 0; k < 4 && stones.size() > 0; k++)
+                    stones.setSelected(random.nextInt(stones.size()), true);
+                model.deleteSelected();
+                break;
+            default:
+                model.insertStone(-1, i, random.nextInt(GraphicsHelper.COLORS.length),
+                        obj3d.getSubId(random.nextInt(obj3d.getSubLength())), random.nextInt(80) - 40,
+                        3 * random.nextInt(10), random.nextInt(80) - 40, random.nextInt(4));
+                break;
+            }
+        }
+    }
+
+    /**
+     * the runs cover the instances of their type, the chunks cover their runs
+     * and the bounds of a chunk are the bounds of its stones
+     */
+    static void checkConsistent(SceneSnapshot.Stones s) {
+        int numTypes = s.getNumTypes();
+        assertEquals(obj3d.getSubLength(), numTypes);
+
+        // ** types and their runs **
+        int n = 0;
+        for (int t = 0; t < numTypes; t++) {
+            assertEquals(n, s.getFirstInstance(t), "first instance of type " + t);
+            int next = n;
+            for (int r = s.getFirstRun(t); r < s.getFirstRun(t + 1); r++) {
+                assertEquals(t, s.getRunType(r));
+                assertEquals(next, s.getRunStart(r), "run " + r + " does not follow its predecessor");
+                assertTrue(s.getRunCount(r) > 0);
+                next += s.getRunCount(r);
+            }
+            n += s.getNumInstances(t);
+            assertEquals(n, next, "runs of type " + t);
+        }
+        assertEquals(s.getNumInstances(), n);
+        assertEquals(0, s.getFirstRun(0));
+        int numRuns = s.getFirstRun(numTypes);
+
+        // ** chunks: runs, keys and bounds **
+        int numChunks = s.getNumChunks();
+        double[] bounds = s.getChunkBounds();
+        assertEquals(6 * numChunks, bounds.length);
+        boolean[] listed = new boolean[numRuns];
+        double[] b = new double[6];
+        for (int c = 0; c < numChunks; c++) {
+            assertTrue(s.getFirstChunkRun(c) < s.getFirstChunkRun(c + 1), "empty chunk " + c);
+            b[0] = b[1] = b[2] = Double.MAX_VALUE;
+            b[3] = b[4] = b[5] = -Double.MAX_VALUE;
+            for (int k = s.getFirstChunkRun(c); k < s.getFirstChunkRun(c + 1); k++) {
+                int r = s.getChunkRun(k);
+                assertEquals(c, s.getRunChunk(r));
+                assertFalse(listed[r], "run " + r + " listed twice");
+                listed[r] = true;
+                for (int i = s.getRunStart(r); i < s.getRunStart(r) + s.getRunCount(r); i++) {
+                    int x = Math.round(s.getInstance(i, 0)), z = Math.round(s.getInstance(i, 2));
+                    assertEquals(s.getChunkKey(c), StoneChunks.key(x, z), "instance " + i + " outside its chunk");
+                    Math3d.AABB box = obj3d.getBounds(s.getRunType(r), Math.round(s.getInstance(i, 3) / 90.0f));
+                    b[0] = Math.min(b[0], s.getInstance(i, 0) + box.min.x);
+                    b[1] = Math.min(b[1], s.getInstance(i, 1) + box.min.y);
+                    b[2] = Math.min(b[2], s.getInstance(i, 2) + box.min.z);
+                    b[3] = Math.max(b[3], s.getInstance(i, 0) + box.max.x);
+                    b[4] = Math.max(b[4], s.getInstance(i, 1) + box.max.y);
+                    b[5] = Math.max(b[5], s.getInstance(i, 2) + box.max.z);
+                }
+            }
+            for (int k = 0; k < 6; k++)
+                assertEquals(b[k], bounds[6 * c + k], 1e-3, "bounds of chunk " + c);
+        }
+        assertEquals(s.getFirstChunkRun(numChunks), numRuns);
+        for (int r = 0; r < numRuns; r++)
+            assertTrue(listed[r], "run " + r + " not in its chunk");
+    }
+}
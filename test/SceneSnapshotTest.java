@@ -0,0 +1,131 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * instance data of a snapshot of a small store (no gl-context needed)
+ */
+public class SceneSnapshotTest {
+    private static Object3d obj3d;
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+        assertTrue(obj3d.getSubLength() >= 3);
+    }
+
+    private static void add(StoneStore stones, int id, int subIndex, int rotation, int color, int x, int y, int z) {
+        stones.add(id, 0, color, obj3d.getSubId(subIndex), rotation, x, y, z, subIndex,
+                obj3d.getBounds(subIndex, rotation));
+    }
+
+    private static void assertInstance(SceneSnapshot.Stones s, int i, float... expected) {
+        assertEquals(SceneSnapshot.INSTANCE_SIZE, expected.length);
+        for (int k = 0; k < expected.length; k++)
+            assertEquals(expected[k], s.getInstance(i, k), 1e-6f, "instance " + i + ", value " + k);
+    }
+
+    private static void assertRun(SceneSnapshot.Stones s, int run, int type, int chunk, int start, int count) {
+        assertEquals(type, s.getRunType(run), "type of run " + run);
+        assertEquals(chunk, s.getRunChunk(run), "chunk of run " + run);
+        assertEquals(start, s.getRunStart(run), "start of run " + run);
+        assertEquals(count, s.getRunCount(run), "count of run " + run);
+    }
+
+    @Test
+    void instancesByTypeAndChunk() {
+        StoneStore stones = new StoneStore();
+        // chunks (16 x 16 studs): (0, 0) is chunk 0, (1, 0) is chunk 1, (2, 2) is chunk 2
+        add(stones, 10, 2, 1, 3, 0, 0, 0);
+        add(stones, 11, 0, 0, 1, 20, 3, 0);
+        add(stones, 12, 2, 3, 99, 1, 6, 2); // unknown color: white
+        add(stones, 13, 0, 2, 5, 2, 0, 4);
+        add(stones, 14, 1, 1, 2, 40, 9, 40);
+        stones.setSelected(4, true);
+
+        SceneSnapshot.Stones s = SceneSnapshot.Stones.build(obj3d, stones, new Math3d.Double3(1, 2, 3));
+
+        assertEquals(5, s.getNumInstances());
+        assertEquals(obj3d.getSubLength(), s.getNumTypes());
+        assertEquals(3, s.getNumUsedTypes());
+        assertEquals(3, s.getNumChunks());
+        int[] counts = { 2, 1, 2 };
+        int[] firsts = { 0, 2, 3 };
+        for (int t = 0; t < 3; t++) {
+            assertEquals(counts[t], s.getNumInstances(t));
+            assertEquals(firsts[t], s.getFirstInstance(t));
+        }
+        for (int t = 3; t < s.getNumTypes(); t++)
+            assertEquals(0, s.getNumInstances(t));
+
+        // ** runs: by type, within a type by chunk **
+        assertEquals(0, s.getFirstRun(0));
+        assertEquals(2, s.getFirstRun(1));
+        assertEquals(3, s.getFirstRun(2));
+        assertEquals(4, s.getFirstRun(3));
+        assertEquals(4, s.getFirstRun(s.getNumTypes()));
+        assertRun(s, 0, 0, 0, 0, 1);
+        assertRun(s, 1, 0, 1, 1, 1);
+        assertRun(s, 2, 1, 2, 2, 1);
+        assertRun(s, 3, 2, 0, 3, 2);
+
+        // ** runs of the chunks **
+        assertEquals(0, s.getFirstChunkRun(0));
+        assertEquals(2, s.getFirstChunkRun(1));
+        assertEquals(3, s.getFirstChunkRun(2));
+        assertEquals(4, s.getFirstChunkRun(3));
+        assertEquals(0, s.getChunkRun(0));
+        assertEquals(3, s.getChunkRun(1));
+        assertEquals(1, s.getChunkRun(2));
+        assertEquals(2, s.getChunkRun(3));
+        assertEquals(StoneChunks.key(0, 0), s.getChunkKey(0));
+        assertEquals(StoneChunks.key(20, 0), s.getChunkKey(1));
+        assertEquals(StoneChunks.key(40, 40), s.getChunkKey(2));
+
+        // ** x, y, z (offset + position, y in plates of 0.4), rotation in degrees, r, g, b **
+        assertInstance(s, 0, 3, 2, 7, 180, 0.1f, 0.8f, 0.1f); // id 13
+        assertInstance(s, 1, 21, 3.2f, 3, 0, 1, 1, 0); // id 11
+        assertInstance(s, 2, 41, 5.6f, 43, 90, 1, 0, 1); // id 14, selected
+        assertInstance(s, 3, 1, 2, 3, 90, 0, 0, 1); // id 10
+        assertInstance(s, 4, 2, 4.4f, 5, 270, 1, 1, 1); // id 12
+
+        float[] copy = new float[5 * SceneSnapshot.INSTANCE_SIZE];
+        s.copyInstances(copy);
+        for (int i = 0; i < copy.length; i++)
+            assertEquals(s.getInstance(i / SceneSnapshot.INSTANCE_SIZE, i % SceneSnapshot.INSTANCE_SIZE), copy[i]);
+
+        // ** bounds of chunk 0: ids 13, 10 and 12 **
+        double[] expected = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+                -Double.MAX_VALUE, -Double.MAX_VALUE };
+        int[][] chunk0 = { { 0, 2, 0 }, { 2, 1, 3 }, { 2, 3, 4 } }; // sub-index, rotation, instance
+        for (int[] stone : chunk0) {
+            Math3d.AABB box = obj3d.getBounds(stone[0], stone[1]);
+            double x = s.getInstance(stone[2], 0), y = s.getInstance(stone[2], 1), z = s.getInstance(stone[2], 2);
+            expected[0] = Math.min(expected[0], x + box.min.x);
+            expected[1] = Math.min(expected[1], y + box.min.y);
+            expected[2] = Math.min(expected[2], z + box.min.z);
+            expected[3] = Math.max(expected[3], x + box.max.x);
+            expected[4] = Math.max(expected[4], y + box.max.y);
+            expected[5] = Math.max(expected[5], z + box.max.z);
+        }
+        for (int k = 0; k < 6; k++)
+            assertEquals(expected[k], s.getChunkBounds()[k], 1e-5);
+    }
+
+    @Test
+    void emptyStore() {
+        SceneSnapshot.Stones s = SceneSnapshot.Stones.build(obj3d, new StoneStore(), new Math3d.Double3());
+        assertEquals(0, s.getNumInstances());
+        assertEquals(0, s.getNumChunks());
+        assertEquals(0, s.getNumUsedTypes());
+        assertEquals(0, s.getFirstRun(s.getNumTypes()));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * random edits of a store and its bvh (single and bulk insertion, removal,
+ * moves re-fitted by update(..)); every ray-query is compared with the
+ * nearest hit of all stones
+ */
+public class StoneBVHTest {
+    private static Object3d obj3d;
+
+    private StoneStore store;
+    private StoneBVH bvh;
+    private Random random;
+    private int nextID = 0;
+
+    private Math3d.Double3 orig = new Math3d.Double3(), dir = new Math3d.Double3();
+    private Math3d.AABB tmp = new Math3d.AABB();
+
+    private StoneBVH.RayCallback boxCallback = new StoneBVH.RayCallback() {
+        public double hit(int slot) {
+            return distance(slot);
+        }
+    };
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+    }
+
+    @BeforeEach
+    void setUp() {
+        store = new StoneStore();
+        bvh = new StoneBVH();
+        random = new Random(11);
+    }
+
+    private double distance(int slot) {
+        store.getWorldAABB(slot, tmp);
+        return Math3d.rayBox(orig.x, orig.y, orig.z, dir.x, dir.y, dir.z, tmp.min.x, tmp.min.y, tmp.min.z,
+                tmp.max.x, tmp.max.y, tmp.max.z);
+    }
+
+    private int addToStore() {
+        int index = random.nextInt(obj3d.getSubLength()), rotation = random.nextInt(4);
+        return store.add(nextID++, 0, 0, obj3d.getSubId(index), rotation, random.nextInt(60) - 30,
+                random.nextInt(60) - 20, random.nextInt(60) - 30, index, obj3d.getBounds(index, rotation));
+    }
+
+    private void add() {
+        int slot = addToStore();
+        store.getWorldAABB(slot, tmp);
+        bvh.insert(slot, tmp);
+    }
+
+    /**
+     * adds some stones as one sub-tree
+     */
+    private void addBulk() {
+        int n = 1 + random.nextInt(12);
+        int[] slots = new int[n];
+        for (int i = 0; i < n; i++)
+            slots[i] = addToStore();
+        bvh.insert(store, slots, n);
+    }
+
+    /**
+     * removes a random stone; the last stone of the store is moved into its
+     * slot (StoneBVH.move(..))
+     */
+    private void remove() {
+        int slot = random.nextInt(store.size());
+        bvh.remove(slot);
+        int moved = store.remove(slot);
+        if (moved != -1)
+            bvh.move(moved, slot);
+    }
+
+    /**
+     * moves some distinct stones (or all) by the same or by different
+     * offsets and re-fits the tree once
+     */
+    private void update() {
+        int n = random.nextInt(10) == 0 ? store.size() : 1 + random.nextInt(Math.min(store.size(), 30));
+        int[] all = new int[store.size()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = i;
+        for (int i = 0; i < n; i++) {
+            int k = i + random.nextInt(all.length - i);
+            int slot = all[k];
+            all[k] = all[i];
+            all[i] = slot;
+        }
+        boolean same = random.nextBoolean();
+        int dx = random.nextInt(21) - 10, dy = random.nextInt(21) - 10, dz = random.nextInt(21) - 10;
+        for (int i = 0; i < n; i++) {
+            int slot = all[i];
+            if (!same) {
+                dx = random.nextInt(21) - 10;
+                dy = random.nextInt(21) - 10;
+                dz = random.nextInt(21) - 10;
+            }
+            store.setPosition(slot, store.getX(slot) + dx, store.getY(slot) + dy, store.getZ(slot) + dz);
+        }
+        bvh.update(store, all, n);
+    }
+
+    private void edit(int numEdits) {
+        for (int i = 0; i < numEdits; i++) {
+            int op = store.size() < 4 ? 0 : random.nextInt(6);
+            if (op <= 1)
+                add();
+            else if (op == 2)
+                addBulk();
+            else if (op == 3)
+                remove();
+            else
+                update();
+        }
+    }
+
+    /**
+     * nearest hit of all stones (brute-force), or -1
+     */
+    private int nearest(double maxDistance) {
+        int nearest = -1;
+        double best = maxDistance, t;
+        for (int slot = 0; slot < store.size(); slot++) {
+            t = distance(slot);
+            if (t >= 0.0 && t < best) {
+                best = t;
+                nearest = slot;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * the boxes of the inner nodes are the unions of their children (tight,
+     * so refits cannot be skipped), heights and parent links are consistent
+     * and the leafs have the boxes of their stones; returns the number of
+     * leafs
+     */
+    private int assertNode(StoneBVH.Node node, boolean[] seen) {
+        if (node.isLeaf()) {
+            assertTrue(node.slot >= 0 && node.slot < store.size(), "slot " + node.slot);
+            assertFalse(seen[node.slot], "slot " + node.slot + " in two leafs");
+            seen[node.slot] = true;
+            assertEquals(0, node.height);
+            store.getWorldAABB(node.slot, tmp);
+            assertBox(tmp, node.box, "leaf of slot " + node.slot);
+            return 1;
+        }
+        assertSame(node, node.child1.parent);
+        assertSame(node, node.child2.parent);
+        int n = assertNode(node.child1, seen) + assertNode(node.child2, seen);
+        assertEquals(1 + Math.max(node.child1.height, node.child2.height), node.height);
+        Math3d.AABB union = new Math3d.AABB();
+        union.min.set(Math.min(node.child1.box.min.x, node.child2.box.min.x),
+                Math.min(node.child1.box.min.y, node.child2.box.min.y),
+                Math.min(node.child1.box.min.z, node.child2.box.min.z));
+        union.max.set(Math.max(node.child1.box.max.x, node.child2.box.max.x),
+                Math.max(node.child1.box.max.y, node.child2.box.max.y),
+                Math.max(node.child1.box.max.z, node.child2.box.max.z));
+        assertBox(union, node.box, "inner node");
+        return n;
+    }
+
+    private static void assertBox(Math3d.AABB expected, Math3d.AABB box, String name) {
+        assertEquals(expected.min.x, box.min.x, name);
+        assertEquals(expected.min.y, box.min.y, name);
+        assertEquals(expected.min.z, box.min.z, name);
+        assertEquals(expected.max.x, box.max.x, name);
+        assertEquals(expected.max.y, box.max.y, name);
+        assertEquals(expected.max.z, box.max.z, name);
+    }
+
+    private void assertTree() {
+        StoneBVH.Node root = bvh.getRoot();
+        if (root == null) {
+            assertEquals(0, store.size());
+            return;
+        }
+        assertNull(root.parent);
+        assertEquals(store.size(), assertNode(root, new boolean[store.size()]));
+    }
+
+    private void assertRays(int numRays) {
+        assertEquals(store.size(), bvh.size());
+        assertTree();
+        for (int i = 0; i < numRays; i++) {
+            orig.set(random.nextDouble() * 120 - 60, random.nextDouble() * 60 - 10, random.nextDouble() * 120 - 60);
+            dir.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, random.nextDouble() - 0.5);
+            dir.normalize();
+            double maxDistance = random.nextInt(4) == 0 ? 20.0 : Double.MAX_VALUE;
+            int expected = nearest(maxDistance);
+            int found = bvh.raycast(orig, dir, maxDistance, boxCallback);
+            if (expected == -1) {
+                assertEquals(-1, found, "ray " + i + ": hit without a stone");
+                continue;
+            }
+            assertNotEquals(-1, found, "ray " + i + ": stone " + expected + " missed");
+            // ties of equal distance may be resolved differently
+            assertEquals(distance(expected), distance(found), 1e-12, "ray " + i);
+            assertEquals(distance(expected), bvh.getLastDistance(), 1e-12, "ray " + i);
+        }
+    }
+
+    @Test
+    void randomEdits() {
+        for (int round = 0; round < 40; round++) {
+            edit(100);
+            assertRays(300);
+        }
+        // balanced by the rotations
+        assertTrue(bvh.getHeight() < 4 * (32 - Integer.numberOfLeadingZeros(store.size())),
+                "height " + bvh.getHeight() + " for " + store.size() + " stones");
+    }
+
+    @Test
+    void editsAfterBuild() {
+        for (int i = 0; i < 500; i++)
+            addToStore();
+        bvh.build(store);
+        assertRays(300);
+        for (int round = 0; round < 20; round++) {
+            edit(50);
+            assertRays(200);
+        }
+    }
+
+    @Test
+    void removeAll() {
+        edit(500);
+        while (store.size() > 0)
+            remove();
+        assertEquals(0, bvh.size());
+        assertEquals(0, bvh.getHeight());
+        orig.set(0, 100, 0);
+        dir.set(0, -1, 0);
+        assertEquals(-1, bvh.raycast(orig, dir, Double.MAX_VALUE, boxCallback));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * BlockDesigner
+ *
+ * (c) 2010 Andreas Schwenk
+ * Licensed under the MIT License
+ */
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * random edits of a store and its grid; every query of the grid is compared
+ * with a linear scan over all stones
+ */
+public class StoneGridTest {
+    private static Object3d obj3d;
+
+    private StoneStore store;
+    private StoneGrid grid;
+    private Random random;
+    private int nextID = 0;
+
+    @BeforeAll
+    static void loadStones() {
+        obj3d = new Object3d();
+        assertTrue(obj3d.loadFromFile("stones.txt", false));
+    }
+
+    @BeforeEach
+    void setUp() {
+        store = new StoneStore();
+        grid = new StoneGrid(store);
+        random = new Random(7);
+    }
+
+    /**
+     * adds a random stone (overlaps are allowed, the grid does not care)
+     */
+    private void add() {
+        int index = random.nextInt(obj3d.getSubLength()), rotation = random.nextInt(4);
+        int slot = store.add(nextID++, 0, 0, obj3d.getSubId(index), rotation, random.nextInt(40) - 20,
+                random.nextInt(40) - 10, random.nextInt(40) - 20, index, obj3d.getBounds(index, rotation));
+        grid.add(slot);
+    }
+
+    /**
+     * removes a random stone; the last stone of the store is moved into its
+     * slot (StoneGrid.move(..))
+     */
+    private void remove() {
+        int slot = random.nextInt(store.size());
+        grid.remove(slot);
+        int moved = store.remove(slot);
+        if (moved != -1)
+            grid.move(moved, slot);
+    }
+
+    private void translate(int slot, int x, int y, int z) {
+        Math3d.AABB oldBox = new Math3d.AABB();
+        store.getCollisionAABB(slot, oldBox);
+        store.setPosition(slot, x, y, z);
+        grid.translate(slot, oldBox);
+    }
+
+    /**
+     * moves a random stone by a few studs and plates
+     */
+    private void translate() {
+        int slot = random.nextInt(store.size());
+        translate(slot, store.getX(slot) + random.nextInt(9) - 4, store.getY(slot) + random.nextInt(9) - 4,
+                store.getZ(slot) + random.nextInt(9) - 4);
+    }
+
+    /**
+     * two stones exchange their positions
+     */
+    private void swap() {
+        int a = random.nextInt(store.size()), b = random.nextInt(store.size());
+        int x = store.getX(a), y = store.getY(a), z = store.getZ(a);
+        translate(a, store.getX(b), store.getY(b), store.getZ(b));
+        translate(b, x, y, z);
+    }
+
+    private void edit(int numEdits) {
+        for (int i = 0; i < numEdits; i++) {
+            int op = store.size() < 10 ? 0 : random.nextInt(5);
+            if (op <= 1)
+                add();
+            else if (op == 2)
+                remove();
+            else if (op == 3)
+                translate();
+            else
+                swap();
+        }
+    }
+
+    /**
+     * slots of the stones overlapping box (linear scan)
+     */
+    private HashSet<Integer> scan(Math3d.AABB box, boolean ignoreSelected) {
+        HashSet<Integer> slots = new HashSet<Integer>();
+        Math3d.AABB other = new Math3d.AABB();
+        for (int slot = 0; slot < store.size(); slot++) {
+            if (ignoreSelected && store.isSelected(slot))
+                continue;
+            store.getCollisionAABB(slot, other);
+            if (box.collision(other))
+                slots.add(slot);
+        }
+        return slots;
+    }
+
+    private void assertQueries(int numQueries) {
+        Math3d.AABB box = new Math3d.AABB();
+        for (int i = 0; i < numQueries; i++) {
+            // the collision-box of a random stone type at a random position
+            int index = random.nextInt(obj3d.getSubLength());
+            StoneStore.getCollisionAABB(obj3d.getBounds(index, random.nextInt(4)), random.nextInt(50) - 25,
+                    random.nextInt(50) - 15, random.nextInt(50) - 25, box);
+            boolean ignoreSelected = random.nextBoolean();
+            HashSet<Integer> expected = scan(box, ignoreSelected);
+            int found = grid.findCollision(box, ignoreSelected);
+            if (expected.isEmpty())
+                assertEquals(-1, found, "collision with slot " + found + " not found by the scan");
+            else
+                assertTrue(expected.contains(found), "expected one of " + expected + ", found " + found);
+        }
+        // every stone is found at its own position
+        for (int slot = 0; slot < store.size(); slot++) {
+            store.getCollisionAABB(slot, box);
+            assertTrue(grid.collides(box), "stone in slot " + slot + " not in the grid");
+        }
+        assertEquals(coveredCells(), grid.getNumCells(), "cells of the grid");
+    }
+
+    /**
+     * number of cells covered by the collision-boxes of all stones (empty
+     * cells must be dropped by the grid)
+     */
+    private int coveredCells() {
+        HashSet<List<Integer>> cells = new HashSet<List<Integer>>();
+        Math3d.AABB box = new Math3d.AABB();
+        for (int slot = 0; slot < store.size(); slot++) {
+            store.getCollisionAABB(slot, box);
+            int minX = (int) Math.floor(box.min.x / StoneGrid.CELL_SIZE);
+            int minY = (int) Math.floor(box.min.y / (0.4 * StoneGrid.CELL_HEIGHT));
+            int minZ = (int) Math.floor(box.min.z / StoneGrid.CELL_SIZE);
+            int maxX = (int) Math.floor(box.max.x / StoneGrid.CELL_SIZE);
+            int maxY = (int) Math.floor(box.max.y / (0.4 * StoneGrid.CELL_HEIGHT));
+            int maxZ = (int) Math.floor(box.max.z / StoneGrid.CELL_SIZE);
+            for (int x = minX; x <= maxX; x++)
+                for (int y = minY; y <= maxY; y++)
+                    for (int z = minZ; z <= maxZ; z++)
+                        cells.add(Arrays.asList(x, y, z));
+        }
+        return cells.size();
+    }
+
+    @Test
+    void randomEdits() {
+        for (int round = 0; round < 50; round++) {
+            edit(200);
+            // select some stones for the queries which skip the selection
+            store.clearSelection();
+            for (int i = 0; i < store.size() / 4; i++)
+                store.setSelected(random.nextInt(store.size()), true);
+            assertQueries(200);
+        }
+    }
+
+    @Test
+    void removeAll() {
+        edit(2000);
+        while (store.size() > 0)
+            remove();
+        assertEquals(0, grid.getNumCells());
+        Math3d.AABB all = new Math3d.AABB();
+        all.min.set(-100, -100, -100);
+        all.max.set(100, 100, 100);
+        assertEquals(-1, grid.findCollision(all));
+    }
+}